@@ -0,0 +1,107 @@
+/**************************************************************
+         		Pontificia Universidad Javeriana
+     Autor: Daniela Medina
+     Fecha: 17 Octubre 2026
+     Materia: Sistemas Distribuidos
+     Tema: Laboratorio de Sockets
+****************************************************************/
+package com.puj.sockets.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ClientCodecBenchmark - per-message CPU cost of the client's hot path in sockettcpcli.
+ *
+ * Covers what runs for every message besides the socket calls: building the payload
+ * (generatePayload for generated messages, pad for user text), parsing the ACK
+ * (parseAck), and recording it (StatCollector.add alone, and Recorder.record, which
+ * formats the CSV row, estimates the clock offset and feeds the histograms). The CSV goes
+ * to a null writer, so only formatting is measured.
+ *
+ * Run with "-prof gc" to see gc.alloc.rate.norm, the bytes allocated per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientCodecBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    int size; // Tamaño del payload (bytes)
+
+    @Param({"x"})
+    String payload; // --payload del cliente: x | random | text
+
+    private String ack; // ACK típico del servidor
+    private String userText; // Texto que escribe el usuario en modo interactivo
+    private Object stats;
+    private Object recorder;
+    private long seq;
+    private long now;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Targets.payloadKind(payload);
+        long t = System.nanoTime();
+        ack = "ACK|123456|" + t + "|" + (t + 48_000);
+        userText = "hola servidor";
+        stats = newStats();
+        recorder = Targets.newRecorder();
+        now = t;
+    }
+
+    @Benchmark
+    public Object parseAck() throws Throwable {
+        return (Object) Targets.PARSE_ACK.invokeExact(ack);
+    }
+
+    @Benchmark
+    public String generatePayload() throws Throwable {
+        return (String) Targets.GENERATE_PAYLOAD.invokeExact(size);
+    }
+
+    @Benchmark
+    public String pad() throws Throwable {
+        return (String) Targets.PAD.invokeExact(userText, size);
+    }
+
+    @Benchmark
+    public void statCollectorAdd() throws Throwable {
+        Targets.STATS_ADD.invokeExact(stats, (double) (++seq & 1023));
+    }
+
+    /**
+     * Un ACK completo tal como lo procesa el lector: parseAck y luego Recorder.record.
+     */
+    @Benchmark
+    public void recordAck() throws Throwable {
+        long s = ++seq;
+        long sendNs = now + s * 100_000; // RTT ~ 90 us y 40 us de residencia en el servidor
+        long recvNs = sendNs + 90_000;
+        Object af = (Object) Targets.NEW_ACK.invokeExact(s, sendNs + 30_000, sendNs + 70_000, false);
+        Targets.RECORD.invokeExact(recorder, af, size, (long) size, -1L, sendNs, recvNs, -1L);
+    }
+
+    private static Object newStats() {
+        try {
+            return (Object) Targets.NEW_STATS.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**************************************************************
+         		Pontificia Universidad Javeriana
+     Autor: Daniela Medina
+     Fecha: 17 Octubre 2026
+     Materia: Sistemas Distribuidos
+     Tema: Laboratorio de Sockets
+****************************************************************/
+package com.puj.sockets.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FramingBenchmark - per-message cost of the text (writeUTF) protocol over in-memory streams.
+ *
+ * encode: build "MSG|seq|clientSendNs|payloadLen|payload" and writeUTF it, as the client does.
+ * decode: readUTF the same bytes, as the server's I/O thread does.
+ * parse:  sockettcpser.parseText, the split("\\|", 5) and field parsing on the server.
+ * ack:    format the "ACK|seq|serverRecvNs|serverSendNs" reply and writeUTF it.
+ *
+ * The streams are reset before each call, so no socket or syscall cost is included; the
+ * difference against the binary framing is what these methods add per message. writeUTF
+ * limits a message to 65535 bytes, hence the largest size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    int size; // Tamaño del payload (bytes)
+
+    private final ByteArrayOutputStream sink = new ByteArrayOutputStream(70_000); // Se reinicia en cada llamada
+    private DataOutputStream out;
+    private byte[] frame; // Mensaje ya codificado (2 bytes de largo + UTF-8 modificado)
+    private String msg; // Mensaje ya decodificado
+    private String payload;
+    private long seq;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        char[] fill = new char[size];
+        Arrays.fill(fill, 'x');
+        payload = new String(fill);
+        msg = "MSG|1|" + System.nanoTime() + "|" + size + "|" + payload;
+        out = new DataOutputStream(sink);
+        out.writeUTF(msg);
+        frame = sink.toByteArray();
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        sink.reset();
+        out.writeUTF("MSG|" + (++seq) + "|" + System.nanoTime() + "|" + payload.length() + "|" + payload);
+        return sink.size();
+    }
+
+    @Benchmark
+    public String decode() throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(frame)).readUTF();
+    }
+
+    @Benchmark
+    public Object parse() throws Throwable {
+        return (Object) Targets.PARSE_TEXT.invokeExact(msg, "MSG", 1L, (Object) null, (Object) null);
+    }
+
+    @Benchmark
+    public int ack() throws IOException {
+        sink.reset();
+        long recvNs = System.nanoTime();
+        out.writeUTF("ACK|" + (++seq) + "|" + recvNs + "|" + System.nanoTime());
+        return sink.size();
+    }
+}
@@ -0,0 +1,121 @@
+/**************************************************************
+         		Pontificia Universidad Javeriana
+     Autor: Daniela Medina
+     Fecha: 17 Octubre 2026
+     Materia: Sistemas Distribuidos
+     Tema: Laboratorio de Sockets
+****************************************************************/
+package com.puj.sockets.bench;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Targets - MethodHandles to the private members of the socket programs under test.
+ *
+ * The programs in Fuentes/ live in the default package and keep their helpers private,
+ * while JMH requires benchmarks in a named package. Rather than widening visibility in
+ * the programs, each helper is resolved once with a private lookup (both sides are in the
+ * unnamed module) and adapted to an erased signature, so benchmarks call it through
+ * invokeExact on a static final handle, which the JIT inlines like a direct call.
+ *
+ * Signatures (Object stands for the private types):
+ *   PARSE_ACK        (String) -> AckFields
+ *   GENERATE_PAYLOAD (int) -> String
+ *   PAD              (String, int) -> String
+ *   NEW_STATS        () -> StatCollector
+ *   STATS_ADD        (StatCollector, double) -> void
+ *   NEW_ACK          (long seq, long serverRecvNs, long serverSendNs, boolean busy) -> AckFields
+ *   NEW_RECORDER     (PrintWriter, int connId) -> Recorder
+ *   RECORD           (Recorder, AckFields, int bytes, long wireBytes, long codecNs,
+ *                     long clientSendNs, long clientRecvNs, long intendedNs) -> void
+ *   PARSE_TEXT       (String msg, String type, long recvNs, ConnectionStats, Responder) -> Request
+ */
+final class Targets {
+    static final MethodHandle PARSE_ACK;
+    static final MethodHandle GENERATE_PAYLOAD;
+    static final MethodHandle PAD;
+    static final MethodHandle NEW_STATS;
+    static final MethodHandle STATS_ADD;
+    static final MethodHandle NEW_ACK;
+    static final MethodHandle NEW_RECORDER;
+    static final MethodHandle RECORD;
+    static final MethodHandle PARSE_TEXT;
+
+    private static final MethodHandle PAYLOAD_KIND; // Setter de sockettcpcli.payloadKind
+
+    static {
+        try {
+            Class<?> cli = Class.forName("sockettcpcli");
+            Class<?> ack = Class.forName("sockettcpcli$AckFields");
+            Class<?> stats = Class.forName("sockettcpcli$StatCollector");
+            Class<?> rec = Class.forName("sockettcpcli$Recorder");
+            MethodHandles.Lookup c = MethodHandles.privateLookupIn(cli, MethodHandles.lookup());
+
+            PARSE_ACK = erase(c.findStatic(cli, "parseAck", MethodType.methodType(ack, String.class)));
+            GENERATE_PAYLOAD = erase(c.findStatic(cli, "generatePayload", MethodType.methodType(String.class, int.class)));
+            PAD = erase(c.findStatic(cli, "pad", MethodType.methodType(String.class, String.class, int.class)));
+            NEW_STATS = erase(c.findConstructor(stats, MethodType.methodType(void.class)));
+            STATS_ADD = erase(c.findVirtual(stats, "add", MethodType.methodType(void.class, double.class)));
+            NEW_ACK = erase(c.findConstructor(ack,
+                    MethodType.methodType(void.class, long.class, long.class, long.class, boolean.class)));
+            NEW_RECORDER = erase(c.findConstructor(rec, MethodType.methodType(void.class, PrintWriter.class, int.class)));
+            RECORD = erase(c.findVirtual(rec, "record", MethodType.methodType(void.class,
+                    ack, int.class, long.class, long.class, long.class, long.class, long.class)));
+            PAYLOAD_KIND = c.findStaticSetter(cli, "payloadKind", String.class);
+
+            Class<?> ser = Class.forName("sockettcpser");
+            Class<?> request = Class.forName("sockettcpser$Request");
+            Class<?> conn = Class.forName("sockettcpser$ConnectionStats");
+            Class<?> responder = Class.forName("sockettcpser$Responder");
+            MethodHandles.Lookup s = MethodHandles.privateLookupIn(ser, MethodHandles.lookup());
+
+            PARSE_TEXT = erase(s.findStatic(ser, "parseText",
+                    MethodType.methodType(request, String.class, String.class, long.class, conn, responder)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Targets() {}
+
+    /**
+     * Cambia los tipos privados por Object para poder llamar con invokeExact desde aquí.
+     */
+    private static MethodHandle erase(MethodHandle h) {
+        MethodType t = h.type();
+        for (int i = 0; i < t.parameterCount(); i++) {
+            if (!t.parameterType(i).isPrimitive() && t.parameterType(i) != String.class
+                    && t.parameterType(i) != PrintWriter.class) {
+                t = t.changeParameterType(i, Object.class);
+            }
+        }
+        if (!t.returnType().isPrimitive() && t.returnType() != String.class) t = t.changeReturnType(Object.class);
+        return h.asType(t);
+    }
+
+    /**
+     * Equivale a --payload en el cliente (x | random | text).
+     */
+    static void payloadKind(String kind) {
+        try {
+            PAYLOAD_KIND.invokeExact(kind);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Recorder que descarta las filas: se mide el formateo, no la escritura al disco.
+     */
+    static Object newRecorder() {
+        try {
+            return (Object) NEW_RECORDER.invokeExact(new PrintWriter(Writer.nullWriter()), -1);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**************************************************************
+         		Pontificia Universidad Javeriana
+     Autor: Daniela Medina
+     Fecha: 17 Octubre 2026
+     Materia: Sistemas Distribuidos
+     Tema: Laboratorio de Sockets
+****************************************************************/
+import java.io.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * AsyncLog - Shared low-overhead console logging for the socket servers.
+ *
+ * - Timestamps use a thread-safe DateTimeFormatter and are cached per millisecond,
+ *   so most calls reuse the same String instead of formatting again.
+ * - Lines are put in a bounded queue and written to the console by a background thread;
+ *   if the queue is full the line is dropped and counted instead of blocking the caller.
+ * - Per-message logs (one line per MSG/USR/datagram) go through a per-second rate limit
+ *   (--log-rate N); N = 0 turns them off entirely for benchmark runs, N < 0 = unlimited.
+ *   Callers check allowMessage() before building the text so disabled logs cost nothing.
+ *
+ * At shutdown the writer thread is joined once the queue is empty and later lines are
+ * written synchronously. Callers check the closing flag and enqueue under a shared read
+ * lock that shutdown takes exclusively, so no line can land in the queue after the drain.
+ */
+final class AsyncLog {
+
+    private static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    /**
+     * Timestamp formateado para un milisegundo concreto (inmutable, se publica entero).
+     */
+    private static final class CachedTs {
+        final long millis;
+        final String text;
+        CachedTs(long millis, String text) { this.millis = millis; this.text = text; }
+    }
+
+    private static volatile CachedTs cachedTs = new CachedTs(-1, "");
+
+    /**
+     * Línea pendiente de escribir y su destino.
+     */
+    private static final class Line {
+        final String text;
+        final boolean error;
+        Line(String text, boolean error) { this.text = text; this.error = error; }
+    }
+
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final BlockingQueue<Line> QUEUE = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    // Stdout con buffer propio (System.out hace flush en cada println); misma codificación que la consola
+    private static final PrintStream OUT = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false, System.out.charset());
+    private static final PrintStream ERR = System.err;
+    private static final LongAdder droppedLines = new LongAdder(); // Líneas perdidas por cola llena
+    private static volatile boolean closing = false;
+    private static final ReadWriteLock CLOSE_LOCK = new ReentrantReadWriteLock(); // emit (lectura) vs shutdown (escritura)
+
+    // Límite de logs por mensaje (ventana de un segundo)
+    private static volatile int messageRate = 1000; // Líneas por segundo (0 = apagado, < 0 = sin límite)
+    private static final AtomicLong windowSec = new AtomicLong();
+    private static final AtomicLong windowCount = new AtomicLong();
+    private static final LongAdder suppressed = new LongAdder(); // Logs por mensaje omitidos
+
+    private static final Thread WRITER = new Thread(AsyncLog::drainLoop, "async-log");
+
+    static {
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncLog::shutdown, "async-log-shutdown"));
+    }
+
+    private AsyncLog() { }
+
+    /**
+     * Fija el límite de logs por mensaje por segundo (0 = apagado, negativo = sin límite).
+     */
+    static void setMessageRate(int perSecond) { messageRate = perSecond; }
+
+    /**
+     * Timestamp "yyyy-MM-dd HH:mm:ss.SSS", recalculado solo cuando cambia el milisegundo.
+     */
+    static String ts() {
+        long now = System.currentTimeMillis();
+        CachedTs c = cachedTs;
+        if (c.millis != now) {
+            c = new CachedTs(now, FORMAT.format(Instant.ofEpochMilli(now)));
+            cachedTs = c;
+        }
+        return c.text;
+    }
+
+    /**
+     * Evento normal (conexiones, arranque, resúmenes): siempre se registra.
+     */
+    static void info(String msg) { emit(ts() + " " + msg, false); }
+
+    /**
+     * Error: se escribe en stderr.
+     */
+    static void error(String msg) { emit(ts() + " " + msg, true); }
+
+    /**
+     * Decide si el log de este mensaje entra en el límite por segundo. Llamar antes de
+     * construir el texto: si retorna false no hay que hacer nada más.
+     */
+    static boolean allowMessage() {
+        int rate = messageRate;
+        if (rate < 0) return true;
+        if (rate == 0) return false;
+        long sec = System.nanoTime() / 1_000_000_000L;
+        long w = windowSec.get();
+        if (w != sec && windowSec.compareAndSet(w, sec)) {
+            long omitted = windowCount.getAndSet(0) - rate;
+            if (omitted > 0) emit(ts() + " (" + omitted + " logs por mensaje omitidos en el último segundo)", false);
+        }
+        if (windowCount.incrementAndGet() <= rate) return true;
+        suppressed.increment();
+        return false;
+    }
+
+    /**
+     * Log por mensaje (usar solo si allowMessage() retornó true).
+     */
+    static void message(String msg) { emit(ts() + " " + msg, false); }
+
+    static long dropped() { return droppedLines.sum(); }
+
+    static long suppressed() { return suppressed.sum(); }
+
+    private static void emit(String text, boolean error) {
+        Line line = new Line(text, error);
+        CLOSE_LOCK.readLock().lock();
+        try {
+            if (!closing) {
+                if (!QUEUE.offer(line)) droppedLines.increment();
+                return;
+            }
+        } finally {
+            CLOSE_LOCK.readLock().unlock();
+        }
+        synchronized (OUT) {
+            write(line);
+            OUT.flush();
+        }
+    }
+
+    private static void drainLoop() {
+        try {
+            while (true) {
+                Line line = QUEUE.poll(100, TimeUnit.MILLISECONDS);
+                if (line == null) {
+                    if (closing) return; // Cola vacía y ya no entra nada más
+                    continue;
+                }
+                synchronized (OUT) {
+                    write(line);
+                    while ((line = QUEUE.poll()) != null) write(line); // Vaciar lo acumulado
+                    OUT.flush(); // Un flush por lote, no por línea
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void write(Line line) {
+        synchronized (OUT) {
+            if (line.error) {
+                OUT.flush(); // Mantener el orden relativo con stdout
+                ERR.println(line.text);
+            } else {
+                OUT.println(line.text);
+            }
+        }
+    }
+
+    private static void shutdown() {
+        CLOSE_LOCK.writeLock().lock();
+        try {
+            closing = true; // Desde aquí emit escribe directo; lo ya encolado lo termina el escritor
+        } finally {
+            CLOSE_LOCK.writeLock().unlock();
+        }
+        try {
+            WRITER.join(5000); // Incluye la línea que el escritor ya sacó de la cola
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        Line line;
+        synchronized (OUT) {
+            while ((line = QUEUE.poll()) != null) write(line);
+            long lost = droppedLines.sum();
+            if (lost > 0) OUT.println(ts() + " [LOG] líneas descartadas por cola llena=" + lost);
+            OUT.flush();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/**************************************************************
+         		Pontificia Universidad Javeriana
+     Autor: Daniela Medina
+     Fecha: 17 Octubre 2026
+     Materia: Sistemas Distribuidos
+     Tema: Laboratorio de Sockets
+****************************************************************/
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * BinaryFrame - Length-prefixed binary framing for the TCP benchmark pair.
+ *
+ * Negotiation (text, before switching):
+ *   client -> "HELLO|framing=bin"   (writeUTF, optionally "|codec=deflate")
+ *   server -> "HELLO|framing=bin"   (accepted) or "HELLO|framing=utf" (declined),
+ *             followed by "|codec=deflate" if compression was accepted
+ *
+ * Frame layout (big endian, 29-byte header followed by raw payload bytes):
+ *   type:1  seq:8  t1:8  t2:8  length:4  payload:length
+ *
+ * - MSG/USR: t1 = clientSendNs, t2 = 0, payload = message bytes
+ *            (with "codec=deflate": payload = deflated bytes, t2 = uncompressed length)
+ * - ACK:     t1 = serverRecvNs, t2 = serverSendNs, length = 0
+ * - BUSY:    same fields as ACK; the message was rejected by admission control
+ * - FIN:     closes the connection
+ *
+ * Header and payload are read/written through ByteBuffers owned by the frame and reused
+ * for every message; the payload buffer only grows (up to maxPayload) when a larger
+ * message arrives, so multi-megabyte payloads are supported.
+ */
+final class BinaryFrame {
+
+    static final int HEADER = 29; // Bytes de cabecera
+    static final byte MSG = 1, USR = 2, ACK = 3, FIN = 4, BUSY = 5; // Tipos de frame
+
+    private final int maxPayload; // Tamaño máximo aceptado para el payload
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER); // Cabecera reutilizable
+    private ByteBuffer payload; // Payload reutilizable (crece bajo demanda)
+
+    // Campos del último frame leído
+    byte type;
+    long seq;
+    long t1;
+    long t2;
+    int length;
+
+    BinaryFrame(int maxPayload) {
+        this.maxPayload = maxPayload;
+        this.payload = ByteBuffer.allocate(Math.min(maxPayload, 4096));
+    }
+
+    /**
+     * Payload del último frame leído (posición 0, límite = length).
+     */
+    ByteBuffer payload() { return payload; }
+
+    /**
+     * Lee un frame completo desde un stream bloqueante. Retorna false si el stream
+     * terminó limpiamente en un límite de frame.
+     */
+    boolean read(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) return false; // EOF entre frames
+        header.clear();
+        header.put((byte) first);
+        in.readFully(header.array(), 1, HEADER - 1);
+        header.position(0);
+        decodeHeader(header);
+        ensureCapacity(length);
+        in.readFully(payload.array(), 0, length);
+        payload.position(0).limit(length);
+        return true;
+    }
+
+    /**
+     * Escribe un frame en un stream bloqueante. El payload puede ser null (largo 0);
+     * se envían los bytes entre su posición y su límite sin modificarlos.
+     */
+    void write(DataOutputStream out, byte type, long seq, long t1, long t2, ByteBuffer body) throws IOException {
+        int len = body == null ? 0 : body.remaining();
+        header.clear();
+        header.put(type).putLong(seq).putLong(t1).putLong(t2).putInt(len);
+        out.write(header.array(), 0, HEADER);
+        if (len > 0) out.write(body.array(), body.arrayOffset() + body.position(), len);
+    }
+
+    /**
+     * Tamaño total del siguiente frame en un buffer no bloqueante (leído sin consumir),
+     * o HEADER si aún no está la cabecera completa.
+     */
+    int peekFrameSize(ByteBuffer in) throws IOException {
+        if (in.remaining() < HEADER) return HEADER;
+        int len = in.getInt(in.position() + HEADER - 4);
+        checkLength(len);
+        return HEADER + len;
+    }
+
+    /**
+     * Consume un frame completo de un buffer no bloqueante (previamente verificado con
+     * peekFrameSize). El payload queda en payload() solo si keepPayload es true.
+     */
+    void decode(ByteBuffer in, boolean keepPayload) throws IOException {
+        decodeHeader(in);
+        if (keepPayload) {
+            ensureCapacity(length);
+            payload.clear();
+            int limit = in.limit();
+            in.limit(in.position() + length);
+            payload.put(in);
+            in.limit(limit);
+            payload.flip();
+        } else {
+            in.position(in.position() + length); // Saltar payload sin copiarlo
+        }
+    }
+
+    /**
+     * Agrega un ACK o BUSY (frame sin payload) a un buffer de salida no bloqueante.
+     */
+    static void putReply(ByteBuffer out, byte type, long seq, long serverRecvNs, long serverSendNs) {
+        out.put(type).putLong(seq).putLong(serverRecvNs).putLong(serverSendNs).putInt(0);
+    }
+
+    private void decodeHeader(ByteBuffer h) throws IOException {
+        type = h.get();
+        seq = h.getLong();
+        t1 = h.getLong();
+        t2 = h.getLong();
+        length = h.getInt();
+        checkLength(length);
+    }
+
+    private void checkLength(int len) throws IOException {
+        if (len < 0 || len > maxPayload) throw new IOException("Frame inválido: largo " + len);
+    }
+
+    private void ensureCapacity(int len) {
+        if (payload.capacity() < len) payload = ByteBuffer.allocate(Math.min(maxPayload, Math.max(len, payload.capacity() * 2)));
+    }
+
+    /**
+     * Nombre del tipo de frame (para logs y CSV).
+     */
+    static String typeName(byte type) {
+        switch (type) {
+            case MSG: return "MSG";
+            case USR: return "USR";
+            case ACK: return "ACK";
+            case FIN: return "FIN";
+            case BUSY: return "BUSY";
+            default: return "RAW";
+        }
+    }
+}
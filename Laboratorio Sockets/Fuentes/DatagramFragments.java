@@ -0,0 +1,188 @@
+/**************************************************************
+         		Pontificia Universidad Javeriana
+     Autor: Daniela Medina
+     Fecha: 17 Octubre 2026
+     Materia: Sistemas Distribuidos
+     Tema: Laboratorio de Sockets
+****************************************************************/
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DatagramFragments - Application-level fragmentation for the UDP benchmark pair.
+ *
+ * A message that fits in one datagram (header + payload <= mtu - 28 bytes for IPv4/UDP):
+ *   "MSG|seq|clientSendNs|payloadLen|<payload>"
+ * A larger message is split into count datagrams that each fit:
+ *   "FRG|seq|clientSendNs|payloadLen|index|count|<chunk>"
+ * Every chunk but the last has ceil(payloadLen / count) bytes, so chunk i starts at
+ * i * ceil(payloadLen / count) and the receiver can place it without extra fields.
+ *
+ * The server feeds FRG datagrams to a Reassembler and answers the message only once all
+ * its fragments arrived, with the usual "ACK|seq|serverRecvNs|serverSendNs" (recv time of
+ * the last fragment). Incomplete messages are dropped after a timeout; there are no
+ * retransmissions, so one lost fragment loses the message, as with IP fragmentation.
+ */
+final class DatagramFragments {
+
+    static final int IP_UDP_HEADER = 28; // IPv4 (20) + UDP (8)
+    static final int MAX_DATAGRAM = 65507; // Payload UDP máximo sobre IPv4
+
+    private DatagramFragments() { }
+
+    /**
+     * Bytes de aplicación que caben en un datagrama con esa MTU (mtu <= 0: sin límite propio).
+     */
+    static int maxDatagram(int mtu) {
+        return mtu <= 0 ? MAX_DATAGRAM : Math.max(64, Math.min(MAX_DATAGRAM, mtu - IP_UDP_HEADER));
+    }
+
+    /**
+     * Arma los datagramas de un mensaje: uno "MSG" si cabe, o los "FRG" necesarios.
+     */
+    static List<byte[]> encode(long seq, long clientSendNs, byte[] payload, int maxDatagram) {
+        List<byte[]> out = new ArrayList<>(1);
+        byte[] header = ascii("MSG|" + seq + "|" + clientSendNs + "|" + payload.length + "|");
+        if (header.length + payload.length <= maxDatagram) {
+            out.add(concat(header, payload, 0, payload.length));
+            return out;
+        }
+        String prefix = "FRG|" + seq + "|" + clientSendNs + "|" + payload.length + "|";
+        int count = 1;
+        int chunk;
+        while (true) { // El encabezado crece con los dígitos de count: buscar el menor count que cabe
+            count++;
+            chunk = (payload.length + count - 1) / count;
+            int digits = String.valueOf(count).length();
+            if (prefix.length() + 2 * digits + 2 + chunk <= maxDatagram) break;
+            if (prefix.length() + 2 * digits + 2 >= maxDatagram) throw new IllegalArgumentException("MTU demasiado pequeña");
+        }
+        for (int i = 0; i < count; i++) {
+            int off = i * chunk;
+            int len = Math.min(chunk, payload.length - off);
+            out.add(concat(ascii(prefix + i + "|" + count + "|"), payload, off, len));
+        }
+        return out;
+    }
+
+    private static byte[] ascii(String s) { return s.getBytes(StandardCharsets.US_ASCII); }
+
+    private static byte[] concat(byte[] header, byte[] payload, int off, int len) {
+        byte[] d = new byte[header.length + len];
+        System.arraycopy(header, 0, d, 0, header.length);
+        System.arraycopy(payload, off, d, header.length, len);
+        return d;
+    }
+
+    /**
+     * Reensambla mensajes FRG por (emisor, seq). Lo comparten todos los hilos receptores
+     * del servidor: un mensaje puede llegar repartido entre varios workers.
+     */
+    static final class Reassembler {
+        private final Map<Key, Partial> pending = new ConcurrentHashMap<>();
+        private final long maxMessage; // Largo máximo de un mensaje reensamblado
+        private final int maxPending; // Mensajes incompletos simultáneos
+        private final long timeoutNs; // Vida máxima de un mensaje incompleto
+        final LongAdder fragments = new LongAdder(); // Fragmentos aceptados
+        final LongAdder completed = new LongAdder(); // Mensajes reensamblados
+        final LongAdder expired = new LongAdder(); // Mensajes descartados por timeout (faltó algún fragmento)
+        final LongAdder duplicates = new LongAdder(); // Fragmentos repetidos
+        final LongAdder rejected = new LongAdder(); // Fragmentos inválidos o sin espacio para reensamblar
+
+        Reassembler(long maxMessage, int maxPending, long timeoutMs) {
+            this.maxMessage = maxMessage;
+            this.maxPending = maxPending;
+            this.timeoutNs = timeoutMs * 1_000_000L;
+        }
+
+        /**
+         * Copia el fragmento [off, off+len) de src (sin mover su posición). Retorna el número
+         * de fragmentos si con este el mensaje quedó completo, 0 si aún faltan y -1 si el
+         * fragmento no es válido.
+         */
+        int offer(SocketAddress from, long seq, long payloadLen, long index, long count,
+                  ByteBuffer src, int off, int len, long nowNs) {
+            if (payloadLen <= 0 || payloadLen > maxMessage || count < 2 || count > payloadLen || index >= count) {
+                rejected.increment();
+                return -1;
+            }
+            int chunk = (int) ((payloadLen + count - 1) / count);
+            long start = index * chunk;
+            if (start >= payloadLen || len != Math.min(chunk, payloadLen - start)) {
+                rejected.increment();
+                return -1;
+            }
+            Key key = new Key(from, seq);
+            Partial p = pending.get(key);
+            if (p == null) {
+                if (pending.size() >= maxPending) {
+                    rejected.increment();
+                    return -1;
+                }
+                Partial created = new Partial((int) payloadLen, (int) count, nowNs);
+                p = pending.putIfAbsent(key, created);
+                if (p == null) p = created;
+            }
+            synchronized (p) {
+                if (p.data.length != payloadLen || p.count != count) {
+                    rejected.increment();
+                    return -1;
+                }
+                if (p.received.get((int) index)) {
+                    duplicates.increment();
+                    return 0;
+                }
+                src.get(off, p.data, (int) start, len);
+                p.received.set((int) index);
+                fragments.increment();
+                if (--p.missing > 0) return 0;
+            }
+            pending.remove(key);
+            completed.increment();
+            return (int) count;
+        }
+
+        /**
+         * Descarta los mensajes incompletos más viejos que el timeout.
+         */
+        void expire(long nowNs) {
+            for (Iterator<Partial> it = pending.values().iterator(); it.hasNext(); ) {
+                if (nowNs - it.next().firstNs >= timeoutNs) {
+                    it.remove();
+                    expired.increment();
+                }
+            }
+        }
+
+        int pending() { return pending.size(); }
+    }
+
+    private record Key(SocketAddress from, long seq) { }
+
+    /**
+     * Mensaje en reensamblado: bytes ya ubicados y fragmentos recibidos.
+     */
+    private static final class Partial {
+        final byte[] data;
+        final int count;
+        final BitSet received;
+        final long firstNs; // Llegada del primer fragmento
+        int missing;
+
+        Partial(int payloadLen, int count, long firstNs) {
+            this.data = new byte[payloadLen];
+            this.count = count;
+            this.received = new BitSet(count);
+            this.firstNs = firstNs;
+            this.missing = count;
+        }
+    }
+}
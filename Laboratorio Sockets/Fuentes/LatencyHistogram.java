@@ -0,0 +1,249 @@
+/**************************************************************
+         		Pontificia Universidad Javeriana
+     Autor: Daniela Medina
+     Fecha: 17 Octubre 2026
+     Materia: Sistemas Distribuidos
+     Tema: Laboratorio de Sockets
+****************************************************************/
+import java.io.*;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * LatencyHistogram - Fixed-memory log-linear latency histogram (nanoseconds).
+ *
+ * Values below 2^p are counted exactly; above that, every power of two is split into
+ * 2^(p-1) linear sub-buckets, so the relative error of any reported value is at most
+ * 2^-(p-1). p is derived from the requested significant decimal digits (2 digits => ~1%).
+ * Recording only increments a slot of a preallocated long[] (no allocation). Histograms
+ * with the same configuration can be merged, and saved to / loaded from a compact sparse
+ * file to combine runs from several machines.
+ *
+ * Usage (files):
+ *   java LatencyHistogram print run.hist
+ *   java LatencyHistogram merge total.hist maquina1.hist maquina2.hist ...
+ */
+final class LatencyHistogram {
+
+    private static final int MAGIC = 0x4C48_4931; // "LHI1"
+    static final long DEFAULT_MAX_NS = 3_600_000_000_000L; // 1 hora
+
+    private final int digits; // Dígitos significativos pedidos
+    private final int p; // Bits de precisión
+    private final long maxValue; // Mayor valor registrable (los mayores se saturan)
+    private final long[] counts;
+    private long total; // Número de muestras
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+    private double sum; // Para el promedio
+    private double sumSq; // Para la desviación estándar
+
+    LatencyHistogram(int digits) { this(digits, DEFAULT_MAX_NS); }
+
+    LatencyHistogram(int digits, long maxValue) {
+        this.digits = Math.max(1, Math.min(4, digits));
+        this.p = 64 - Long.numberOfLeadingZeros((long) Math.pow(10, this.digits) - 1) + 1; // 2 dígitos => p = 8
+        this.maxValue = Math.max(maxValue, 1L << p);
+        this.counts = new long[indexOf(this.maxValue) + 1];
+    }
+
+    /**
+     * Índice del bucket de un valor (ver esquema en la cabecera).
+     */
+    private int indexOf(long v) {
+        if (v < (1L << p)) return (int) v;
+        int msb = 63 - Long.numberOfLeadingZeros(v);
+        int shift = msb - p + 1;
+        long sub = v >>> shift; // En [2^(p-1), 2^p)
+        return (1 << p) + (shift - 1) * (1 << (p - 1)) + (int) (sub - (1L << (p - 1)));
+    }
+
+    /**
+     * Mayor valor que cae en el bucket idx.
+     */
+    private long highestValueOf(int idx) {
+        if (idx < (1 << p)) return idx;
+        int rel = idx - (1 << p);
+        int shift = rel / (1 << (p - 1)) + 1;
+        long sub = (rel % (1 << (p - 1))) + (1L << (p - 1));
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Registra una muestra en nanosegundos. Valores negativos cuentan como 0.
+     */
+    void record(long ns) {
+        long v = ns < 0 ? 0 : Math.min(ns, maxValue);
+        counts[indexOf(v)]++;
+        total++;
+        if (v < min) min = v;
+        if (v > max) max = v;
+        sum += v;
+        sumSq += (double) v * v;
+    }
+
+    /**
+     * Suma otro histograma con la misma configuración.
+     */
+    void merge(LatencyHistogram o) {
+        if (o.p != p || o.counts.length != counts.length) {
+            throw new IllegalArgumentException("Histogramas con distinta configuración");
+        }
+        for (int i = 0; i < counts.length; i++) counts[i] += o.counts[i];
+        total += o.total;
+        if (o.total > 0) {
+            min = Math.min(min, o.min);
+            max = Math.max(max, o.max);
+        }
+        sum += o.sum;
+        sumSq += o.sumSq;
+    }
+
+    /**
+     * Vacía el histograma para reutilizarlo (por ejemplo, uno por intervalo de tiempo).
+     */
+    void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+        sum = 0;
+        sumSq = 0;
+    }
+
+    long count() { return total; }
+
+    long min() { return total > 0 ? min : 0; }
+
+    long max() { return max; }
+
+    double mean() { return total > 0 ? sum / total : 0; }
+
+    double stddev() {
+        if (total == 0) return 0;
+        double m = mean();
+        return Math.sqrt(Math.max(0, sumSq / total - m * m));
+    }
+
+    /**
+     * Valor del percentil q (0..100) en nanosegundos, con el error relativo del bucket.
+     */
+    long percentile(double q) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highestValueOf(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * Resumen en milisegundos: n, min, promedio, p50/p90/p99/p99.9, max y desviación.
+     */
+    String summaryMs() { return summary(1e6); }
+
+    /**
+     * Mismo resumen en microsegundos (tiempos de procesamiento muy cortos).
+     */
+    String summaryUs() { return summary(1e3); }
+
+    private String summary(double div) {
+        return String.format(Locale.US,
+                "n=%d, min=%.3f, avg=%.3f, p50=%.3f, p90=%.3f, p99=%.3f, p99.9=%.3f, max=%.3f, std=%.3f",
+                total, min() / div, mean() / div, percentile(50) / div, percentile(90) / div,
+                percentile(99) / div, percentile(99.9) / div, max() / div, stddev() / div);
+    }
+
+    // ================== SERIALIZACIÓN ==================
+    /**
+     * Formato compacto: cabecera fija y luego solo los buckets no vacíos como
+     * pares (salto de índice, cuenta) en varint.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(digits);
+        out.writeLong(maxValue);
+        out.writeLong(total);
+        out.writeLong(min);
+        out.writeLong(max);
+        out.writeDouble(sum);
+        out.writeDouble(sumSq);
+        int nonZero = 0;
+        for (long c : counts) if (c != 0) nonZero++;
+        writeVarLong(out, nonZero);
+        int last = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) continue;
+            writeVarLong(out, i - last);
+            writeVarLong(out, counts[i]);
+            last = i;
+        }
+    }
+
+    static LatencyHistogram readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("No es un archivo de histograma");
+        LatencyHistogram h = new LatencyHistogram(in.readByte(), in.readLong());
+        h.total = in.readLong();
+        h.min = in.readLong();
+        h.max = in.readLong();
+        h.sum = in.readDouble();
+        h.sumSq = in.readDouble();
+        long nonZero = readVarLong(in);
+        int idx = 0;
+        for (long k = 0; k < nonZero; k++) {
+            idx += (int) readVarLong(in);
+            h.counts[idx] = readVarLong(in);
+        }
+        return h;
+    }
+
+    void save(String path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            writeTo(out);
+        }
+    }
+
+    static LatencyHistogram load(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            return readFrom(in);
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+    }
+
+    /**
+     * Herramienta de línea de comando para imprimir y combinar archivos .hist.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("print")) {
+            for (int i = 1; i < args.length; i++) {
+                System.out.println(args[i] + ": " + load(args[i]).summaryMs() + " (ms)");
+            }
+        } else if (args.length >= 3 && args[0].equals("merge")) {
+            LatencyHistogram total = load(args[2]);
+            for (int i = 3; i < args.length; i++) total.merge(load(args[i]));
+            total.save(args[1]);
+            System.out.println(args[1] + ": " + total.summaryMs() + " (ms)");
+        } else {
+            System.out.println("Uso: java LatencyHistogram print a.hist [b.hist ...]");
+            System.out.println("     java LatencyHistogram merge salida.hist a.hist b.hist [...]");
+        }
+    }
+}
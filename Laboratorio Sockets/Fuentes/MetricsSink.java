@@ -0,0 +1,191 @@
+/**************************************************************
+         		Pontificia Universidad Javeriana
+     Autor: Daniela Medina
+     Fecha: 17 Octubre 2026
+     Materia: Sistemas Distribuidos
+     Tema: Laboratorio de Sockets
+****************************************************************/
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * MetricsSink - Asynchronous CSV writer with group commit.
+ *
+ * Producers (connection handlers) claim a fixed-size slot in a lock-free ring buffer,
+ * fill its fields and publish it; they never touch the disk. A single writer thread
+ * drains the ring, formats the rows and flushes in batches (every batchSize rows or
+ * every flushMs milliseconds, whichever comes first). When the ring is full the record
+ * is dropped and counted instead of blocking the producer.
+ *
+ * Usage:
+ *   long slot = sink.claim();
+ *   if (slot >= 0) { sink.ref(slot, 0, type); sink.val(slot, 0, seq); ...; sink.publish(slot); }
+ */
+final class MetricsSink implements Closeable {
+
+    /**
+     * Da formato a un registro publicado. Se ejecuta solo en el hilo escritor.
+     */
+    interface RowFormatter {
+        void format(StringBuilder row, Object[] refs, int refOff, long[] vals, int valOff);
+    }
+
+    private final int capacity; // Número de slots (potencia de 2)
+    private final int mask;
+    private final int refFields, valFields; // Campos por registro
+    private final Object[] refs; // Campos objeto de todos los slots
+    private final long[] vals; // Campos primitivos de todos los slots
+    private final AtomicLongArray sequence; // Secuencia por slot (cola acotada de Vyukov)
+    private final AtomicLong tail = new AtomicLong(); // Próxima posición a reclamar (productores)
+    private volatile long head; // Próxima posición a consumir (solo la escribe el hilo escritor)
+
+    private final Writer out;
+    private final RowFormatter formatter;
+    private final int batchSize;
+    private final long flushNs;
+    private final LongAdder dropped = new LongAdder(); // Registros descartados por ring lleno
+    private final LongAdder written = new LongAdder(); // Registros escritos al archivo
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    MetricsSink(Writer out, int capacity, int refFields, int valFields,
+                int batchSize, long flushMs, RowFormatter formatter) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1) << 1); // Redondear a potencia de 2
+        this.mask = this.capacity - 1;
+        this.refFields = refFields;
+        this.valFields = valFields;
+        this.refs = new Object[this.capacity * refFields];
+        this.vals = new long[this.capacity * valFields];
+        this.sequence = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) sequence.set(i, i);
+        this.out = out;
+        this.formatter = formatter;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushNs = Math.max(1, flushMs) * 1_000_000L;
+        this.writer = new Thread(this::drainLoop, "metrics-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Reserva un slot para un registro. Retorna la posición o -1 si el ring está lleno
+     * (el registro se cuenta como descartado).
+     */
+    long claim() {
+        long pos = tail.get();
+        while (true) {
+            int idx = (int) (pos & mask);
+            long diff = sequence.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) return pos; // Slot reservado
+                pos = tail.get();
+            } else if (diff < 0) {
+                dropped.increment(); // El escritor no ha liberado este slot: ring lleno
+                return -1;
+            } else {
+                pos = tail.get(); // Otro productor avanzó, reintentar
+            }
+        }
+    }
+
+    void ref(long pos, int field, Object value) { refs[(int) (pos & mask) * refFields + field] = value; }
+
+    void val(long pos, int field, long value) { vals[(int) (pos & mask) * valFields + field] = value; }
+
+    /**
+     * Publica el slot para que el escritor lo consuma (escritura con semántica release).
+     */
+    void publish(long pos) { sequence.lazySet((int) (pos & mask), pos + 1); }
+
+    long dropped() { return dropped.sum(); }
+
+    long written() { return written.sum(); }
+
+    /**
+     * Registros publicados o reservados que aún no se han escrito.
+     */
+    long depth() { return Math.max(0, tail.get() - head); }
+
+    /**
+     * Bucle del hilo escritor: drena el ring y hace flush por tamaño o por tiempo.
+     */
+    private void drainLoop() {
+        StringBuilder row = new StringBuilder(256);
+        int pendingRows = 0;
+        long lastFlush = System.nanoTime();
+        while (running) {
+            int n = drain(row);
+            pendingRows += n;
+            long now = System.nanoTime();
+            if (pendingRows >= batchSize || (pendingRows > 0 && now - lastFlush >= flushNs)) {
+                flush();
+                pendingRows = 0;
+                lastFlush = now;
+            }
+            if (n == 0) LockSupport.parkNanos(200_000); // Nada que escribir: esperar 0.2 ms
+        }
+    }
+
+    /**
+     * Consume todos los registros publicados consecutivos. Retorna cuántos escribió.
+     */
+    private int drain(StringBuilder row) {
+        int n = 0;
+        long pos = head;
+        while (true) {
+            int idx = (int) (pos & mask);
+            if (sequence.get(idx) != pos + 1) break; // Slot no publicado todavía
+            row.setLength(0);
+            formatter.format(row, refs, idx * refFields, vals, idx * valFields);
+            for (int f = 0; f < refFields; f++) refs[idx * refFields + f] = null; // No retener objetos
+            sequence.lazySet(idx, pos + capacity); // Liberar el slot para la siguiente vuelta
+            pos++;
+            head = pos;
+            try {
+                out.append(row);
+            } catch (IOException e) {
+                System.err.println("Error escribiendo CSV: " + e.getMessage());
+            }
+            n++;
+        }
+        written.add(n);
+        return n;
+    }
+
+    private void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error escribiendo CSV: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Detiene el escritor, drena lo pendiente y cierra el archivo.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        drain(new StringBuilder(256));
+        out.close();
+    }
+
+    /**
+     * Agrega nanosegundos como milisegundos con 6 decimales (exacto, sin printf).
+     */
+    static void appendNsAsMs(StringBuilder sb, long ns) {
+        if (ns < 0) { sb.append('-'); ns = -ns; }
+        sb.append(ns / 1_000_000).append('.');
+        long frac = ns % 1_000_000;
+        for (long d = 100_000; d > 1 && frac < d; d /= 10) sb.append('0');
+        sb.append(frac);
+    }
+}
@@ -0,0 +1,102 @@
+/**************************************************************
+         		Pontificia Universidad Javeriana
+     Autor: Daniela Medina
+     Fecha: 17 Octubre 2026
+     Materia: Sistemas Distribuidos
+     Tema: Laboratorio de Sockets
+****************************************************************/
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * PayloadCodec - Per-thread Deflater/Inflater for the negotiated "codec=deflate" mode.
+ *
+ * Each thread keeps its own Deflater, Inflater and output buffer and resets them for
+ * every message, so no codec objects are created per message and threads never share
+ * (or lock) a codec. Output buffers are heap ByteBuffers because BinaryFrame writes
+ * from the backing array; they only grow when a larger message arrives.
+ *
+ * In a compressed MSG/USR frame the payload holds the deflated bytes and t2 carries the
+ * uncompressed length (see BinaryFrame).
+ */
+final class PayloadCodec {
+
+    private static volatile int level = Deflater.BEST_SPEED; // Nivel de compresión del emisor
+
+    /**
+     * Estado de compresión de un hilo.
+     */
+    private static final class State {
+        final Deflater deflater = new Deflater(level);
+        final Inflater inflater = new Inflater();
+        ByteBuffer deflated = ByteBuffer.allocate(4096);
+        ByteBuffer inflated = ByteBuffer.allocate(4096);
+    }
+
+    private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+
+    private PayloadCodec() { }
+
+    /**
+     * Fija el nivel de Deflater (1 = más rápido ... 9 = mayor compresión) para los hilos
+     * que aún no crearon su compresor.
+     */
+    static void setLevel(int newLevel) { level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, newLevel)); }
+
+    static int level() { return level; }
+
+    /**
+     * Comprime los bytes entre la posición y el límite de src (sin moverlos) y retorna
+     * el buffer del hilo con el resultado (posición 0). Válido hasta la siguiente llamada.
+     */
+    static ByteBuffer deflate(ByteBuffer src) {
+        State s = STATE.get();
+        Deflater d = s.deflater;
+        int pos = src.position();
+        d.reset();
+        d.setInput(src);
+        d.finish();
+        ByteBuffer out = s.deflated;
+        out.clear();
+        while (!d.finished()) {
+            if (!out.hasRemaining()) out = s.deflated = grow(out, out.capacity() * 2);
+            d.deflate(out);
+        }
+        src.position(pos);
+        return out.flip();
+    }
+
+    /**
+     * Descomprime src (exactamente rawLen bytes esperados) en el buffer del hilo.
+     */
+    static ByteBuffer inflate(ByteBuffer src, int rawLen) throws IOException {
+        State s = STATE.get();
+        Inflater inf = s.inflater;
+        int pos = src.position();
+        if (s.inflated.capacity() < rawLen + 1) s.inflated = ByteBuffer.allocate(rawLen + 1);
+        ByteBuffer out = s.inflated;
+        out.clear().limit(rawLen + 1); // Un byte extra: deja llegar al final del stream y detecta excesos
+        inf.reset();
+        inf.setInput(src);
+        try {
+            while (out.hasRemaining() && !inf.finished()) {
+                if (inf.inflate(out) == 0 && (inf.needsInput() || inf.needsDictionary())) break;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Payload comprimido inválido: " + e.getMessage());
+        } finally {
+            src.position(pos);
+        }
+        if (out.position() != rawLen || !inf.finished()) throw new IOException("Payload comprimido con largo distinto a " + rawLen);
+        return out.flip();
+    }
+
+    private static ByteBuffer grow(ByteBuffer full, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        full.flip();
+        return bigger.put(full);
+    }
+}
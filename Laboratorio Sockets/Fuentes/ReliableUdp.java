@@ -0,0 +1,603 @@
+/**************************************************************
+         		Pontificia Universidad Javeriana
+     Autor: Daniela Medina
+     Fecha: 17 Octubre 2026
+     Materia: Sistemas Distribuidos
+     Tema: Laboratorio de Sockets
+****************************************************************/
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ReliableUdp - Reliable bulk transfer over the UDP benchmark pair (socketudpcli --bulk).
+ *
+ * Protocol (text headers, raw bytes after the last '|'):
+ *   client -> "RUDP|session|totalBytes|segmentSize"       open; server -> "RUDP-OK|session"
+ *   client -> "DAT|session|seq|sendNs|<segment bytes>"      segment seq (0-based)
+ *   server -> "SACK|session|cum|echoNs|s-e,s-e,..."         for every DAT received
+ *   client -> "RFIN|session"                                 once everything is acknowledged
+ *   server -> "RDONE|session|bytes|firstNs|lastNs|duplicates"
+ *   server -> "RUDP-RST|session"                             unknown session
+ * cum is the next segment the server is missing (every segment below it arrived); each s-e
+ * is a received range [s, e) above cum, the one holding the segment just received first,
+ * then the lowest ones, at most SACK_BLOCKS. The server rejects segments below MIN_SEGMENT
+ * bytes and transfers of more than MAX_SEGMENTS segments (no RUDP-OK). echoNs returns the sendNs of that DAT, so every
+ * SACK is an RTT sample, retransmissions included (no Karn ambiguity).
+ *
+ * Sender:
+ * - Retransmission timeout as in RFC 6298: SRTT and RTTVAR from the samples,
+ *   RTO = SRTT + 4 * RTTVAR (at least --rto-min), doubled on every expiry.
+ * - Loss detection by time, as RACK (RFC 8985): a segment in flight is lost when a segment
+ *   sent after it was delivered and more than RTT + minRTT/4 have passed since it was sent.
+ *   Lost segments (and, after an RTO, everything in flight) are retransmitted first.
+ * - Congestion window in segments, AIMD: slow start from --cwnd-init up to ssthresh, then
+ *   +1 segment per RTT; the first loss of a window halves it (fast recovery, no growth until
+ *   the segments sent before the loss are acknowledged) and an RTO drops it to 1.
+ * - There is no receive window: the server keeps a bitmap per session and discards the bytes.
+ */
+final class ReliableUdp {
+
+    static final int SACK_BLOCKS = 4; // Rangos por SACK
+    static final int MAX_HEADER = 56; // "DAT|" + session + seq + sendNs con separadores, en el peor caso
+    private static final long MAX_RTO_NS = 60_000_000_000L;
+    private static final int OPEN_TRIES = 10; // Intentos de RUDP y de RFIN
+    static final int MIN_SEGMENT = 512; // Segmento más chico que acepta el servidor
+    static final int MAX_SEGMENTS = 1 << 24; // Segmentos por transferencia (mapa de bits de 2 MB en el servidor)
+
+    private ReliableUdp() { }
+
+    /**
+     * Resultado de una transferencia.
+     */
+    static final class Result {
+        long bytes, elapsedNs; // Desde el primer DAT hasta el último SACK
+        long segments, transmissions, retransmissions, timeouts, recoveries;
+        double maxCwnd;
+        long srttNs, rtoNs;
+        long serverRecvNs = -1; // Primer a último DAT en el servidor
+        long serverDuplicates = -1; // DAT repetidos que vio el servidor
+
+        double mbPerSec() { return bytes / 1e6 / (elapsedNs / 1e9); }
+
+        double retransPct() { return transmissions > 0 ? 100.0 * retransmissions / transmissions : 0; }
+    }
+
+    /**
+     * Emisor de una transferencia. Lo usa un solo hilo: envía según la ventana, recibe
+     * los SACK con el timeout del próximo evento (RTO, reorden o muestra de la serie).
+     */
+    static final class Sender {
+        private final DatagramSocket socket;
+        private final InetSocketAddress server;
+        private final ByteBuffer data; // Bytes a enviar (archivo mapeado)
+        private final int segSize;
+        private final int segments;
+        private final long rtoMinNs;
+        private final PrintWriter series; // null = sin serie
+        private final long seriesNs;
+        private final String seriesTag; // Primera columna de la serie (repetición)
+        private final long session = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+
+        private final long[] sentNs; // seq -> última transmisión (0 = nunca)
+        private final BitSet acked = new BitSet();
+        private final BitSet lost = new BitSet(); // Marcados perdidos y aún sin retransmitir
+        private int[] ringSeq = new int[1024]; // Transmisiones en vuelo por orden de envío (RACK)
+        private long[] ringTs = new long[1024];
+        private int ringHead, ringTail;
+
+        private int cum, nextSeq, pipe; // Primer seq sin confirmar, próximo nuevo, segmentos en vuelo
+        private double cwnd, ssthresh = Double.POSITIVE_INFINITY;
+        private int recoveryEnd = -1; // En recuperación mientras cum <= recoveryEnd
+        private long srttNs, rttvarNs, rtoNs = 1_000_000_000L, minRttNs = Long.MAX_VALUE, lastRttNs;
+        private long rackXmitNs; // Envío más reciente entre los segmentos entregados
+        private long rtoStartNs; // Armado del temporizador de retransmisión
+        private final Result r = new Result();
+
+        private final byte[] out; // Datagrama DAT en construcción
+        private final DatagramPacket outPacket;
+        private final byte[] in = new byte[2048];
+        private final DatagramPacket inPacket = new DatagramPacket(in, in.length);
+        private final int[] blocks = new int[2 * SACK_BLOCKS];
+
+        Sender(DatagramSocket socket, InetSocketAddress server, ByteBuffer data, int segSize, int initCwnd,
+               long rtoMinMs, PrintWriter series, long seriesMs, String seriesTag) {
+            this.socket = socket;
+            this.server = server;
+            this.data = data;
+            this.segSize = segSize;
+            this.segments = (int) ((data.remaining() + (long) segSize - 1) / segSize);
+            this.rtoMinNs = rtoMinMs * 1_000_000L;
+            this.series = series;
+            this.seriesNs = Math.max(1, seriesMs) * 1_000_000L;
+            this.seriesTag = seriesTag;
+            this.sentNs = new long[segments];
+            this.cwnd = Math.max(1, initCwnd);
+            this.out = new byte[MAX_HEADER + segSize];
+            this.outPacket = new DatagramPacket(out, out.length, server);
+        }
+
+        /**
+         * Abre la sesión, envía todos los segmentos hasta que estén confirmados y cierra.
+         */
+        Result transfer() throws IOException {
+            r.bytes = data.remaining();
+            r.segments = segments;
+            String ok = request("RUDP|" + session + "|" + r.bytes + "|" + segSize, "RUDP-OK|");
+            if (ok == null) throw new IOException("El servidor no respondió a RUDP (¿socketudpser sin soporte de --bulk?)");
+
+            long startNs = System.nanoTime(), nextSampleNs = startNs + seriesNs;
+            long lastCum = 0, lastTx = 0, lastRetx = 0;
+            if (series != null) sample(startNs, startNs, 0, 0, 0);
+            while (cum < segments) {
+                long now = System.nanoTime();
+                if (pipe > 0 && now - rtoStartNs >= rtoNs) onTimeout(now);
+                detectLosses(now);
+                sendAllowed();
+
+                if (series != null && now >= nextSampleNs) {
+                    sample(startNs, now, cum - lastCum, r.transmissions - lastTx, r.retransmissions - lastRetx);
+                    lastCum = cum;
+                    lastTx = r.transmissions;
+                    lastRetx = r.retransmissions;
+                    nextSampleNs += seriesNs;
+                }
+
+                long wait = pipe > 0 ? rtoStartNs + rtoNs - now : rtoNs; // Próximo evento
+                if (series != null) wait = Math.min(wait, nextSampleNs - now);
+                if (rackXmitNs > 0) wait = Math.min(wait, reorderWindowNs());
+                socket.setSoTimeout((int) Math.max(1, wait / 1_000_000));
+                try {
+                    socket.receive(inPacket);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                onPacket(System.nanoTime());
+            }
+            long endNs = System.nanoTime();
+            r.elapsedNs = endNs - startNs;
+            if (series != null) sample(startNs, endNs, cum - lastCum, r.transmissions - lastTx, r.retransmissions - lastRetx);
+            r.srttNs = srttNs;
+            r.rtoNs = rtoNs;
+
+            String done = request("RFIN|" + session, "RDONE|");
+            if (done != null) { // RDONE|session|bytes|firstNs|lastNs|duplicates
+                String[] p = done.split("\\|");
+                if (Long.parseLong(p[2]) != r.bytes) throw new IOException("El servidor recibió " + p[2] + " de " + r.bytes + " bytes");
+                r.serverRecvNs = Long.parseLong(p[4]) - Long.parseLong(p[3]);
+                r.serverDuplicates = Long.parseLong(p[5]);
+            }
+            return r;
+        }
+
+        /**
+         * Envía un mensaje de control hasta recibir la respuesta con el prefijo dado
+         * (reintenta cada RTO). Retorna null si no llega.
+         */
+        private String request(String msg, String expect) throws IOException {
+            byte[] b = msg.getBytes(StandardCharsets.US_ASCII);
+            String prefix = expect + session;
+            for (int t = 0; t < OPEN_TRIES; t++) {
+                long sendNs = System.nanoTime();
+                socket.send(new DatagramPacket(b, b.length, server));
+                long deadline = sendNs + rtoNs;
+                while (true) {
+                    long left = (deadline - System.nanoTime()) / 1_000_000;
+                    if (left <= 0) break;
+                    socket.setSoTimeout((int) left);
+                    try {
+                        socket.receive(inPacket);
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+                    String reply = new String(in, 0, inPacket.getLength(), StandardCharsets.US_ASCII);
+                    if (reply.startsWith("RUDP-RST|" + session)) throw new IOException("El servidor no conoce la sesión " + session);
+                    if (reply.equals(prefix) || reply.startsWith(prefix + "|")) {
+                        if (srttNs == 0) updateRto(System.nanoTime() - sendNs); // Primera muestra de RTT
+                        return reply;
+                    }
+                }
+                rtoNs = Math.min(rtoNs * 2, MAX_RTO_NS);
+            }
+            return null;
+        }
+
+        /**
+         * Envía retransmisiones (primero) y segmentos nuevos mientras la ventana lo permita.
+         */
+        private void sendAllowed() throws IOException {
+            while (pipe < (int) cwnd) {
+                int s = lost.nextSetBit(cum);
+                if (s >= 0 && s < nextSeq) {
+                    lost.clear(s);
+                    r.retransmissions++;
+                } else if (nextSeq < segments) {
+                    s = nextSeq++;
+                } else {
+                    break;
+                }
+                sendSegment(s);
+            }
+        }
+
+        private void sendSegment(int s) throws IOException {
+            long now = System.nanoTime();
+            int off = (int) ((long) s * segSize);
+            int len = Math.min(segSize, data.limit() - off);
+            int p = 0;
+            out[p++] = 'D'; out[p++] = 'A'; out[p++] = 'T'; out[p++] = '|';
+            p = putLong(out, p, session);
+            out[p++] = '|';
+            p = putLong(out, p, s);
+            out[p++] = '|';
+            p = putLong(out, p, now);
+            out[p++] = '|';
+            data.get(off, out, p, len);
+            outPacket.setData(out, 0, p + len);
+            socket.send(outPacket);
+            sentNs[s] = now;
+            pushRing(s, now);
+            if (pipe++ == 0) rtoStartNs = now;
+            r.transmissions++;
+        }
+
+        /**
+         * Procesa un SACK: RTT, segmentos confirmados, ventana y detección de pérdidas.
+         */
+        private void onPacket(long now) throws IOException {
+            int len = inPacket.getLength();
+            if (len > 9 && in[0] == 'R' && in[5] == 'R' // RUDP-RST: el servidor perdió la sesión (¿reiniciado?)
+                    && new String(in, 0, len, StandardCharsets.US_ASCII).equals("RUDP-RST|" + session)) {
+                throw new IOException("El servidor no conoce la sesión " + session);
+            }
+            if (len < 5 || in[0] != 'S' || in[1] != 'A' || in[2] != 'C' || in[3] != 'K' || in[4] != '|') return;
+            // SACK|session|cum|echoNs|s-e,s-e
+            long[] f = new long[3];
+            int i = 5;
+            for (int k = 0; k < 3; k++) {
+                long v = 0;
+                for (; i < len && in[i] != '|'; i++) v = v * 10 + (in[i] - '0');
+                f[k] = v;
+                i++;
+            }
+            if (f[0] != session) return;
+            int nBlocks = 0;
+            while (i < len && nBlocks < SACK_BLOCKS) {
+                long a = 0, b = 0;
+                for (; i < len && in[i] != '-'; i++) a = a * 10 + (in[i] - '0');
+                for (i++; i < len && in[i] != ','; i++) b = b * 10 + (in[i] - '0');
+                i++;
+                blocks[2 * nBlocks] = (int) a;
+                blocks[2 * nBlocks + 1] = (int) Math.min(b, segments);
+                nBlocks++;
+            }
+
+            long echoNs = f[2];
+            if (echoNs > 0 && echoNs <= now) {
+                updateRto(now - echoNs);
+                rackXmitNs = Math.max(rackXmitNs, echoNs); // El DAT que generó este SACK fue entregado
+            }
+            int newly = 0;
+            int newCum = (int) Math.min(f[1], segments);
+            for (int s = cum; s < newCum; s++) newly += markAcked(s);
+            for (int k = 0; k < nBlocks; k++) {
+                for (int s = Math.max(blocks[2 * k], cum); s < blocks[2 * k + 1]; s++) newly += markAcked(s);
+            }
+            cum = acked.nextClearBit(cum);
+
+            if (newly > 0) {
+                rtoStartNs = now; // RFC 6298 (5.3): reiniciar el temporizador con cada avance
+                if (cum > recoveryEnd) {
+                    if (cwnd < ssthresh) cwnd += newly; // Slow start
+                    else cwnd += (double) newly / cwnd; // Aumento aditivo: +1 segmento por RTT
+                    r.maxCwnd = Math.max(r.maxCwnd, cwnd);
+                }
+            }
+            detectLosses(now);
+        }
+
+        private int markAcked(int s) {
+            if (acked.get(s) || sentNs[s] == 0) return 0;
+            acked.set(s);
+            if (lost.get(s)) lost.clear(s); // Se había dado por perdido, pero llegó
+            else pipe--;
+            return 1;
+        }
+
+        /**
+         * RACK: recorre las transmisiones en vuelo por orden de envío y marca perdidas las
+         * enviadas antes del último segmento entregado hace más de RTT + ventana de reorden.
+         */
+        private void detectLosses(long now) {
+            boolean loss = false;
+            long limit = lastRttNs + reorderWindowNs();
+            while (ringHead != ringTail) {
+                int idx = ringHead & (ringSeq.length - 1);
+                int s = ringSeq[idx];
+                long ts = ringTs[idx];
+                if (acked.get(s) || lost.get(s) || sentNs[s] != ts) { ringHead++; continue; } // Entrada vieja
+                if (ts >= rackXmitNs || now - ts < limit) break; // Las siguientes son aún más recientes
+                lost.set(s);
+                pipe--;
+                ringHead++;
+                loss = true;
+            }
+            if (loss && cum > recoveryEnd) { // Primera pérdida de la ventana: reducción multiplicativa
+                ssthresh = Math.max(cwnd / 2, 2);
+                cwnd = ssthresh;
+                recoveryEnd = nextSeq - 1;
+                r.recoveries++;
+            }
+        }
+
+        private long reorderWindowNs() { return minRttNs == Long.MAX_VALUE ? 0 : minRttNs / 4; }
+
+        /**
+         * Vence el RTO: todo lo que estaba en vuelo se da por perdido y la ventana vuelve a 1.
+         */
+        private void onTimeout(long now) {
+            while (ringHead != ringTail) {
+                int idx = ringHead & (ringSeq.length - 1);
+                int s = ringSeq[idx];
+                if (!acked.get(s) && !lost.get(s) && sentNs[s] == ringTs[idx]) lost.set(s);
+                ringHead++;
+            }
+            pipe = 0;
+            ssthresh = Math.max(cwnd / 2, 2);
+            cwnd = 1;
+            recoveryEnd = nextSeq - 1;
+            rtoNs = Math.min(rtoNs * 2, MAX_RTO_NS); // Backoff exponencial
+            rtoStartNs = now;
+            r.timeouts++;
+        }
+
+        /**
+         * RFC 6298: SRTT, RTTVAR y RTO = SRTT + max(G, 4 * RTTVAR), acotado por --rto-min.
+         */
+        private void updateRto(long rttNs) {
+            if (srttNs == 0) {
+                srttNs = rttNs;
+                rttvarNs = rttNs / 2;
+            } else {
+                rttvarNs = (3 * rttvarNs + Math.abs(srttNs - rttNs)) / 4;
+                srttNs = (7 * srttNs + rttNs) / 8;
+            }
+            lastRttNs = rttNs;
+            minRttNs = Math.min(minRttNs, rttNs);
+            rtoNs = Math.min(MAX_RTO_NS, Math.max(rtoMinNs, srttNs + Math.max(1_000_000L, 4 * rttvarNs)));
+        }
+
+        private void pushRing(int s, long ts) {
+            if (ringTail - ringHead == ringSeq.length) { // Lleno: duplicar conservando el orden
+                int n = ringSeq.length;
+                int[] seqs = new int[2 * n];
+                long[] tss = new long[2 * n];
+                for (int k = 0; k < n; k++) {
+                    seqs[k] = ringSeq[(ringHead + k) & (n - 1)];
+                    tss[k] = ringTs[(ringHead + k) & (n - 1)];
+                }
+                ringSeq = seqs;
+                ringTs = tss;
+                ringHead = 0;
+                ringTail = n;
+            }
+            int idx = ringTail & (ringSeq.length - 1);
+            ringSeq[idx] = s;
+            ringTs[idx] = ts;
+            ringTail++;
+        }
+
+        /**
+         * Una fila de la serie: estado de la ventana y tasas del último intervalo.
+         */
+        private void sample(long startNs, long now, long ackedSegs, long tx, long retx) {
+            double intervalSec = seriesNs / 1e9;
+            series.printf(Locale.US, "%s,%.3f,%.2f,%s,%d,%.3f,%.3f,%d,%.3f,%d,%d,%.2f,%d,%d%n",
+                    seriesTag, (now - startNs) / 1e6, cwnd,
+                    ssthresh == Double.POSITIVE_INFINITY ? "" : String.format(Locale.US, "%.2f", ssthresh),
+                    pipe, srttNs / 1e6, rtoNs / 1e6, (long) cum * segSize,
+                    ackedSegs * (long) segSize * 8 / intervalSec / 1e6, tx, retx,
+                    tx > 0 ? 100.0 * retx / tx : 0.0, r.timeouts, r.recoveries);
+        }
+
+        static String seriesHeader() {
+            return "rep,t_ms,cwnd,ssthresh,in_flight,srtt_ms,rto_ms,acked_bytes,goodput_mbps,sent,retransmitted,retrans_pct,timeouts,recoveries";
+        }
+    }
+
+    /**
+     * Escribe los dígitos de v (>= 0) en b desde pos; retorna la posición siguiente.
+     */
+    private static int putLong(byte[] b, int pos, long v) {
+        int digits = 1;
+        for (long p = 10; p <= v && digits < 19; p *= 10) digits++;
+        for (int k = digits - 1; k >= 0; k--) {
+            b[pos + k] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        return pos + digits;
+    }
+
+    /**
+     * Lado servidor: sesiones por id, compartidas por todos los hilos receptores.
+     */
+    static final class Receiver {
+        private static final long IDLE_NS = 30_000_000_000L; // Sesión sin tráfico que se descarta
+
+        private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+        private final long maxBytes; // Tamaño máximo de una transferencia
+        final LongAdder opened = new LongAdder(); // Sesiones abiertas
+        final LongAdder completed = new LongAdder(); // Sesiones terminadas con RFIN
+        final LongAdder bytes = new LongAdder(); // Bytes nuevos recibidos
+        final LongAdder duplicates = new LongAdder(); // DAT repetidos (retransmisiones de más)
+
+        Receiver(long maxBytes) { this.maxBytes = maxBytes; }
+
+        /**
+         * ¿Es un datagrama de este protocolo? (entre la posición 0 y el límite de b)
+         */
+        static boolean matches(ByteBuffer b) {
+            if (b.limit() < 5) return false;
+            byte c0 = b.get(0);
+            return (c0 == 'D' && b.get(1) == 'A' && b.get(2) == 'T' && b.get(3) == '|')
+                    || (c0 == 'R' && (b.get(1) == 'U' || b.get(1) == 'F'));
+        }
+
+        /**
+         * Atiende un datagrama (entre 0 y el límite de b) y retorna la respuesta, o null
+         * si no hay que responder.
+         */
+        byte[] handle(ByteBuffer b, long nowNs) {
+            int end = b.limit();
+            int i = 0;
+            while (i < end && b.get(i) != '|') i++;
+            char type = i == 3 ? 'D' : i == 4 && b.get(1) == 'U' ? 'U' : i == 4 && b.get(1) == 'F' ? 'F' : '?'; // DAT, RUDP, RFIN
+            long[] f = new long[3];
+            int fields = type == 'F' ? 1 : 3;
+            for (int k = 0; k < fields; k++) {
+                long v = 0;
+                int start = ++i;
+                for (; i < end && b.get(i) != '|'; i++) {
+                    byte d = b.get(i);
+                    if (d < '0' || d > '9' || v > Long.MAX_VALUE / 10) return null;
+                    v = v * 10 + (d - '0');
+                }
+                if (i == start) return null;
+                f[k] = v;
+            }
+            long id = f[0];
+            switch (type) {
+                case 'U': {
+                    if (f[1] <= 0 || f[1] > maxBytes || f[2] < MIN_SEGMENT || f[2] > 65507) return null;
+                    if ((f[1] + f[2] - 1) / f[2] > MAX_SEGMENTS) return null; // seq debe caber en el mapa de bits
+                    if (sessions.putIfAbsent(id, new Session(f[1], (int) f[2], nowNs)) == null) opened.increment();
+                    return reply("RUDP-OK|" + id);
+                }
+                case 'D': {
+                    Session s = sessions.get(id);
+                    if (s == null) return reply("RUDP-RST|" + id);
+                    int len = end - (i + 1);
+                    synchronized (s) {
+                        long seq = f[1];
+                        if (s.done || seq >= s.segments || len != s.segmentLength(seq)) return null;
+                        s.lastNs = nowNs;
+                        if (s.received.get((int) seq)) {
+                            s.duplicates++;
+                            duplicates.increment();
+                        } else {
+                            s.received.set((int) seq);
+                            if (seq == s.cum) s.cum = s.received.nextClearBit(s.cum);
+                            s.bytes += len;
+                            bytes.add(len);
+                            if (s.firstNs == 0) s.firstNs = nowNs;
+                            s.recvEndNs = nowNs;
+                        }
+                        return reply(s.sack(id, (int) seq, f[2]));
+                    }
+                }
+                case 'F': {
+                    Session s = sessions.get(id);
+                    if (s == null) return reply("RUDP-RST|" + id);
+                    synchronized (s) {
+                        if (s.bytes != s.total) return null; // Aún faltan segmentos: el cliente reintenta
+                        if (!s.done) {
+                            s.done = true; // Se conserva hasta expirar para responder RFIN repetidos
+                            completed.increment();
+                        }
+                        s.lastNs = nowNs;
+                        return reply("RDONE|" + id + "|" + s.bytes + "|" + s.firstNs + "|" + s.recvEndNs + "|" + s.duplicates);
+                    }
+                }
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Descarta las sesiones sin tráfico hace más de 30 s.
+         */
+        void expire(long nowNs) {
+            for (Iterator<Session> it = sessions.values().iterator(); it.hasNext(); ) {
+                Session s = it.next();
+                synchronized (s) {
+                    if (nowNs - s.lastNs >= IDLE_NS) it.remove();
+                }
+            }
+        }
+
+        /**
+         * Sesiones abiertas que aún no recibieron RFIN.
+         */
+        int active() {
+            int n = 0;
+            for (Session s : sessions.values()) {
+                synchronized (s) {
+                    if (!s.done) n++;
+                }
+            }
+            return n;
+        }
+
+        private static byte[] reply(String s) { return s.getBytes(StandardCharsets.US_ASCII); }
+    }
+
+    /**
+     * Transferencia en curso en el servidor.
+     */
+    private static final class Session {
+        final long total;
+        final int segSize;
+        final long segments;
+        final BitSet received = new BitSet();
+        int cum; // Primer seq sin recibir; solo avanza cuando llega justo ese
+        long bytes, duplicates;
+        long firstNs, recvEndNs, lastNs;
+        boolean done;
+
+        Session(long total, int segSize, long nowNs) {
+            this.total = total;
+            this.segSize = segSize;
+            this.segments = (total + segSize - 1) / segSize;
+            this.lastNs = nowNs;
+        }
+
+        long segmentLength(long seq) { return Math.min(segSize, total - seq * segSize); }
+
+        /**
+         * "SACK|id|cum|echoNs|bloques": primero el rango que contiene seq, luego los más bajos.
+         */
+        String sack(long id, int seq, long echoNs) {
+            StringBuilder sb = new StringBuilder(64).append("SACK|").append(id).append('|').append(cum)
+                    .append('|').append(echoNs).append('|');
+            int n = 0;
+            int curStart = -1;
+            if (seq > cum) {
+                curStart = received.previousClearBit(seq) + 1;
+                sb.append(curStart).append('-').append(received.nextClearBit(seq));
+                n++;
+            }
+            for (int s = received.nextSetBit(cum); s >= 0 && n < SACK_BLOCKS; s = received.nextSetBit(s)) {
+                int e = received.nextClearBit(s);
+                if (s != curStart) {
+                    if (n > 0) sb.append(',');
+                    sb.append(s).append('-').append(e);
+                    n++;
+                }
+                s = e;
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**************************************************************
+         		Pontificia Universidad Javeriana
+     Autor: Daniela Medina
+     Fecha: 17 Octubre 2026
+     Materia: Sistemas Distribuidos
+     Tema: Laboratorio de Sockets
+****************************************************************/
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TimingWheel - Hashed timing wheel (Varghese and Lauck) for connection timeouts.
+ *
+ * A single thread advances a cursor over a fixed ring of buckets every tickMs. A timeout
+ * due in d milliseconds goes into bucket (now + d / tick) mod slots, and each tick only
+ * visits the bucket under the cursor, expiring the entries whose deadline tick has come
+ * (entries further away simply wait for the next lap). Scheduling and cancelling are O(1)
+ * with one small node per timeout, so tens of thousands of connections cost one thread
+ * instead of a timer per socket. Precision is one tick.
+ *
+ * Tasks run on the wheel thread, outside the lock, and must be short (typically they
+ * re-arm themselves or close a socket).
+ */
+final class TimingWheel {
+
+    /**
+     * Timeout programado; cancel() lo saca de su bucket.
+     */
+    static final class Timeout {
+        final Runnable task;
+        final long deadlineTick;
+        Timeout prev, next; // Lista doblemente enlazada del bucket
+        boolean linked;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    private final long tickNs;
+    private final Timeout[] buckets; // Centinela por bucket (lista circular)
+    private final int mask;
+    private long tick; // Tick actual (solo cambia con el lock)
+
+    TimingWheel(long tickMs, int slots, String name) {
+        this.tickNs = Math.max(1, tickMs) * 1_000_000L;
+        int n = Integer.highestOneBit(Math.max(2, slots - 1) << 1); // Potencia de 2
+        this.mask = n - 1;
+        this.buckets = new Timeout[n];
+        for (int i = 0; i < n; i++) {
+            Timeout head = new Timeout(null, Long.MAX_VALUE);
+            head.prev = head.next = head;
+            buckets[i] = head;
+        }
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Programa task para dentro de delayMs (redondeado hacia arriba al siguiente tick).
+     */
+    synchronized Timeout schedule(Runnable task, long delayMs) {
+        long ticks = Math.max(1, (delayMs * 1_000_000L + tickNs - 1) / tickNs);
+        Timeout t = new Timeout(task, tick + ticks);
+        Timeout head = buckets[(int) (t.deadlineTick & mask)];
+        t.prev = head.prev;
+        t.next = head;
+        head.prev.next = t;
+        head.prev = t;
+        t.linked = true;
+        return t;
+    }
+
+    /**
+     * Cancela un timeout pendiente (sin efecto si ya expiró).
+     */
+    synchronized void cancel(Timeout t) {
+        if (t == null || !t.linked) return;
+        unlink(t);
+    }
+
+    private void unlink(Timeout t) {
+        t.prev.next = t.next;
+        t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.linked = false;
+    }
+
+    /**
+     * Bucle del hilo de la rueda: avanza un tick en horarios absolutos (sin deriva)
+     * y ejecuta lo expirado.
+     */
+    private void run() {
+        long nextNs = System.nanoTime() + tickNs;
+        List<Timeout> expired = new ArrayList<>();
+        while (true) {
+            for (long now = System.nanoTime(); now < nextNs; now = System.nanoTime()) {
+                LockSupport.parkNanos(nextNs - now);
+            }
+            nextNs += tickNs;
+            synchronized (this) {
+                tick++;
+                Timeout head = buckets[(int) (tick & mask)];
+                for (Timeout t = head.next; t != head; ) {
+                    Timeout next = t.next;
+                    if (t.deadlineTick <= tick) { // Las demás son de una vuelta posterior
+                        unlink(t);
+                        expired.add(t);
+                    }
+                    t = next;
+                }
+            }
+            for (Timeout t : expired) {
+                try {
+                    t.task.run();
+                } catch (RuntimeException e) {
+                    AsyncLog.error("Error en timeout: " + e);
+                }
+            }
+            expired.clear();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**************************************************************
+         		Pontificia Universidad Javeriana
+     Autor: Daniela Medina
+     Fecha: 17 Octubre 2026
+     Materia: Sistemas Distribuidos
+     Tema: Laboratorio de Sockets
+****************************************************************/
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+/**
+ * Workload - Synthetic per-message processing for the server (--work kind[:arg]).
+ *
+ *   none         no work (default, the original empty processing block)
+ *   cpu:N        N iterations of an integer mixing loop (pure CPU, no memory traffic)
+ *   checksum:N   CRC32C over the message payload, N passes
+ *   sleep:N      blocks N microseconds (stands in for a database or disk call)
+ *   matrix:N     multiplies two N x N double tiles (CPU plus cache traffic); the tiles
+ *                are preallocated per thread
+ *
+ * run() returns a value derived from the work so the JIT cannot drop it; callers pass
+ * it to consume().
+ */
+abstract class Workload {
+
+    static final Workload NONE = new Workload("none", 0) {
+        @Override long run(ByteBuffer payload) { return 0; }
+    };
+
+    private static long sink; // Destino de consume(), casi nunca se escribe
+
+    final String kind;
+    final int arg;
+
+    private Workload(String kind, int arg) {
+        this.kind = kind;
+        this.arg = arg;
+    }
+
+    /**
+     * Ejecuta el trabajo de un mensaje. payload puede ser null si needsPayload() es false;
+     * su posición y límite no se modifican.
+     */
+    abstract long run(ByteBuffer payload);
+
+    /**
+     * true si el trabajo lee el payload (la etapa debe conservarlo o copiarlo).
+     */
+    boolean needsPayload() { return false; }
+
+    @Override
+    public String toString() { return this == NONE ? kind : kind + ":" + arg; }
+
+    /**
+     * Evita que el JIT elimine el trabajo como código muerto.
+     */
+    static void consume(long v) {
+        if (v == 0x5EED_5EED_5EED_5EEDL) sink++;
+    }
+
+    /**
+     * Interpreta "tipo[:arg]" (--work). Lanza IllegalArgumentException si no existe.
+     */
+    static Workload parse(String spec) {
+        String[] p = spec.toLowerCase(Locale.ROOT).split(":", 2);
+        int n = p.length > 1 ? Integer.parseInt(p[1]) : -1;
+        switch (p[0]) {
+            case "none":
+                return NONE;
+            case "cpu":
+                return new Workload("cpu", n > 0 ? n : 10_000) {
+                    @Override long run(ByteBuffer payload) {
+                        long x = 0x9E37_79B9_7F4A_7C15L;
+                        for (int i = 0; i < arg; i++) {
+                            x ^= x << 13;
+                            x ^= x >>> 7;
+                            x ^= x << 17;
+                        }
+                        return x;
+                    }
+                };
+            case "checksum":
+                return new Workload("checksum", n > 0 ? n : 1) {
+                    @Override long run(ByteBuffer payload) {
+                        if (payload == null) return 0;
+                        CRC32C crc = new CRC32C();
+                        int pos = payload.position();
+                        for (int i = 0; i < arg; i++) {
+                            crc.update(payload);
+                            payload.position(pos);
+                        }
+                        return crc.getValue();
+                    }
+
+                    @Override boolean needsPayload() { return true; }
+                };
+            case "sleep":
+                return new Workload("sleep", n >= 0 ? n : 1000) {
+                    @Override long run(ByteBuffer payload) {
+                        long deadline = System.nanoTime() + arg * 1000L;
+                        for (long now = System.nanoTime(); now < deadline; now = System.nanoTime()) {
+                            LockSupport.parkNanos(deadline - now);
+                        }
+                        return arg;
+                    }
+                };
+            case "matrix":
+                return new Workload("matrix", n > 0 ? n : 32) {
+                    private final ThreadLocal<double[][]> tiles = ThreadLocal.withInitial(this::newTiles);
+
+                    private double[][] newTiles() {
+                        double[][] t = new double[3][arg * arg];
+                        for (int i = 0; i < arg * arg; i++) {
+                            t[0][i] = (i % 7) * 0.5;
+                            t[1][i] = (i % 5) * 0.25;
+                        }
+                        return t;
+                    }
+
+                    @Override long run(ByteBuffer payload) {
+                        double[][] t = tiles.get();
+                        double[] a = t[0], b = t[1], c = t[2];
+                        for (int i = 0; i < arg; i++) {
+                            for (int j = 0; j < arg; j++) c[i * arg + j] = 0;
+                            for (int k = 0; k < arg; k++) {
+                                double aik = a[i * arg + k];
+                                for (int j = 0; j < arg; j++) c[i * arg + j] += aik * b[k * arg + j]; // Orden i-k-j: acceso secuencial
+                            }
+                        }
+                        return Double.doubleToRawLongBits(c[arg * arg - 1]);
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("Workload desconocido: " + spec + " (none, cpu, checksum, sleep, matrix)");
+        }
+    }
+}
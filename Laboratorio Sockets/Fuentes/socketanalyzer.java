@@ -0,0 +1,880 @@
+/**************************************************************
+         		Pontificia Universidad Javeriana
+     Autor: Daniela Medina
+     Fecha: 17 Octubre 2026
+     Materia: Sistemas Distribuidos
+     Tema: Laboratorio de Sockets
+****************************************************************/
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * socketanalyzer - Single-pass, bounded-memory analyzer for the lab's metrics CSVs.
+ *
+ * Reads client and server CSVs of both protocols (tcp_*, udp_*, *_noIdeal, and the files
+ * written by the current clients and servers), recognizing each one by its header. Files
+ * are memory-mapped in windows of --chunk MB and fields are parsed straight from the
+ * mapped bytes (no String per row), so multi-GB files with hundreds of millions of rows
+ * stream through in one pass. Memory does not grow with the row count: every
+ * distribution goes to a fixed-size LatencyHistogram and the time series is written as
+ * each bucket closes.
+ *
+ * Usage:
+ *   java socketanalyzer ../Datos
+ *   java socketanalyzer tcp_client_metrics.csv tcp_client_metrics_noIdeal.csv -out resumen.csv
+ *   java socketanalyzer ../Datos --series series --bucket 500 --compare-out comparacion.csv
+ *   java socketanalyzer --compare corrida_a.csv corrida_b.csv
+ *   java socketanalyzer udp_server_metrics.csv --expected 100000 --series series
+ *
+ * Per file (when the columns exist):
+ * - RTT from client_recv_ns - client_send_ns (rtt_ms if the timestamps are missing):
+ *   mean, p50/p90/p99/p99.9, max
+ * - jitter as |RTT(i) - RTT(i-1)| between consecutive answered messages (the client's
+ *   definition), recomputed in ns
+ * - per-message throughput (throughput_bps, or payload / RTT) and aggregate payload
+ *   throughput over the span of the file
+ * - loss: UDP rows with lost=true or no reply, TCP rows with status=busy or type BUSY
+ * - server time (server_proc_ms) and the gap between consecutive rows (send interval on
+ *   a client file, arrival interval on a server file)
+ *
+ * Receiver side (UDP server files with seq and server_recv_ns):
+ * - rows are put back in arrival order (a heap of --resequence rows by server_recv_ns;
+ *   with several channel workers the CSV is not written in arrival order)
+ * - RFC 3550 interarrival jitter: J += (|D| - J) / 16 with
+ *   D = (R_i - R_i-1) - (S_i - S_i-1), from server arrival times and the client_send_ns
+ *   column (files without it get no jitter)
+ * - duplicates (a seq already received) and reordering (a seq below the highest received,
+ *   with its extent in sequence numbers)
+ * - loss by seq over the range received (or 1..--expected N): run-length distributions of
+ *   losses and of receptions, and the parameters of a two-state Gilbert-Elliott model
+ *   (loss only in the bad state): p = P(good -> bad), r = P(bad -> good), and the
+ *   conditional loss probability 1 - r against the overall loss rate. Random (Bernoulli)
+ *   loss has both about equal; bursty loss has a much higher conditional probability.
+ *   The seq bitmap takes one bit per sequence number.
+ *
+ * --series dir writes name.series.csv with one row per --bucket ms (1000 by default) of
+ * the file's time column: rows, loss, RTT mean/p50/p99/max, mean jitter, Mb/s and p99
+ * server time. Rows that arrive out of order go to the bucket in progress. For UDP server
+ * files it also writes name.receiver.csv (per bucket: received, duplicates, reordered,
+ * seq skipped and later filled, RFC 3550 jitter, p99 |D|) and name.loss_runs.csv (how
+ * many loss and reception runs of each length).
+ *
+ * Ideal vs non-ideal: every file whose name contains "noideal" (any case, optional "_") is
+ * paired with the file of the same name without it, and a table compares every metric
+ * (difference and ratio). --compare a b pairs two arbitrary files.
+ */
+public class socketanalyzer {
+
+    private static int histDigits = 2;            // dígitos significativos de los histogramas
+    private static long bucketMs = 1000;          // ancho de los intervalos de la serie
+    private static long chunkBytes = 256L << 20;  // ventana de mapeo del archivo
+    private static String outPath = null;         // resumen CSV (una fila por archivo)
+    private static String seriesDir = null;       // directorio de series por intervalo
+    private static String compareOut = null;      // comparación ideal vs no ideal en CSV
+    private static long expectedSeqs = 0;         // seq enviados 1..N (0 = del menor al mayor recibido)
+    private static int resequence = 4096;         // filas que se reordenan por llegada antes del análisis del receptor
+
+    // Métricas del resumen, en el orden de las columnas y de la tabla
+    private static final String[] METRICS = {
+            "rows", "lost", "loss_pct", "duration_s", "throughput_mbps",
+            "rtt_mean_ms", "rtt_p50_ms", "rtt_p90_ms", "rtt_p99_ms", "rtt_p999_ms", "rtt_max_ms",
+            "jitter_mean_ms", "jitter_p50_ms", "jitter_p99_ms",
+            "msg_thr_p10_mbps", "msg_thr_p50_mbps",
+            "proc_p50_ms", "proc_p99_ms", "proc_max_ms",
+            "gap_p50_ms", "gap_p99_ms",
+            "rx_jitter_ms", "rx_jitter_mean_ms", "duplicates", "reordered", "seq_lost", "seq_loss_pct",
+            "loss_burst_mean", "ge_p", "ge_r", "ge_clp_pct"};
+
+    public static void main(String[] args) {
+        List<Path> files = new ArrayList<>();
+        List<Path[]> pairs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-out": outPath = args[++i]; break; // Resumen CSV
+                    case "--series": seriesDir = args[++i]; break; // Series por intervalo
+                    case "--bucket": bucketMs = Math.max(1, Long.parseLong(args[++i])); break; // Ancho del intervalo (ms)
+                    case "--hist-digits": histDigits = Integer.parseInt(args[++i]); break; // Precisión de los percentiles
+                    case "--chunk": chunkBytes = Math.max(1, Long.parseLong(args[++i])) << 20; break; // Ventana de mapeo (MB)
+                    case "--compare-out": compareOut = args[++i]; break; // Comparación en CSV
+                    case "--expected": expectedSeqs = Long.parseLong(args[++i]); break; // seq enviados por el cliente
+                    case "--resequence": resequence = Math.max(1, Integer.parseInt(args[++i])); break; // Ventana de reordenamiento por llegada
+                    case "--compare": { // Par explícito
+                        Path a = Paths.get(args[++i]), b = Paths.get(args[++i]);
+                        addFile(files, a);
+                        addFile(files, b);
+                        pairs.add(new Path[] {a, b});
+                        break;
+                    }
+                    default:
+                        addInput(files, Paths.get(args[i]));
+                }
+            }
+            if (files.isEmpty()) {
+                System.out.println("Uso: java socketanalyzer <archivos.csv | directorio> [-out resumen.csv] [--series dir]"
+                        + " [--bucket ms] [--compare a.csv b.csv] [--compare-out comparacion.csv] [--expected N]");
+                return;
+            }
+            if (seriesDir != null) Files.createDirectories(Paths.get(seriesDir));
+
+            Map<Path, FileStats> stats = new HashMap<>();
+            for (Path f : files) {
+                long t0 = System.nanoTime();
+                FileStats s = analyze(f);
+                double sec = (System.nanoTime() - t0) / 1e9;
+                stats.put(f, s);
+                printReport(s, sec);
+            }
+            if (outPath != null) writeSummary(files, stats);
+
+            pairs.addAll(idealPairs(files));
+            try (PrintWriter cmp = compareOut != null ? new PrintWriter(new BufferedWriter(new FileWriter(compareOut))) : null) {
+                if (cmp != null) cmp.println("ideal,no_ideal,metric,ideal_value,no_ideal_value,diff,ratio");
+                for (Path[] p : pairs) printComparison(stats.get(p[0]), stats.get(p[1]), cmp);
+            }
+            if (outPath != null) System.out.println("Resumen guardado en: " + outPath);
+            if (compareOut != null) System.out.println("Comparación guardada en: " + compareOut);
+        } catch (IOException e) {
+            System.err.println("Error analizando: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Agrega un archivo, o todos los .csv de un directorio (en orden alfabético).
+     */
+    private static void addInput(List<Path> files, Path p) throws IOException {
+        if (!Files.isDirectory(p)) {
+            addFile(files, p);
+            return;
+        }
+        List<Path> found = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(p, "*.csv")) {
+            for (Path f : dir) found.add(f);
+        }
+        found.sort(null);
+        for (Path f : found) addFile(files, f);
+    }
+
+    private static void addFile(List<Path> files, Path p) {
+        if (!files.contains(p)) files.add(p);
+    }
+
+    // ================== ANÁLISIS ==================
+    /**
+     * analyze - recorre el archivo una sola vez y acumula sus estadísticas.
+     */
+    private static FileStats analyze(Path file) throws IOException {
+        try (MappedCsv csv = new MappedCsv(file, chunkBytes)) {
+            Map<String, Integer> col = new HashMap<>();
+            String[] names = csv.header().split(",");
+            for (int i = 0; i < names.length; i++) col.put(names[i].trim(), i);
+            FileStats s = new FileStats(file, col);
+            String base = file.getFileName().toString().replaceAll("\\.csv$", "");
+            SeriesWriter series = seriesDir != null ? new SeriesWriter(Paths.get(seriesDir, base + ".series.csv")) : null;
+            ReceiverStats rx = s.receiver;
+            try {
+                if (rx != null && seriesDir != null) {
+                    rx.openSeries(Paths.get(seriesDir, base + ".receiver.csv"), Paths.get(seriesDir, base + ".loss_runs.csv"));
+                }
+                while (csv.next()) s.add(csv, series);
+                if (rx != null) rx.finish();
+            } finally {
+                if (series != null) series.close();
+                if (rx != null) rx.close();
+            }
+            return s;
+        }
+    }
+
+    /**
+     * FileStats - estadísticas de un archivo, con memoria fija sin importar cuántas filas tenga.
+     */
+    private static final class FileStats {
+        final Path file;
+        final String kind; // tcp-cliente, udp-cliente, tcp-servidor, udp-servidor
+        final boolean client;
+        // Columnas (-1 = no existe)
+        private final int send, recv, rttMs, payload, thr, proc, lostCol, status, type, time;
+
+        long rows, lost, answered, bytes;
+        long firstNs = Long.MAX_VALUE, lastNs = Long.MIN_VALUE; // Columna de tiempo
+        private long prevRttNs = -1, prevTimeNs = -1;
+        final LatencyHistogram rtt = new LatencyHistogram(histDigits);
+        final LatencyHistogram jitter = new LatencyHistogram(histDigits);
+        final LatencyHistogram msgThr = new LatencyHistogram(histDigits); // bps por mensaje
+        final LatencyHistogram procHist = new LatencyHistogram(histDigits);
+        final LatencyHistogram gap = new LatencyHistogram(histDigits);
+        final ReceiverStats receiver; // Solo servidor UDP con seq y server_recv_ns
+
+        FileStats(Path file, Map<String, Integer> col) {
+            this.file = file;
+            send = col.getOrDefault("client_send_ns", -1);
+            recv = col.getOrDefault("client_recv_ns", -1);
+            rttMs = col.getOrDefault("rtt_ms", -1);
+            payload = col.getOrDefault("payload_bytes", -1);
+            thr = col.getOrDefault("throughput_bps", -1);
+            proc = col.getOrDefault("server_proc_ms", -1);
+            lostCol = col.getOrDefault("lost", -1);
+            status = col.getOrDefault("status", -1);
+            type = col.getOrDefault("type", -1);
+            client = recv >= 0 || rttMs >= 0;
+            time = client ? send : col.getOrDefault("server_recv_ns", -1);
+            boolean udp = client ? lostCol >= 0 : type < 0;
+            kind = (udp ? "udp" : "tcp") + (client ? "-cliente" : "-servidor");
+            int seq = col.getOrDefault("seq", -1);
+            receiver = udp && !client && seq >= 0 && time >= 0 ? new ReceiverStats(seq, time, col.getOrDefault("client_send_ns", -1)) : null;
+        }
+
+        /**
+         * Acumula una fila (y la pasa a la serie si hay una).
+         */
+        void add(MappedCsv row, SeriesWriter series) throws IOException {
+            rows++;
+            long t = time >= 0 ? row.longAt(time) : rows; // Sin columna de tiempo: orden de fila
+            if (t < firstNs) firstNs = t;
+            if (t > lastNs) lastNs = t;
+            if (time >= 0 && prevTimeNs >= 0 && t >= prevTimeNs) gap.record(t - prevTimeNs);
+            prevTimeNs = t;
+
+            boolean isLost = (lostCol >= 0 && row.byteAt(lostCol, 0) == 't')
+                    || (status >= 0 && row.byteAt(status, 0) == 'b')
+                    || (type >= 0 && row.byteAt(type, 0) == 'B' && row.byteAt(type, 1) == 'U'); // BUSY
+            long rttNs = -1;
+            if (send >= 0 && recv >= 0) {
+                long r = row.longAt(recv);
+                if (r > 0) rttNs = r - row.longAt(send);
+            } else if (rttMs >= 0 && !row.isEmpty(rttMs)) {
+                rttNs = Math.round(row.doubleAt(rttMs) * 1e6);
+            }
+            if (client && rttNs < 0) isLost = true; // UDP sin respuesta: client_recv_ns = -1
+
+            long procNs = -1, jitterNs = -1, bits = 0;
+            if (isLost) {
+                lost++;
+            } else {
+                answered++;
+                long len = payload >= 0 ? row.longAt(payload) : 0;
+                bytes += len;
+                bits = len * 8;
+                if (rttNs >= 0) {
+                    rtt.record(rttNs);
+                    if (prevRttNs >= 0) {
+                        jitterNs = Math.abs(rttNs - prevRttNs);
+                        jitter.record(jitterNs);
+                    }
+                    prevRttNs = rttNs;
+                    if (thr >= 0 && !row.isEmpty(thr)) {
+                        msgThr.record(Math.round(row.doubleAt(thr)));
+                    } else if (rttNs > 0) {
+                        msgThr.record(Math.round(bits * 1e9 / rttNs));
+                    }
+                }
+                if (proc >= 0 && !row.isEmpty(proc)) {
+                    procNs = Math.round(row.doubleAt(proc) * 1e6);
+                    procHist.record(procNs);
+                }
+            }
+            if (series != null && time >= 0) series.add(t - firstNs, isLost, rttNs, jitterNs, bits, procNs);
+            if (receiver != null) receiver.offer(row, t);
+        }
+
+        double durationSec() { return lastNs > firstNs && time >= 0 ? (lastNs - firstNs) / 1e9 : 0; }
+
+        /**
+         * Valor de una métrica del resumen, o NaN si no aplica a este tipo de archivo.
+         */
+        double value(String metric) {
+            switch (metric) {
+                case "rows": return rows;
+                case "lost": return lost;
+                case "loss_pct": return rows > 0 ? 100.0 * lost / rows : Double.NaN;
+                case "duration_s": return time >= 0 ? durationSec() : Double.NaN;
+                case "throughput_mbps": return durationSec() > 0 && payload >= 0 ? bytes * 8 / durationSec() / 1e6 : Double.NaN;
+                case "rtt_mean_ms": return ms(rtt, rtt.mean());
+                case "rtt_p50_ms": return ms(rtt, rtt.percentile(50));
+                case "rtt_p90_ms": return ms(rtt, rtt.percentile(90));
+                case "rtt_p99_ms": return ms(rtt, rtt.percentile(99));
+                case "rtt_p999_ms": return ms(rtt, rtt.percentile(99.9));
+                case "rtt_max_ms": return ms(rtt, rtt.max());
+                case "jitter_mean_ms": return ms(jitter, jitter.mean());
+                case "jitter_p50_ms": return ms(jitter, jitter.percentile(50));
+                case "jitter_p99_ms": return ms(jitter, jitter.percentile(99));
+                case "msg_thr_p10_mbps": return msgThr.count() > 0 ? msgThr.percentile(10) / 1e6 : Double.NaN;
+                case "msg_thr_p50_mbps": return msgThr.count() > 0 ? msgThr.percentile(50) / 1e6 : Double.NaN;
+                case "proc_p50_ms": return ms(procHist, procHist.percentile(50));
+                case "proc_p99_ms": return ms(procHist, procHist.percentile(99));
+                case "proc_max_ms": return ms(procHist, procHist.max());
+                case "gap_p50_ms": return ms(gap, gap.percentile(50));
+                case "gap_p99_ms": return ms(gap, gap.percentile(99));
+                default: return receiver != null ? receiver.value(metric) : Double.NaN;
+            }
+        }
+
+        private static double ms(LatencyHistogram h, double ns) { return h.count() > 0 ? ns / 1e6 : Double.NaN; }
+    }
+
+    /**
+     * ReceiverStats - análisis del lado receptor de un archivo del servidor UDP. Memoria
+     * fija salvo el mapa de bits de seq (un bit por número de secuencia) y la tabla de
+     * largos de racha.
+     */
+    private static final class ReceiverStats implements Closeable {
+        private final int seqCol, timeCol, sendCol; // sendCol = -1: sin client_send_ns, sin jitter
+        // Heap mínimo por server_recv_ns para devolver las filas al orden de llegada
+        private final long[] hTime = new long[resequence], hSeq = new long[resequence], hSend = new long[resequence];
+        private int hSize;
+
+        private final BitSet seen = new BitSet();
+        long received, duplicates, reordered, ignored; // ignored: seq negativo o fuera de rango int
+        long minSeq = Long.MAX_VALUE, maxSeq = -1;
+        private long prevArrival = -1, prevSend;
+        double jitterNs; // J de la RFC 3550, en ns
+        final LatencyHistogram jitterHist = new LatencyHistogram(histDigits); // J tras cada llegada
+        final LatencyHistogram transit = new LatencyHistogram(histDigits); // |D| entre llegadas consecutivas
+        final LatencyHistogram reorderExtent = new LatencyHistogram(histDigits); // mayor seq recibido - seq, en seq
+
+        // Rachas sobre el rango de seq, calculadas al final
+        long rangeLo, rangeHi, expected, lost, lossRuns, recvRuns, maxLossRun;
+        private final TreeMap<Long, long[]> runs = new TreeMap<>(); // largo -> {rachas de pérdida, rachas de recepción}
+
+        // Serie por intervalo
+        private PrintWriter series, runsOut;
+        private final long bucketNs = bucketMs * 1_000_000L;
+        private long t0 = -1, bucket = -1;
+        private long wReceived, wDuplicates, wReordered, wSkipped, wSkipRuns, wFilled;
+        private final LatencyHistogram wTransit = new LatencyHistogram(histDigits);
+
+        ReceiverStats(int seqCol, int timeCol, int sendCol) {
+            this.seqCol = seqCol;
+            this.timeCol = timeCol;
+            this.sendCol = sendCol;
+        }
+
+        void openSeries(Path seriesPath, Path runsPath) throws IOException {
+            series = new PrintWriter(new BufferedWriter(new FileWriter(seriesPath.toFile())));
+            series.println("t_s,received,duplicates,reordered,skipped,skip_runs,filled,rfc3550_jitter_ms,transit_p99_ms");
+            runsOut = new PrintWriter(new BufferedWriter(new FileWriter(runsPath.toFile())));
+        }
+
+        /**
+         * Entra una fila al heap; si está lleno, procesa la de llegada más temprana.
+         */
+        void offer(MappedCsv row, long t) {
+            if (hSize == hTime.length) {
+                process(hTime[0], hSeq[0], hSend[0]);
+                pop();
+            }
+            int i = hSize++;
+            long seq = row.longAt(seqCol), send = sendCol >= 0 ? row.longAt(sendCol) : 0;
+            while (i > 0) { // Subir
+                int parent = (i - 1) / 2;
+                if (hTime[parent] <= t) break;
+                hTime[i] = hTime[parent];
+                hSeq[i] = hSeq[parent];
+                hSend[i] = hSend[parent];
+                i = parent;
+            }
+            hTime[i] = t;
+            hSeq[i] = seq;
+            hSend[i] = send;
+        }
+
+        private void pop() {
+            long t = hTime[--hSize], seq = hSeq[hSize], send = hSend[hSize];
+            int i = 0;
+            while (true) { // Bajar el último desde la raíz
+                int c = 2 * i + 1;
+                if (c >= hSize) break;
+                if (c + 1 < hSize && hTime[c + 1] < hTime[c]) c++;
+                if (hTime[c] >= t) break;
+                hTime[i] = hTime[c];
+                hSeq[i] = hSeq[c];
+                hSend[i] = hSend[c];
+                i = c;
+            }
+            hTime[i] = t;
+            hSeq[i] = seq;
+            hSend[i] = send;
+        }
+
+        /**
+         * Una llegada, ya en orden de server_recv_ns.
+         */
+        private void process(long t, long seq, long send) {
+            if (t0 < 0) t0 = t;
+            if (series != null) {
+                long b = Math.max(0, t - t0) / bucketNs;
+                if (b > bucket) {
+                    flushWindow();
+                    bucket = b;
+                }
+            }
+            if (seq < 0 || seq > Integer.MAX_VALUE - 1) { ignored++; return; }
+            if (seen.get((int) seq)) {
+                duplicates++;
+                wDuplicates++;
+                return; // Un duplicado no es una llegada nueva para el jitter
+            }
+            seen.set((int) seq);
+            received++;
+            wReceived++;
+            if (seq < minSeq) minSeq = seq;
+            if (seq < maxSeq) { // Llega después de uno mayor: reordenado, y llena un hueco
+                reordered++;
+                wReordered++;
+                wFilled++;
+                reorderExtent.record(maxSeq - seq);
+            } else {
+                if (maxSeq >= 0 && seq > maxSeq + 1) {
+                    wSkipped += seq - maxSeq - 1;
+                    wSkipRuns++;
+                }
+                maxSeq = seq;
+            }
+            if (sendCol >= 0) {
+                if (prevArrival >= 0) {
+                    long d = Math.abs((t - prevArrival) - (send - prevSend));
+                    jitterNs += (d - jitterNs) / 16;
+                    transit.record(d);
+                    wTransit.record(d);
+                    jitterHist.record(Math.round(jitterNs));
+                }
+                prevArrival = t;
+                prevSend = send;
+            }
+        }
+
+        /**
+         * Vacía el heap y calcula las rachas de pérdida y de recepción sobre el rango de seq.
+         */
+        void finish() {
+            while (hSize > 0) {
+                process(hTime[0], hSeq[0], hSend[0]);
+                pop();
+            }
+            if (series != null) flushWindow();
+            if (received == 0) return;
+            rangeLo = expectedSeqs > 0 ? 1 : minSeq;
+            rangeHi = expectedSeqs > 0 ? expectedSeqs : maxSeq;
+            expected = rangeHi - rangeLo + 1;
+            long s = rangeLo;
+            while (s <= rangeHi) {
+                boolean got = seen.get((int) s);
+                long e = got ? seen.nextClearBit((int) s) : seen.nextSetBit((int) s);
+                if (e < 0 || e > rangeHi) e = rangeHi + 1;
+                long len = e - s;
+                long[] c = runs.computeIfAbsent(len, k -> new long[2]);
+                if (got) {
+                    c[1]++;
+                    recvRuns++;
+                } else {
+                    c[0]++;
+                    lossRuns++;
+                    lost += len;
+                    maxLossRun = Math.max(maxLossRun, len);
+                }
+                s = e;
+            }
+            if (runsOut != null) {
+                runsOut.println("length,loss_runs,received_runs");
+                for (Map.Entry<Long, long[]> r : runs.entrySet()) {
+                    runsOut.println(r.getKey() + "," + r.getValue()[0] + "," + r.getValue()[1]);
+                }
+            }
+        }
+
+        private void flushWindow() {
+            if (bucket < 0) return;
+            series.printf(Locale.US, "%.3f,%d,%d,%d,%d,%d,%d,%s,%s%n",
+                    bucket * bucketMs / 1000.0, wReceived, wDuplicates, wReordered, wSkipped, wSkipRuns, wFilled,
+                    sendCol >= 0 && prevArrival >= 0 ? String.format(Locale.US, "%.6f", jitterNs / 1e6) : "",
+                    wTransit.count() > 0 ? String.format(Locale.US, "%.6f", wTransit.percentile(99) / 1e6) : "");
+            wReceived = wDuplicates = wReordered = wSkipped = wSkipRuns = wFilled = 0;
+            wTransit.reset();
+        }
+
+        // Gilbert-Elliott con pérdida solo en el estado malo: una racha de pérdidas es una
+        // visita al estado malo. p = rachas / recibidos (salidas del estado bueno por paquete),
+        // r = rachas / perdidos (1 / largo medio de racha).
+        double geP() { return expected - lost > 0 ? (double) lossRuns / (expected - lost) : Double.NaN; }
+
+        double geR() { return lost > 0 ? (double) lossRuns / lost : Double.NaN; }
+
+        double lossPct() { return expected > 0 ? 100.0 * lost / expected : Double.NaN; }
+
+        double clpPct() { return lost > 0 ? 100.0 * (lost - lossRuns) / lost : Double.NaN; } // P(pérdida | anterior perdido)
+
+        double value(String metric) {
+            boolean jitter = sendCol >= 0 && jitterHist.count() > 0;
+            switch (metric) {
+                case "rx_jitter_ms": return jitter ? jitterNs / 1e6 : Double.NaN;
+                case "rx_jitter_mean_ms": return jitter ? jitterHist.mean() / 1e6 : Double.NaN;
+                case "duplicates": return duplicates;
+                case "reordered": return reordered;
+                case "seq_lost": return expected > 0 ? lost : Double.NaN;
+                case "seq_loss_pct": return lossPct();
+                case "loss_burst_mean": return lossRuns > 0 ? (double) lost / lossRuns : Double.NaN;
+                case "ge_p": return geP();
+                case "ge_r": return geR();
+                case "ge_clp_pct": return clpPct();
+                default: throw new IllegalArgumentException(metric);
+            }
+        }
+
+        /**
+         * Distribución compacta de largos de racha: 1..4 exactos, luego por potencias de 2.
+         */
+        String runsSummary(int which) {
+            long[] b = new long[8]; // 1, 2, 3, 4, 5-8, 9-16, 17-64, >64
+            for (Map.Entry<Long, long[]> r : runs.entrySet()) {
+                long len = r.getKey();
+                int i = len <= 4 ? (int) len - 1 : len <= 8 ? 4 : len <= 16 ? 5 : len <= 64 ? 6 : 7;
+                b[i] += r.getValue()[which];
+            }
+            String[] names = {"1", "2", "3", "4", "5-8", "9-16", "17-64", ">64"};
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < b.length; i++) {
+                if (b[i] > 0) sb.append(sb.length() > 0 ? ", " : "").append(names[i]).append('=').append(b[i]);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public void close() {
+            if (series != null) series.close();
+            if (runsOut != null) runsOut.close();
+        }
+    }
+
+    /**
+     * SeriesWriter - serie por intervalos de tiempo. Solo guarda el intervalo en curso y
+     * escribe su fila al cerrarlo, así la memoria no depende de la duración.
+     */
+    private static final class SeriesWriter implements Closeable {
+        private final PrintWriter out;
+        private final long bucketNs = bucketMs * 1_000_000L;
+        private final LatencyHistogram rtt = new LatencyHistogram(histDigits);
+        private final LatencyHistogram proc = new LatencyHistogram(histDigits);
+        private long bucket = -1; // Intervalo en curso
+        private long rows, lost, bits, jitterSum, jitterN;
+
+        SeriesWriter(Path path) throws IOException {
+            out = new PrintWriter(new BufferedWriter(new FileWriter(path.toFile())));
+            out.println("t_s,rows,lost,loss_pct,rtt_mean_ms,rtt_p50_ms,rtt_p99_ms,rtt_max_ms,jitter_mean_ms,throughput_mbps,proc_p99_ms");
+        }
+
+        /**
+         * relNs es el tiempo de la fila desde el inicio del archivo; -1 = dato ausente.
+         */
+        void add(long relNs, boolean isLost, long rttNs, long jitterNs, long rowBits, long procNs) {
+            long b = Math.max(0, relNs) / bucketNs;
+            if (b > bucket) { // Fila fuera de orden hacia atrás: queda en el intervalo en curso
+                flush();
+                bucket = b;
+            }
+            rows++;
+            if (isLost) lost++;
+            bits += rowBits;
+            if (rttNs >= 0 && !isLost) rtt.record(rttNs);
+            if (jitterNs >= 0) { jitterSum += jitterNs; jitterN++; }
+            if (procNs >= 0) proc.record(procNs);
+        }
+
+        private void flush() {
+            if (rows == 0) return;
+            out.printf(Locale.US, "%.3f,%d,%d,%.3f,%s,%s,%s,%s,%s,%.6f,%s%n",
+                    bucket * bucketMs / 1000.0, rows, lost, 100.0 * lost / rows,
+                    msOrEmpty(rtt, rtt.mean()), msOrEmpty(rtt, rtt.percentile(50)), msOrEmpty(rtt, rtt.percentile(99)),
+                    msOrEmpty(rtt, rtt.max()),
+                    jitterN > 0 ? String.format(Locale.US, "%.6f", jitterSum / 1e6 / jitterN) : "",
+                    bits / (bucketNs / 1e9) / 1e6, msOrEmpty(proc, proc.percentile(99)));
+            rows = lost = bits = jitterSum = jitterN = 0;
+            rtt.reset();
+            proc.reset();
+        }
+
+        private static String msOrEmpty(LatencyHistogram h, double ns) {
+            return h.count() > 0 ? String.format(Locale.US, "%.6f", ns / 1e6) : "";
+        }
+
+        @Override
+        public void close() {
+            flush();
+            out.close();
+        }
+    }
+
+    // ================== LECTURA MAPEADA ==================
+    /**
+     * MappedCsv - lector de CSV sobre ventanas de memoria mapeada. Cada fila se divide en
+     * posiciones de inicio y fin de campo dentro del buffer; los números se interpretan
+     * directamente desde los bytes. Una fila cortada por el final de la ventana se vuelve
+     * a leer desde su inicio en la ventana siguiente.
+     */
+    private static final class MappedCsv implements Closeable {
+        private static final double[] POW10 = new double[23];
+        static {
+            POW10[0] = 1;
+            for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10;
+        }
+
+        private final FileChannel ch;
+        private final long size, chunk;
+        private MappedByteBuffer buf;
+        private long base; // Posición en el archivo del byte 0 de buf
+        private int pos; // Inicio de la próxima fila dentro de buf
+        private int[] start = new int[16], end = new int[16];
+        private int fields;
+
+        MappedCsv(Path file, long chunk) throws IOException {
+            this.ch = FileChannel.open(file, StandardOpenOption.READ);
+            this.size = ch.size();
+            this.chunk = Math.min(chunk, Integer.MAX_VALUE);
+            map(0);
+        }
+
+        private void map(long at) throws IOException {
+            base = at;
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, at, Math.min(chunk, size - at));
+            pos = 0;
+        }
+
+        /**
+         * Lee la cabecera (primera fila) como texto.
+         */
+        String header() throws IOException {
+            if (!next()) throw new IOException("Archivo vacío");
+            byte[] b = new byte[end[fields - 1] - start[0]];
+            for (int i = 0; i < b.length; i++) b[i] = buf.get(start[0] + i);
+            String h = new String(b, StandardCharsets.UTF_8);
+            return h.startsWith("\uFEFF") ? h.substring(1) : h; // BOM de archivos editados a mano
+        }
+
+        /**
+         * Avanza a la siguiente fila no vacía. Retorna false al final del archivo.
+         */
+        boolean next() throws IOException {
+            while (true) {
+                int limit = buf.limit();
+                int eol = pos;
+                while (eol < limit && buf.get(eol) != '\n') eol++;
+                if (eol == limit && base + limit < size) { // Fila cortada: remapear desde su inicio
+                    if (pos == 0) throw new IOException("Fila más larga que la ventana de mapeo (--chunk)");
+                    map(base + pos);
+                    continue;
+                }
+                if (pos >= limit) return false;
+                int lineEnd = eol > pos && buf.get(eol - 1) == '\r' ? eol - 1 : eol;
+                split(pos, lineEnd);
+                pos = eol + 1;
+                if (lineEnd > start[0]) return true; // Saltar filas vacías
+            }
+        }
+
+        private void split(int from, int to) {
+            fields = 0;
+            int s = from;
+            for (int i = from; i <= to; i++) {
+                if (i == to || buf.get(i) == ',') {
+                    if (fields == start.length) {
+                        start = Arrays.copyOf(start, fields * 2);
+                        end = Arrays.copyOf(end, fields * 2);
+                    }
+                    start[fields] = s;
+                    end[fields] = i;
+                    fields++;
+                    s = i + 1;
+                }
+            }
+        }
+
+        boolean isEmpty(int c) { return c >= fields || start[c] == end[c]; }
+
+        /**
+         * k-ésimo byte del campo c (0 si no existe).
+         */
+        byte byteAt(int c, int k) { return c < fields && start[c] + k < end[c] ? buf.get(start[c] + k) : 0; }
+
+        /**
+         * Entero del campo c (0 si está vacío); con decimales se trunca.
+         */
+        long longAt(int c) {
+            if (isEmpty(c)) return 0;
+            int i = start[c], e = end[c];
+            boolean neg = buf.get(i) == '-';
+            if (neg) i++;
+            long v = 0;
+            for (; i < e; i++) {
+                byte b = buf.get(i);
+                if (b < '0' || b > '9') return (long) doubleAt(c);
+                v = v * 10 + (b - '0');
+            }
+            return neg ? -v : v;
+        }
+
+        /**
+         * Decimal del campo c sin crear objetos (formato de printf %.Nf); otros formatos,
+         * como los exponentes, pasan por Double.parseDouble.
+         */
+        double doubleAt(int c) {
+            if (isEmpty(c)) return Double.NaN;
+            int i = start[c], e = end[c];
+            boolean neg = buf.get(i) == '-';
+            if (neg) i++;
+            long mant = 0;
+            int scale = 0, digits = 0;
+            boolean dot = false;
+            for (; i < e; i++) {
+                byte b = buf.get(i);
+                if (b >= '0' && b <= '9') {
+                    if (digits < 18) {
+                        mant = mant * 10 + (b - '0');
+                        if (mant > 0) digits++;
+                        if (dot) scale++;
+                    } else if (!dot) {
+                        scale--; // Dígitos enteros que no caben en la mantisa
+                    }
+                } else if (b == '.' && !dot) {
+                    dot = true;
+                } else {
+                    return Double.parseDouble(text(c));
+                }
+            }
+            double v = scale >= 0 ? mant / POW10[Math.min(scale, 22)] : mant * POW10[Math.min(-scale, 22)];
+            return neg ? -v : v;
+        }
+
+        private String text(int c) {
+            byte[] b = new byte[end[c] - start[c]];
+            for (int i = 0; i < b.length; i++) b[i] = buf.get(start[c] + i);
+            return new String(b, StandardCharsets.US_ASCII).trim();
+        }
+
+        @Override
+        public void close() throws IOException { ch.close(); }
+    }
+
+    // ================== REPORTES ==================
+    private static void printReport(FileStats s, double sec) {
+        System.out.printf(Locale.US, "%n=== %s (%s) ===%n", s.file, s.kind);
+        System.out.printf(Locale.US, "Filas: %d (%d respondidas, %d perdidas/rechazadas = %.3f%%), duración=%.3f s, leídas en %.2f s (%.1f M filas/s)%n",
+                s.rows, s.answered, s.lost, s.value("loss_pct"), s.durationSec(), sec, s.rows / 1e6 / Math.max(sec, 1e-9));
+        if (s.rtt.count() > 0) System.out.println("RTT (ms): " + s.rtt.summaryMs());
+        if (s.jitter.count() > 0) System.out.println("Jitter (ms): " + s.jitter.summaryMs());
+        if (s.msgThr.count() > 0) {
+            System.out.printf(Locale.US, "Throughput por mensaje (Mb/s): p10=%.3f, p50=%.3f, p90=%.3f%n",
+                    s.msgThr.percentile(10) / 1e6, s.msgThr.percentile(50) / 1e6, s.msgThr.percentile(90) / 1e6);
+        }
+        if (!Double.isNaN(s.value("throughput_mbps"))) System.out.printf(Locale.US, "Throughput agregado: %.3f Mb/s%n", s.value("throughput_mbps"));
+        if (s.procHist.count() > 0) System.out.println("Tiempo en el servidor (ms): " + s.procHist.summaryMs());
+        if (s.gap.count() > 0) {
+            System.out.println((s.client ? "Intervalo entre envíos" : "Intervalo entre llegadas") + " (ms): " + s.gap.summaryMs());
+        }
+        if (s.receiver != null && s.receiver.received > 0) printReceiver(s.receiver);
+    }
+
+    private static void printReceiver(ReceiverStats r) {
+        System.out.printf(Locale.US, "Receptor (seq %d..%d): esperados=%d, recibidos=%d, perdidos=%d (%.3f%%), duplicados=%d, reordenados=%d%s%n",
+                r.rangeLo, r.rangeHi, r.expected, r.expected - r.lost, r.lost, r.lossPct(), r.duplicates, r.reordered,
+                r.ignored > 0 ? ", seq inválidos=" + r.ignored : "");
+        if (r.jitterHist.count() > 0) {
+            System.out.printf(Locale.US, "Jitter RFC 3550 (ms): final=%.6f, promedio=%.6f, p99=%.6f, máx=%.6f%n",
+                    r.jitterNs / 1e6, r.jitterHist.mean() / 1e6, r.jitterHist.percentile(99) / 1e6, r.jitterHist.max() / 1e6);
+            System.out.println("Variación de tránsito |D| (ms): " + r.transit.summaryMs());
+        } else {
+            System.out.println("Jitter RFC 3550: n/d (el archivo no tiene client_send_ns)");
+        }
+        if (r.reordered > 0) {
+            System.out.printf(Locale.US, "Desplazamiento de los reordenados (seq): p50=%d, p99=%d, máx=%d%n",
+                    r.reorderExtent.percentile(50), r.reorderExtent.percentile(99), r.reorderExtent.max());
+        }
+        if (r.lost > 0) {
+            System.out.printf(Locale.US, "Rachas de pérdida: %d, largo medio=%.2f, máx=%d; largos: %s%n",
+                    r.lossRuns, (double) r.lost / r.lossRuns, r.maxLossRun, r.runsSummary(0));
+            System.out.printf(Locale.US, "Rachas de recepción: %d, largo medio=%.2f; largos: %s%n",
+                    r.recvRuns, (double) (r.expected - r.lost) / Math.max(1, r.recvRuns), r.runsSummary(1));
+            double clp = r.clpPct(), ulp = r.lossPct();
+            System.out.printf(Locale.US, "Gilbert-Elliott: p=%.6f, r=%.6f, P(pérdida | anterior perdido)=%.2f%% vs pérdida total=%.3f%% -> %s%n",
+                    r.geP(), r.geR(), clp, ulp, clp > 2 * ulp ? "pérdidas en ráfagas" : "pérdidas independientes (cercanas a Bernoulli)");
+        }
+    }
+
+    private static void writeSummary(List<Path> files, Map<Path, FileStats> stats) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(outPath)))) {
+            out.println("file,kind," + String.join(",", METRICS));
+            for (Path f : files) {
+                FileStats s = stats.get(f);
+                StringBuilder row = new StringBuilder().append(f.getFileName()).append(',').append(s.kind);
+                for (String m : METRICS) row.append(',').append(format(s.value(m)));
+                out.println(row);
+            }
+        }
+    }
+
+    /**
+     * idealPairs - empareja cada archivo "noIdeal" con el ideal del mismo nombre.
+     */
+    private static List<Path[]> idealPairs(List<Path> files) {
+        Map<String, Path> ideal = new HashMap<>();
+        for (Path f : files) {
+            String key = pairKey(f);
+            if (key != null && !isNoIdeal(f)) ideal.put(key, f);
+        }
+        List<Path[]> pairs = new ArrayList<>();
+        for (Path f : files) {
+            if (!isNoIdeal(f)) continue;
+            Path i = ideal.get(pairKey(f));
+            if (i != null) pairs.add(new Path[] {i, f});
+        }
+        return pairs;
+    }
+
+    private static boolean isNoIdeal(Path f) { return f.getFileName().toString().toLowerCase(Locale.ROOT).contains("noideal"); }
+
+    private static String pairKey(Path f) {
+        String n = f.getFileName().toString().toLowerCase(Locale.ROOT);
+        Path dir = f.toAbsolutePath().getParent();
+        return dir + "/" + n.replaceAll("_?noideal", "").replaceAll("\\.csv$", "");
+    }
+
+    /**
+     * printComparison - tabla métrica por métrica: ideal, no ideal, diferencia y razón.
+     */
+    private static void printComparison(FileStats a, FileStats b, PrintWriter cmp) {
+        System.out.printf("%n=== Ideal vs no ideal: %s vs %s ===%n", a.file.getFileName(), b.file.getFileName());
+        System.out.printf(Locale.US, "%-18s %14s %14s %14s %9s%n", "Métrica", "Ideal", "No ideal", "Diferencia", "Razón");
+        for (String m : METRICS) {
+            double x = a.value(m), y = b.value(m);
+            if (Double.isNaN(x) && Double.isNaN(y)) continue;
+            double diff = y - x;
+            double ratio = x != 0 ? y / x : Double.NaN;
+            System.out.printf(Locale.US, "%-18s %14s %14s %14s %9s%n", m, format(x), format(y), format(diff),
+                    Double.isNaN(ratio) ? "-" : String.format(Locale.US, "%.2fx", ratio));
+            if (cmp != null) {
+                cmp.println(a.file.getFileName() + "," + b.file.getFileName() + "," + m + "," + format(x) + "," + format(y)
+                        + "," + format(diff) + "," + format(ratio));
+            }
+        }
+    }
+
+    private static String format(double v) {
+        if (Double.isNaN(v)) return "";
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) return String.valueOf((long) v);
+        return String.format(Locale.US, "%.6f", v);
+    }
+}
@@ -0,0 +1,498 @@
+/**************************************************************
+         		Pontificia Universidad Javeriana
+     Autor: Daniela Medina
+     Fecha: 17 Octubre 2026
+     Materia: Sistemas Distribuidos
+     Tema: Laboratorio de Sockets
+****************************************************************/
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * socketsweep - Benchmark sweep runner for the socket labs (the lanzador.pl of this lab).
+ *
+ * Iterates a declared parameter matrix (protocol x payload size x nodelay x rcvbuf x
+ * sndbuf x interval x connections). Every configuration runs --warmup-reps discarded
+ * repetitions and then --reps measured ones, and the sweep writes one aggregated row per
+ * configuration with the mean and the 95% confidence interval (Student t) of each metric
+ * across repetitions.
+ *
+ * Usage:
+ *   java socketsweep --proto tcp,udp --size 64,1024,8192 --conns 1,8 -n 1000 --reps 30
+ *   java socketsweep --proto tcp --nodelay true,false --rcvbuf 0,65536 --sndbuf 0,65536 --interval 0,1 -out barrido.csv
+ *   java socketsweep --server inproc --proto tcp --size 64,4096 --reps 10 --server-args "--mode nio"
+ *   java socketsweep --server external -h 10.0.0.5 --proto tcp,udp --size 64,1024 --reps 10
+ *
+ * Matrix (comma-separated lists):
+ *   --proto tcp,udp   --size bytes   --nodelay true,false   --rcvbuf bytes   --sndbuf bytes
+ *   --interval ms     --conns N
+ *   rcvbuf/sndbuf 0 keep the OS default. nodelay, rcvbuf and sndbuf only exist for TCP; for
+ *   UDP they collapse to a single "-" value. TCP passes --conns to the client (-c N); for
+ *   UDP the sweep starts N client processes at once.
+ *
+ * Servers (--server):
+ * - process (default): sockettcpser / socketudpser as child JVMs with the same classpath,
+ *   started once for the whole sweep (log and server CSV in --workdir).
+ * - inproc: both servers run on daemon threads inside this JVM.
+ * - external: servers already running at -h, -p (TCP) and --udp-port (UDP).
+ *
+ * Every repetition is a fresh client JVM, as in lanzador.pl. TCP clients also run their own
+ * --client-warmup messages. The sweep parses the client CSV of each repetition:
+ * - RTT from client_recv_ns - client_send_ns (mean, p50, p99)
+ * - messages/s and Mb/s of payload over the span of the repetition
+ * - loss: messages not answered (UDP timeout, TCP BUSY or missing rows)
+ * With several UDP client processes the span mixes their nanoTime clocks, so it is only
+ * meaningful on one host. A failed repetition (timeout, no rows) is counted and kept out
+ * of the statistics, and its client log stays in --workdir.
+ */
+public class socketsweep {
+
+    // Matriz de parámetros (listas separadas por coma)
+    private static String[] protos = {"tcp"};
+    private static String[] sizes = {"64"};
+    private static String[] nodelays = {"true"};
+    private static String[] rcvbufs = {"0"};
+    private static String[] sndbufs = {"0"};
+    private static String[] intervals = {"0"};
+    private static String[] connsList = {"1"};
+
+    // Ejecución
+    private static int iterations = 1000;      // mensajes por conexión en cada repetición
+    private static int reps = 30;              // repeticiones medidas por configuración
+    private static int warmupReps = 1;         // repeticiones descartadas por configuración
+    private static int clientWarmup = 5;       // mensajes de calentamiento dentro de cada cliente TCP
+    private static int udpTimeoutMs = 2000;    // timeout de recepción del cliente UDP
+    private static long runTimeoutSec = 600;   // tiempo máximo de una repetición
+    private static String serverMode = "process"; // process | inproc | external
+    private static String host = "127.0.0.1";
+    private static int tcpPort = 6001;
+    private static int udpPort = 6002;
+    private static String[] extraServerArgs = {}; // argumentos extra para sockettcpser
+    private static String[] extraClientArgs = {}; // argumentos extra para sockettcpcli
+    private static String outPath = "sweep_results.csv";
+    private static String runsPath = null;     // CSV opcional con una fila por repetición
+    private static Path workdir = Paths.get("sweep_work");
+
+    private static final List<Process> servers = new ArrayList<>();
+
+    // Métricas por repetición (mismo orden en el CSV agregado)
+    private static final String[] METRICS = {"rtt_mean_ms", "rtt_p50_ms", "rtt_p99_ms", "msgs_per_s", "mbps", "loss_pct"};
+
+    public static void main(String[] args) {
+        parseArgs(args);
+        List<Config> configs = buildMatrix();
+        System.out.println("Barrido de sockets - " + configs.size() + " configuraciones x (" + warmupReps + " calentamiento + "
+                + reps + " medidas), n=" + iterations + " mensajes por conexión, servidor=" + serverMode);
+        try {
+            Files.createDirectories(workdir);
+            Runtime.getRuntime().addShutdownHook(new Thread(socketsweep::stopServers));
+            startServers(configs);
+            try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(outPath)));
+                 PrintWriter runs = runsPath != null ? new PrintWriter(new BufferedWriter(new FileWriter(runsPath))) : null) {
+                out.println(Config.HEADER + ",reps,failed," + String.join(",", ciColumns()));
+                if (runs != null) runs.println(Config.HEADER + ",rep," + String.join(",", METRICS));
+                for (int c = 0; c < configs.size(); c++) {
+                    Config cfg = configs.get(c);
+                    List<double[]> samples = runConfig(cfg, runs);
+                    int failed = reps - samples.size();
+                    StringBuilder row = new StringBuilder(cfg.csv()).append(',').append(samples.size()).append(',').append(failed);
+                    StringBuilder line = new StringBuilder();
+                    for (int m = 0; m < METRICS.length; m++) {
+                        double[] ci = meanCi(samples, m);
+                        row.append(String.format(Locale.US, ",%.6f,%.6f", ci[0], ci[1]));
+                        if (m != 1) line.append(String.format(Locale.US, " %s=%.3f±%.3f", METRICS[m], ci[0], ci[1]));
+                    }
+                    out.println(row);
+                    out.flush();
+                    System.out.printf("[%d/%d] %s:%s%s%n", c + 1, configs.size(), cfg, line, failed > 0 ? " (" + failed + " fallidas)" : "");
+                }
+            }
+            System.out.println("Resultados agregados en: " + outPath + (runsPath != null ? ", repeticiones en: " + runsPath : ""));
+        } catch (IOException e) {
+            System.err.println("Error en el barrido: " + e.getMessage());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopServers();
+        }
+    }
+
+    /**
+     * parseArgs - analiza la línea de comando: listas de la matriz y opciones de ejecución.
+     */
+    private static void parseArgs(String[] argv) {
+        for (int i = 0; i < argv.length; i++) {
+            switch (argv[i]) {
+                case "--proto": protos = list(argv[++i]); break; // tcp, udp
+                case "--size": sizes = list(argv[++i]); break; // Tamaños de payload (bytes)
+                case "--nodelay": nodelays = list(argv[++i]); break; // TCP_NODELAY (true/false)
+                case "--rcvbuf": rcvbufs = list(argv[++i]); break; // SO_RCVBUF del cliente TCP (0 = SO)
+                case "--sndbuf": sndbufs = list(argv[++i]); break; // SO_SNDBUF del cliente TCP (0 = SO)
+                case "--interval": intervals = list(argv[++i]); break; // Pausa entre mensajes (ms)
+                case "--conns": connsList = list(argv[++i]); break; // Conexiones concurrentes
+                case "-n": iterations = Integer.parseInt(argv[++i]); break; // Mensajes por conexión
+                case "--reps": reps = Integer.parseInt(argv[++i]); break; // Repeticiones medidas
+                case "--warmup-reps": warmupReps = Integer.parseInt(argv[++i]); break; // Repeticiones descartadas
+                case "--client-warmup": clientWarmup = Integer.parseInt(argv[++i]); break; // Calentamiento del cliente TCP
+                case "--udp-timeout": udpTimeoutMs = Integer.parseInt(argv[++i]); break; // Timeout del cliente UDP
+                case "--run-timeout": runTimeoutSec = Long.parseLong(argv[++i]); break; // Límite de una repetición (s)
+                case "--server": serverMode = argv[++i]; break; // process | inproc | external
+                case "-h": host = argv[++i]; break; // Host de los servidores
+                case "-p": tcpPort = Integer.parseInt(argv[++i]); break; // Puerto TCP
+                case "--udp-port": udpPort = Integer.parseInt(argv[++i]); break; // Puerto UDP
+                case "--server-args": extraServerArgs = argv[++i].trim().split("\\s+"); break; // Extra para sockettcpser
+                case "--client-args": extraClientArgs = argv[++i].trim().split("\\s+"); break; // Extra para sockettcpcli
+                case "-out": outPath = argv[++i]; break; // CSV agregado
+                case "--runs": runsPath = argv[++i]; break; // CSV por repetición
+                case "--workdir": workdir = Paths.get(argv[++i]); break; // Logs y CSV intermedios
+                default:
+                    System.err.println("Opción desconocida: " + argv[i]);
+            }
+        }
+        if (extraServerArgs.length == 1 && extraServerArgs[0].isEmpty()) extraServerArgs = new String[0];
+        if (extraClientArgs.length == 1 && extraClientArgs[0].isEmpty()) extraClientArgs = new String[0];
+        if (!"external".equals(serverMode)) host = "127.0.0.1";
+        if (iterations <= 0) iterations = 1; // -n 0 sería el modo interactivo del cliente
+    }
+
+    private static String[] list(String csv) { return csv.split(","); }
+
+    /**
+     * buildMatrix - producto cartesiano de las listas; en UDP las dimensiones que no
+     * existen (nodelay, rcvbuf, sndbuf) se reducen a un único valor "-".
+     */
+    private static List<Config> buildMatrix() {
+        String[] none = {"-"};
+        List<Config> configs = new ArrayList<>();
+        for (String proto : protos) {
+            boolean tcp = "tcp".equalsIgnoreCase(proto);
+            if (!tcp && !"udp".equalsIgnoreCase(proto)) throw new IllegalArgumentException("Protocolo desconocido: " + proto);
+            for (String size : sizes)
+                for (String nodelay : tcp ? nodelays : none)
+                    for (String rcvbuf : tcp ? rcvbufs : none)
+                        for (String sndbuf : tcp ? sndbufs : none)
+                            for (String interval : intervals)
+                                for (String conns : connsList)
+                                    configs.add(new Config(tcp ? "tcp" : "udp", Integer.parseInt(size), nodelay, rcvbuf, sndbuf,
+                                            Integer.parseInt(interval), Integer.parseInt(conns)));
+        }
+        return configs;
+    }
+
+    /**
+     * Una configuración de la matriz.
+     */
+    private static class Config {
+        static final String HEADER = "proto,size,nodelay,rcvbuf,sndbuf,interval_ms,conns";
+
+        final String proto;
+        final int size;
+        final String nodelay, rcvbuf, sndbuf; // "-" en UDP
+        final int intervalMs;
+        final int conns;
+
+        Config(String proto, int size, String nodelay, String rcvbuf, String sndbuf, int intervalMs, int conns) {
+            this.proto = proto;
+            this.size = size;
+            this.nodelay = nodelay;
+            this.rcvbuf = rcvbuf;
+            this.sndbuf = sndbuf;
+            this.intervalMs = intervalMs;
+            this.conns = Math.max(1, conns);
+        }
+
+        boolean tcp() { return "tcp".equals(proto); }
+
+        /**
+         * Argumentos de un proceso cliente que escribe su CSV en csv.
+         */
+        List<String> clientArgs(Path csv) {
+            List<String> a = new ArrayList<>();
+            if (tcp()) {
+                a.add("sockettcpcli");
+                a.addAll(Arrays.asList("-h", host, "-p", String.valueOf(tcpPort), "--warmup", String.valueOf(clientWarmup)));
+                a.add(Boolean.parseBoolean(nodelay) ? "--nodelay" : "--nodelay=false");
+                if (!"0".equals(rcvbuf)) a.addAll(Arrays.asList("--rcvbuf", rcvbuf));
+                if (!"0".equals(sndbuf)) a.addAll(Arrays.asList("--sndbuf", sndbuf));
+                if (conns > 1) a.addAll(Arrays.asList("-c", String.valueOf(conns)));
+            } else {
+                a.add("socketudpcli");
+                a.addAll(Arrays.asList("-h", host, "-p", String.valueOf(udpPort), "--timeout", String.valueOf(udpTimeoutMs)));
+            }
+            a.addAll(Arrays.asList("-n", String.valueOf(iterations), "-size", String.valueOf(size),
+                    "-interval", String.valueOf(intervalMs), "-csv", csv.toString()));
+            if (tcp()) a.addAll(Arrays.asList(extraClientArgs));
+            return a;
+        }
+
+        String csv() { return String.join(",", proto, String.valueOf(size), nodelay, rcvbuf, sndbuf, String.valueOf(intervalMs), String.valueOf(conns)); }
+
+        @Override
+        public String toString() {
+            return proto + " size=" + size + (tcp() ? " nodelay=" + nodelay + " rcvbuf=" + rcvbuf + " sndbuf=" + sndbuf : "")
+                    + " interval=" + intervalMs + " conns=" + conns;
+        }
+    }
+
+    // ================== SERVIDORES ==================
+    /**
+     * startServers - levanta los servidores que la matriz necesita (salvo --server external)
+     * y espera a que acepten tráfico.
+     */
+    private static void startServers(List<Config> configs) throws IOException, InterruptedException {
+        if ("external".equals(serverMode)) return;
+        boolean tcp = false, udp = false;
+        for (Config c : configs) {
+            if (c.tcp()) tcp = true; else udp = true;
+        }
+        if (tcp) {
+            List<String> a = new ArrayList<>(Arrays.asList("-p", String.valueOf(tcpPort),
+                    "-csv", workdir.resolve("sweep_server_tcp.csv").toString(), "--quiet"));
+            a.addAll(Arrays.asList(extraServerArgs));
+            startServer("sockettcpser", a);
+        }
+        if (udp) {
+            startServer("socketudpser", Arrays.asList("-p", String.valueOf(udpPort),
+                    "-csv", workdir.resolve("sweep_server_udp.csv").toString(), "--quiet"));
+        }
+    }
+
+    private static void startServer(String main, List<String> args) throws IOException, InterruptedException {
+        String[] argv = args.toArray(new String[0]);
+        if ("inproc".equals(serverMode)) {
+            Thread t = new Thread(() -> {
+                try {
+                    if ("sockettcpser".equals(main)) sockettcpser.main(argv); else socketudpser.main(argv);
+                } catch (Exception e) {
+                    System.err.println("Error en servidor " + main + ": " + e.getMessage());
+                }
+            }, "sweep-" + main);
+            t.setDaemon(true);
+            t.start();
+            awaitReady(main, null, null);
+            return;
+        }
+        Path log = workdir.resolve(main + ".log");
+        List<String> cmd = new ArrayList<>(javaCommand());
+        cmd.add(main);
+        cmd.addAll(args);
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+        servers.add(p);
+        awaitReady(main, p, log);
+    }
+
+    /**
+     * awaitReady - espera el "escuchando" del log del servidor (o, en proceso, que el
+     * puerto TCP acepte conexiones). Falla si el proceso termina o pasan 15 s.
+     */
+    private static void awaitReady(String main, Process p, Path log) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+        while (System.nanoTime() < deadline) {
+            if (p != null && !p.isAlive()) throw new IOException(main + " terminó al iniciar (ver " + log + ")");
+            if (log != null) {
+                if (Files.exists(log) && new String(Files.readAllBytes(log), StandardCharsets.UTF_8).contains("escuchando")) return;
+            } else if ("sockettcpser".equals(main)) {
+                try (Socket s = new Socket()) {
+                    s.connect(new InetSocketAddress(host, tcpPort), 200);
+                    return;
+                } catch (IOException notYet) {
+                    // Aún no escucha
+                }
+            } else {
+                Thread.sleep(500); // El servidor UDP no tiene forma de sondearse sin enviarle tráfico
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new IOException(main + " no quedó listo en 15 s");
+    }
+
+    private static void stopServers() {
+        for (Process p : servers) p.destroy();
+        for (Process p : servers) {
+            try {
+                if (!p.waitFor(5, TimeUnit.SECONDS)) p.destroyForcibly();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        servers.clear();
+    }
+
+    /**
+     * Comando para lanzar otra JVM con el mismo java y classpath que este proceso.
+     */
+    private static List<String> javaCommand() {
+        return Arrays.asList(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"));
+    }
+
+    // ================== REPETICIONES ==================
+    /**
+     * runConfig - corre las repeticiones de calentamiento y las medidas de una
+     * configuración. Retorna las métricas de las repeticiones que terminaron bien.
+     */
+    private static List<double[]> runConfig(Config cfg, PrintWriter runs) throws IOException, InterruptedException {
+        List<double[]> samples = new ArrayList<>();
+        for (int r = -warmupReps; r < reps; r++) {
+            double[] m = runOnce(cfg, r);
+            if (r < 0 || m == null) continue; // Calentamiento o repetición fallida
+            samples.add(m);
+            if (runs != null) {
+                StringBuilder row = new StringBuilder(cfg.csv()).append(',').append(r + 1);
+                for (double v : m) row.append(String.format(Locale.US, ",%.6f", v));
+                runs.println(row);
+            }
+        }
+        if (runs != null) runs.flush();
+        return samples;
+    }
+
+    /**
+     * runOnce - una repetición: lanza los procesos cliente, espera que terminen y lee
+     * sus CSV. Retorna null si falló (el log del cliente queda en el workdir).
+     */
+    private static double[] runOnce(Config cfg, int rep) throws IOException, InterruptedException {
+        int procs = cfg.tcp() ? 1 : cfg.conns; // TCP usa -c; UDP, un proceso por conexión
+        String tag = cfg.csv().replace(',', '_') + "_r" + (rep < 0 ? "w" + (-rep) : String.valueOf(rep + 1));
+        Path[] csv = new Path[procs], log = new Path[procs];
+        Process[] p = new Process[procs];
+        for (int k = 0; k < procs; k++) {
+            csv[k] = workdir.resolve("cli_" + tag + "_" + k + ".csv");
+            log[k] = workdir.resolve("cli_" + tag + "_" + k + ".log");
+            List<String> cmd = new ArrayList<>(javaCommand());
+            cmd.addAll(cfg.clientArgs(csv[k]));
+            p[k] = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(log[k].toFile()).start();
+        }
+        boolean ok = true;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(runTimeoutSec);
+        for (int k = 0; k < procs; k++) {
+            long left = Math.max(1, deadline - System.nanoTime());
+            if (!p[k].waitFor(left, TimeUnit.NANOSECONDS)) {
+                p[k].destroyForcibly();
+                System.err.println("Repetición " + tag + " excedió " + runTimeoutSec + " s (ver " + log[k] + ")");
+                ok = false;
+            }
+        }
+        RunStats stats = new RunStats();
+        if (ok) {
+            for (int k = 0; k < procs && ok; k++) ok = Files.exists(csv[k]) && stats.read(csv[k]);
+            if (!ok) System.err.println("Repetición " + tag + " sin resultados (ver " + log[0] + ")");
+        }
+        for (int k = 0; k < procs; k++) {
+            Files.deleteIfExists(csv[k]);
+            if (ok) Files.deleteIfExists(log[k]);
+        }
+        return ok ? stats.metrics((long) iterations * cfg.conns, cfg.size) : null;
+    }
+
+    /**
+     * RunStats - acumula las filas de los CSV cliente de una repetición. El RTT se
+     * calcula con los timestamps en ns (la columna rtt_ms del cliente UDP está en ms enteros).
+     */
+    private static class RunStats {
+        final LatencyHistogram rtt = new LatencyHistogram(3);
+        long answered = 0;
+        long firstSendNs = Long.MAX_VALUE, lastRecvNs = Long.MIN_VALUE;
+
+        /**
+         * Lee un CSV cliente (TCP o UDP) por nombre de columna. Retorna false si no tiene filas.
+         */
+        boolean read(Path csv) throws IOException {
+            try (BufferedReader in = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+                String header = in.readLine();
+                if (header == null) return false;
+                Map<String, Integer> col = new HashMap<>();
+                String[] names = header.split(",");
+                for (int i = 0; i < names.length; i++) col.put(names[i], i);
+                int send = col.get("client_send_ns"), recv = col.get("client_recv_ns");
+                int lost = col.getOrDefault("lost", -1), status = col.getOrDefault("status", -1);
+                long rows = 0;
+                for (String line; (line = in.readLine()) != null; ) {
+                    String[] f = line.split(",", -1);
+                    if (f.length <= recv) continue;
+                    rows++;
+                    long t1 = Long.parseLong(f[send]), t4 = Long.parseLong(f[recv]);
+                    if (t1 < firstSendNs) firstSendNs = t1;
+                    if ((lost >= 0 && Boolean.parseBoolean(f[lost])) || (status >= 0 && "busy".equals(f[status])) || t4 < t1) {
+                        continue; // Perdido (UDP) o rechazado (TCP BUSY): no entra al RTT
+                    }
+                    if (t4 > lastRecvNs) lastRecvNs = t4;
+                    rtt.record(t4 - t1);
+                    answered++;
+                }
+                return rows > 0;
+            }
+        }
+
+        /**
+         * Métricas de la repetición en el orden de METRICS.
+         */
+        double[] metrics(long expected, int size) {
+            double spanSec = lastRecvNs > firstSendNs ? (lastRecvNs - firstSendNs) / 1e9 : 0;
+            return new double[] {
+                    rtt.mean() / 1e6,
+                    rtt.percentile(50) / 1e6,
+                    rtt.percentile(99) / 1e6,
+                    spanSec > 0 ? answered / spanSec : 0,
+                    spanSec > 0 ? answered * size * 8.0 / spanSec / 1e6 : 0,
+                    expected > 0 ? 100.0 * Math.max(0, expected - answered) / expected : 0
+            };
+        }
+    }
+
+    // ================== ESTADÍSTICA ==================
+    private static List<String> ciColumns() {
+        List<String> cols = new ArrayList<>();
+        for (String m : METRICS) {
+            cols.add(m);
+            cols.add(m + "_ci95");
+        }
+        return cols;
+    }
+
+    /**
+     * meanCi - promedio de la métrica m entre repeticiones y semiancho del intervalo de
+     * confianza del 95 % (t de Student con n-1 grados de libertad; 0 con una sola repetición).
+     */
+    private static double[] meanCi(List<double[]> samples, int m) {
+        int n = samples.size();
+        if (n == 0) return new double[] {Double.NaN, Double.NaN};
+        double mean = 0, m2 = 0;
+        for (int i = 0; i < n; i++) { // Welford
+            double x = samples.get(i)[m];
+            double delta = x - mean;
+            mean += delta / (i + 1);
+            m2 += delta * (x - mean);
+        }
+        if (n < 2) return new double[] {mean, 0};
+        double sd = Math.sqrt(m2 / (n - 1));
+        return new double[] {mean, studentT95(n - 1) * sd / Math.sqrt(n)};
+    }
+
+    // t de Student bilateral al 95 % para 1..30 grados de libertad
+    private static final double[] T95 = {
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
+
+    private static double studentT95(int df) {
+        if (df <= 30) return T95[df - 1];
+        if (df <= 40) return 2.021;
+        if (df <= 60) return 2.000;
+        if (df <= 120) return 1.980;
+        return 1.960;
+    }
+}
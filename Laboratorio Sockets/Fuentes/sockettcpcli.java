@@ -6,16 +6,44 @@
      Tema: Laboratorio de Sockets
 ****************************************************************/
 import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * sockettcpcli - TCP client with metrics (latency/RTT, throughput, jitter) and CSV output.
  *
  * Usage (benchmark):
  *   java sockettcpcli -h 127.0.0.1 -p 6001 -n 1000 -size 1024 -interval 10 -csv client_metrics.csv --nodelay --timeout 3000
+ *   java sockettcpcli -h 127.0.0.1 -p 6001 -n 1000 -size 4194304 --framing bin
+ *   java sockettcpcli -h 127.0.0.1 -p 6001 -n 100000 -size 1024 --window 32
+ *   java sockettcpcli -h 127.0.0.1 -p 6001 -n 1000 -c 500 --threads virtual
+ *   java sockettcpcli -h 127.0.0.1 -p 6001 -n 60000 --rate 2000
+ *   java sockettcpcli -h 127.0.0.1 -p 6001 -n 100000 --alloc-free
+ *   java sockettcpcli -h 127.0.0.1 -p 6001 -n 1000 -size 65536 --compress deflate --payload text
+ *
+ * Usage (bulk file transfer):
+ *   java sockettcpcli -h 127.0.0.1 -p 6001 --bulk bloque.bin -n 10 --copy both
  *
  * Usage (interactive):
  *   java sockettcpcli -h 127.0.0.1 -p 6001
@@ -25,6 +53,48 @@ import java.util.Locale;
  * - The client uses writeUTF/readUTF for messages. Size calculations refer to the declared payload,
  *   not including Java framing or TCP/IP overhead.
  * - For UDP tests, you can reuse the same scheme "MSG|seq|timestamp|len|payload".
+ * - With --framing bin the benchmark negotiates BinaryFrame framing ("HELLO|framing=bin"):
+ *   fixed binary header + raw payload bytes, reusable buffers and payloads larger than
+ *   65535 bytes. If the server declines, the client falls back to writeUTF.
+ * - With --window N (N > 1) the benchmark keeps up to N requests in flight; a reader
+ *   thread matches each ACK to its send timestamp by seq. Jitter is computed in ACK
+ *   arrival order.
+ * - With -c N the benchmark drives N concurrent connections from this process (fixed
+ *   thread pool, or virtual threads with --threads virtual). Per-connection statistics
+ *   are merged into the global summary and all rows go to one CSV with a conn_id column.
+ * - With --rate R (messages/s per connection) the benchmark is open-loop: sends follow an
+ *   absolute timetable independent of the ACKs, and latency is also measured from the
+ *   intended send time (coordinated-omission correction, column corrected_rtt_ms).
+ *   --window then only caps the requests in flight (unbounded when not given).
+ * - RTT is recorded in a LatencyHistogram (--hist-digits precision); the summary reports
+ *   p50/p90/p99/p99.9/max and --hist file saves it to be merged with other runs.
+ * - With --alloc-free the stop-and-wait benchmark allocates nothing per message: the
+ *   message (payload included) lives in a direct ByteBuffer written once per connection
+ *   and only its header fields are rewritten, ACKs are parsed from a direct buffer into
+ *   primitives, and timestamps go to preallocated long[] arrays; CSV rows and statistics
+ *   are produced after the measured phase. The summary always reports the bytes
+ *   allocated per message by the connection threads so regressions are visible.
+ * - --payload x|random|text chooses the payload content ('x' repeated, random bytes or
+ *   text-like words) so compressibility is realistic. --compress deflate negotiates
+ *   "codec=deflate" (binary framing only): each payload is compressed with a per-thread
+ *   Deflater (--compress-level, 1 = fastest by default) inside the measured RTT, and the
+ *   summary reports the compression ratio and compression time next to the RTT.
+ * - A server with admission control may answer "BUSY" instead of an ACK. Rejected messages
+ *   are written to the CSV with status=busy and counted apart (they do not enter the RTT
+ *   histogram); a connection rejected at accept time ("BUSY" and close) is reported as
+ *   rejected rather than as an error.
+ * - The server timestamps in the ACK come from another clock (the server's nanoTime), so
+ *   each connection estimates the server clock NTP-style from the four timestamps of every
+ *   exchange: offset = ((t2 - t1) + (t3 - t4)) / 2 and network delay = (t4 - t1) - (t3 - t2).
+ *   A minimum-delay filter keeps the least-queued exchange of every block of 8 (its offset
+ *   error is at most half its delay), and a least-squares line over those minima gives
+ *   offset and drift. With it every message is split into uplink, server residence and
+ *   downlink (columns offset_ms, uplink_ms, downlink_ms; residence is server_proc_ms), and
+ *   uplink + residence + downlink equals the RTT. Warmup exchanges also feed the estimate.
+ * - With --bulk file the client sends the whole file -n times (default 1) over one
+ *   connection, either with FileChannel.transferTo (--copy zerocopy, sendfile on Linux)
+ *   or through a byte[] stream copy (--copy stream); --copy both alternates them in the
+ *   same run. Each transfer reports MB/s, client and server CPU time and GC activity.
  */
 public class sockettcpcli {
 
@@ -40,12 +110,31 @@ public class sockettcpcli {
     private static int soTimeoutMs = 0;        // 0 => infinito
     private static int rcvBuf = 0, sndBuf = 0; // 0 => por defecto del SO
     private static int warmup = 5;             // mensajes que no se registran (calentar JVM/TCP)
+    private static int connections = 1;        // conexiones concurrentes (-c)
+    private static String threadMode = "platform"; // platform | virtual (hilos de las conexiones)
+    private static int histDigits = 2;         // dígitos significativos del histograma de latencia
+    private static String histPath = null;     // archivo .hist para combinar corridas (opcional)
+    private static double rate = 0;            // mensajes/s por conexión en lazo abierto (0 => lazo cerrado)
+    private static int window = 0;             // mensajes en vuelo (0 => sin --window: stop-and-wait, o sin límite con --rate)
+    private static String framing = "utf";     // utf (writeUTF) | bin (BinaryFrame)
+    private static int maxFrame = 64 * 1024 * 1024; // payload máximo aceptado en framing binario
+    private static String bulkPath = null;     // archivo a transferir en modo bulk (null => mensajes)
+    private static String copyMode = "both";   // zerocopy | stream | both (modo bulk)
+    private static boolean allocFree = false;  // camino de medición sin asignaciones (stop-and-wait)
+    private static String payloadKind = "x";   // x | random | text (contenido del payload)
+    private static boolean compress = false;   // negociar codec=deflate (requiere framing binario)
 
     public static void main(String[] args) {
         // Analiza los argumentos de línea de comando y configura el cliente
         parseArgs(args);
+        if (compress && !"bin".equals(framing)) {
+            framing = "bin";
+            System.out.println("[PROTO] --compress requiere framing binario: se usa --framing bin");
+        }
          // Decide el modo de ejecución según iterations: interactivo, benchmark
-        if (iterations <= 0) {
+        if (bulkPath != null) {
+            runBulk();
+        } else if (iterations <= 0) {
             runInteractive();
         } else {
             runBenchmark();
@@ -107,6 +196,49 @@ public class sockettcpcli {
                 case "--warmup":
                     warmup = Integer.parseInt(argv[++i]); // Mensajes de calentamiento
                     break;
+                case "-c":
+                case "--connections":
+                    connections = Math.max(1, Integer.parseInt(argv[++i])); // Conexiones concurrentes
+                    break;
+                case "--threads":
+                    threadMode = argv[++i].toLowerCase(Locale.ROOT); // platform | virtual
+                    break;
+                case "--hist-digits":
+                    histDigits = Integer.parseInt(argv[++i]); // Precisión del histograma (1..4)
+                    break;
+                case "--hist":
+                    histPath = argv[++i]; // Guardar histograma de RTT
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(argv[++i]); // Tasa objetivo (lazo abierto)
+                    break;
+                case "--window":
+                    window = Math.max(1, Integer.parseInt(argv[++i])); // Mensajes en vuelo
+                    break;
+                case "--framing":
+                    framing = argv[++i].toLowerCase(Locale.ROOT); // utf | bin
+                    break;
+                case "--max-frame":
+                    maxFrame = Integer.parseInt(argv[++i]); // Payload máximo en framing binario
+                    break;
+                case "--bulk":
+                    bulkPath = argv[++i]; // Archivo para el modo bulk
+                    break;
+                case "--copy":
+                    copyMode = argv[++i].toLowerCase(Locale.ROOT); // zerocopy | stream | both
+                    break;
+                case "--alloc-free":
+                    allocFree = true; // Buffers directos y métricas en arreglos primitivos
+                    break;
+                case "--payload":
+                    payloadKind = argv[++i].toLowerCase(Locale.ROOT); // x | random | text
+                    break;
+                case "--compress":
+                    compress = "deflate".equals(argv[++i].toLowerCase(Locale.ROOT)); // deflate | none
+                    break;
+                case "--compress-level":
+                    PayloadCodec.setLevel(Integer.parseInt(argv[++i])); // 1 (rápido) .. 9 (máxima)
+                    break;
                 default:
                     break; // Ignora argumentos desconocidos
             }
@@ -186,6 +318,11 @@ public class sockettcpcli {
                     long rttNs = clientRecvNs - clientSendNs; // Calcular RTT
 
                     AckFields af = parseAck(ack); // Extraer campos del ACK
+                    if (af.busy) { // El servidor rechazó el mensaje (control de admisión)
+                        System.out.printf(Locale.US, "[BUSY seq=%d] servidor saturado, mensaje no procesado (%.3f ms)%n",
+                                af.seq, rttNs / 1_000_000.0);
+                        continue;
+                    }
                     double rttMs = rttNs / 1_000_000.0; // RTT en ms
                     double serverProcMs = (af.serverSendNs - af.serverRecvNs) / 1_000_000.0; // Procesamiento server
 
@@ -214,161 +351,962 @@ public class sockettcpcli {
     // =============== BENCHMARK MODE ===============
     /**
      * runBenchmark - ejecuta el cliente en modo benchmark, enviando múltiples mensajes
-     * y registrando métricas en un archivo CSV.
+     * y registrando métricas en un archivo CSV. Con -c N abre N conexiones concurrentes
+     * en el mismo proceso, todas escribiendo en el mismo CSV (columna conn_id).
      */
-    private static void runInteractive() {
-        System.out.println("Prueba de sockets TCP (cliente) - MODO INTERACTIVO");
-        try (Socket socket = new Socket()) {
-            // Conectar al servidor con timeout de 5 segundos
-            socket.connect(new InetSocketAddress(host, port), 5000);
-            configureSocket(socket);   // Ajustar opciones del socket
-            printSocketInfo(socket);   // Mostrar info de la conexión
+    private static void runBenchmark() {
+        System.out.println("Prueba de sockets TCP (cliente) - MODO BENCHMARK");
+        System.out.printf("Destino %s:%d, n=%d, size=%d bytes, interval=%d ms, window=%s, conexiones=%d (%s), csv=%s%n",
+                host, port, iterations, payloadSize, intervalMs, window > 0 ? String.valueOf(window) : rate > 0 ? "sin límite" : "1",
+                connections, threadMode, csvPath);
+        if (rate > 0) System.out.printf(Locale.US, "Lazo abierto: %.1f msg/s por conexión%n", rate);
+        if (allocFree && (window > 1 || rate > 0 || compress)) {
+            System.out.println("[ALLOC] --alloc-free solo aplica a stop-and-wait sin compresión; se usa el camino normal");
+        }
 
-            try (DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                 DataInputStream in = new DataInputStream(socket.getInputStream());
-                 BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
+        try (PrintWriter csv = new PrintWriter(new BufferedWriter(new FileWriter(csvPath)))) {
+            // Escribir encabezado CSV
+            csv.println("seq,payload_bytes,client_send_ns,client_recv_ns,rtt_ms,server_recv_ns,server_send_ns,server_proc_ms,throughput_bps,jitter_ms"
+                    + (rate > 0 ? ",corrected_rtt_ms" : "")
+                    + (compress ? ",wire_bytes,codec_us" : "")
+                    + ",offset_ms,uplink_ms,downlink_ms"
+                    + (connections > 1 ? ",conn_id" : "")
+                    + ",status");
 
-                System.out.println("Escribe mensajes. 'fin' para salir.");
-                long prevRttNs = -1; // Para cálculo de jitter
-                long seq = 0;         // Contador de secuencia de mensajes
+            long startNs = System.nanoTime();
+            List<Future<Recorder>> results = new ArrayList<>();
+            try (ExecutorService exec = "virtual".equals(threadMode)
+                    ? Executors.newVirtualThreadPerTaskExecutor()
+                    : Executors.newFixedThreadPool(connections)) {
+                for (int c = 0; c < connections; c++) {
+                    final int connId = c;
+                    results.add(exec.submit(() -> runConnection(connId, csv)));
+                }
+            } // close() espera a que terminen todas las conexiones
+            double elapsedSec = (System.nanoTime() - startNs) / 1_000_000_000.0;
 
-                // Bucle principal de interacción
-                while (true) {
-                    System.out.print("> ");
-                    String userMsg = console.readLine(); // Leer línea del usuario
-                    if (userMsg == null) break;
-                    if (userMsg.trim().equalsIgnoreCase("fin")) {
-                        // Mensaje de cierre al servidor
-                        String finMsg = "FIN";
-                        out.writeUTF(finMsg);
-                        out.flush();
-                        break;
+            // Unir estadísticas por conexión en un resumen global
+            LatencyHistogram rttAll = new LatencyHistogram(histDigits);
+            StatCollector thrAll = new StatCollector();
+            LatencyHistogram correctedAll = new LatencyHistogram(histDigits);
+            LatencyHistogram codecAll = new LatencyHistogram(histDigits);
+            LatencyHistogram busyAll = new LatencyHistogram(histDigits);
+            StatCollector uplinkAll = new StatCollector(), residenceAll = new StatCollector(), downlinkAll = new StatCollector();
+            ClockSync bestClock = null; // Estimación de la conexión con menor retardo de red (la más precisa)
+            long bytesAll = 0, wireAll = 0;
+            long allocAll = 0, allocMsgs = 0; // Bytes asignados durante la medición (-1 = no medible)
+            int failed = 0, refused = 0; // Conexiones con error / rechazadas con BUSY
+            for (int c = 0; c < results.size(); c++) {
+                try {
+                    Recorder rec = results.get(c).get();
+                    if (connections > 1) System.out.println("[CONN " + c + "] RTT (ms): " + rec.rttHist.summaryMs());
+                    rttAll.merge(rec.rttHist);
+                    thrAll.merge(rec.thrStats);
+                    correctedAll.merge(rec.correctedHist);
+                    bytesAll += rec.bytes;
+                    wireAll += rec.wireBytes;
+                    codecAll.merge(rec.codecHist);
+                    busyAll.merge(rec.busyHist);
+                    uplinkAll.merge(rec.uplink);
+                    residenceAll.merge(rec.residence);
+                    downlinkAll.merge(rec.downlink);
+                    if (bestClock == null || rec.clock.minDelay() < bestClock.minDelay()) bestClock = rec.clock;
+                    if (rec.allocBytes < 0 || allocAll < 0) {
+                        allocAll = -1;
+                    } else {
+                        allocAll += rec.allocBytes;
+                        allocMsgs += rec.rttHist.count();
                     }
-
-                    long clientSendNs = System.nanoTime(); // Tiempo de envío
-                    String payload = pad(userMsg, payloadSize); // Ajustar payload al tamaño
-                    String wireMsg = "USR|" + (++seq) + "|" + clientSendNs + "|" + payload.length() + "|" + payload;
-
-                    out.writeUTF(wireMsg); // Enviar mensaje al servidor
-                    out.flush();
-
-                    String ack = in.readUTF(); // Leer respuesta
-                    long clientRecvNs = System.nanoTime(); // Tiempo de recepción
-                    long rttNs = clientRecvNs - clientSendNs; // Calcular RTT
-
-                    AckFields af = parseAck(ack); // Extraer campos del ACK
-                    double rttMs = rttNs / 1_000_000.0; // RTT en ms
-                    double serverProcMs = (af.serverSendNs - af.serverRecvNs) / 1_000_000.0; // Procesamiento server
-
-                    Double jitterMs = null;
-                    if (prevRttNs > 0) {
-                        jitterMs = Math.abs(rttNs - prevRttNs) / 1_000_000.0; // Calcular jitter
+                } catch (ExecutionException ee) {
+                    if (ee.getCause() instanceof ServerBusyException) {
+                        refused++;
+                    } else {
+                        failed++;
+                        System.err.println("Error cliente [conn " + c + "]: " + ee.getCause().getMessage());
                     }
-                    prevRttNs = rttNs;
-
-                    int bytes = payload.getBytes(StandardCharsets.UTF_8).length; // Tamaño en bytes
-                    double throughputBps = (bytes * 8.0) / (rttNs / 1_000_000_000.0); // Throughput
-
-                    // Mostrar métricas por mensaje
-                    System.out.printf(Locale.US,
-                            "[ACK seq=%d] RTT=%.3f ms, serverProc=%.3f ms, size=%d bytes, throughput=%.2f bps%s%n",
-                            af.seq, rttMs, serverProcMs, bytes, throughputBps,
-                            (jitterMs != null ? String.format(Locale.US, ", jitter=%.3f ms", jitterMs) : ""));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
+
+            // Resumen de estadísticas
+            System.out.println("\n=== RESUMEN ===");
+            System.out.println("RTT (ms): " + rttAll.summaryMs());
+            if (rate > 0) System.out.println("RTT corregido desde envío programado (ms): " + correctedAll.summaryMs());
+            System.out.println("Throughput (bps): " + thrAll);
+            if (bestClock != null && bestClock.samples() > 0) {
+                System.out.printf(Locale.US, "Reloj del servidor (estimado): offset=%.3f ms, deriva=%s, retardo de red mínimo=%.3f ms (error del offset <= %.3f ms)%n",
+                        bestClock.offsetAt(System.nanoTime()) / 1e6,
+                        bestClock.hasDrift() ? String.format(Locale.US, "%+.2f ± %.2f ppm", bestClock.driftPpm(), bestClock.driftErrorPpm())
+                                : "n/d (corrida corta)",
+                        bestClock.minDelay() / 1e6, bestClock.minDelay() / 2e6);
+                System.out.println("Subida cliente->servidor (ms): " + uplinkAll);
+                System.out.println("Residencia en el servidor (ms): " + residenceAll);
+                System.out.println("Bajada servidor->cliente (ms): " + downlinkAll);
+            }
+            if (busyAll.count() > 0) {
+                long answered = busyAll.count() + rttAll.count();
+                System.out.printf(Locale.US, "Rechazos BUSY: %d de %d mensajes (%.2f%%); tiempo de rechazo (ms): %s%n",
+                        busyAll.count(), answered, 100.0 * busyAll.count() / answered, busyAll.summaryMs());
+            }
+            if (refused > 0) System.out.println("Conexiones rechazadas por el servidor (BUSY): " + refused + " de " + connections);
+            if (compress && codecAll.count() > 0) {
+                System.out.printf(Locale.US, "Compresión deflate (nivel %d): ratio=%.2f (%d bytes de payload -> %d bytes en la red), CPU de compresión=%.1f ms%n",
+                        PayloadCodec.level(), wireAll > 0 ? (double) bytesAll / wireAll : 0, bytesAll, wireAll,
+                        codecAll.mean() * codecAll.count() / 1e6);
+                System.out.println("Compresión por mensaje (us): " + codecAll.summaryUs());
+            }
+            if (allocAll >= 0 && allocMsgs > 0) {
+                System.out.printf(Locale.US, "Asignación en el cliente: %.1f bytes/mensaje, %.2f MB/s (%d bytes en la medición)%n",
+                        (double) allocAll / allocMsgs, allocAll / 1e6 / elapsedSec, allocAll);
+            } else {
+                System.out.println("Asignación en el cliente: n/d (la JVM no la mide para estos hilos)");
+            }
+            if (connections > 1) {
+                System.out.printf(Locale.US, "Conexiones: %d ok, %d rechazadas, %d con error; throughput agregado=%.2f bps en %.3f s%n",
+                        connections - failed - refused, refused, failed, bytesAll * 8.0 / elapsedSec, elapsedSec);
+            }
+            System.out.println("CSV guardado en: " + csvPath);
+            if (histPath != null) {
+                rttAll.save(histPath);
+                if (rate > 0) correctedAll.save(histPath + ".corrected");
+                System.out.println("Histograma guardado en: " + histPath);
+            }
         } catch (IOException e) {
             System.err.println("Error cliente: " + e.getMessage());
         }
         System.out.println("Cliente finalizado.");
     }
 
-    // =============== BENCHMARK MODE ===============
     /**
-     * runBenchmark - ejecuta el cliente en modo benchmark, enviando múltiples mensajes
-     * y registrando métricas en un archivo CSV.
+     * runConnection - una conexión del benchmark: conecta, negocia, calienta y mide.
+     * Retorna su Recorder con las estadísticas propias de la conexión.
      */
-    private static void runBenchmark() {
-        System.out.println("Prueba de sockets TCP (cliente) - MODO BENCHMARK");
-        System.out.printf("Destino %s:%d, n=%d, size=%d bytes, interval=%d ms, csv=%s%n",
-                host, port, iterations, payloadSize, intervalMs, csvPath);
-
+    private static Recorder runConnection(int connId, PrintWriter csv) throws IOException, InterruptedException {
+        if (allocFree && window <= 1 && rate <= 0 && !compress) return runAllocFree(connId, csv);
         try (Socket socket = new Socket()) {
             socket.connect(new InetSocketAddress(host, port), 5000);
             configureSocket(socket);
-            printSocketInfo(socket);
+            if (connections == 1) printSocketInfo(socket);
 
             try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-                 DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-                 PrintWriter csv = new PrintWriter(new BufferedWriter(new FileWriter(csvPath)))) {
-
-                // Escribir encabezado CSV
-                csv.println("seq,payload_bytes,client_send_ns,client_recv_ns,rtt_ms,server_recv_ns,server_send_ns,server_proc_ms,throughput_bps,jitter_ms");
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
 
-                long prevRttNs = -1;
-                long seq = 0;
+                // Framing binario (y compresión): se negocia y se prepara un único payload reutilizable
+                String session = "bin".equals(framing) ? negotiate(out, in) : "";
+                Wire wire = new Wire(out, in, session.contains("framing=bin"), session.contains("codec=deflate"));
 
-                // Fase de calentamiento (no medida)
+                // Fase de calentamiento (no medida, siempre stop-and-wait); solo alimenta la estimación del reloj
+                Recorder rec = new Recorder(csv, connections > 1 ? connId : -1);
                 for (int w = 0; w < warmup; w++) {
-                    String payload = generatePayload(payloadSize);
-                    String wireMsg = "MSG|WARMUP|" + System.nanoTime() + "|" + payload.length() + "|" + payload;
-                    out.writeUTF(wireMsg);
-                    out.flush();
-                    in.readUTF(); // descartar ACK
+                    wire.prepare();
+                    long clientSendNs = System.nanoTime();
+                    wire.send(-1, clientSendNs);
+                    AckFields af = wire.readAck();
+                    rec.clock.sample(clientSendNs, af.serverRecvNs, af.serverSendNs, System.nanoTime());
                     if (intervalMs > 0) Thread.sleep(intervalMs);
                 }
 
                 // Fase de medición
-                StatCollector rttStats = new StatCollector();
-                StatCollector thrStats = new StatCollector();
+                long alloc0 = allocatedBytes();
+                long readerAlloc = 0;
+                if (window > 1 || rate > 0) {
+                    readerAlloc = runWindowed(socket, wire, rec);
+                } else {
+                    for (long seq = 1; seq <= iterations; seq++) {
+                        wire.prepare();
+                        long clientSendNs = System.nanoTime();
+                        wire.send(seq, clientSendNs);
+                        AckFields af = wire.readAck();
+                        long clientRecvNs = System.nanoTime();
+                        rec.record(af, wire.payloadBytes(), wire.wireBytes(seq), wire.codecNs(seq), clientSendNs, clientRecvNs, -1);
 
-                for (int i = 0; i < iterations; i++) {
-                    String payload = generatePayload(payloadSize);
-                    long clientSendNs = System.nanoTime();
-                    String wireMsg = "MSG|" + (++seq) + "|" + clientSendNs + "|" + payload.length() + "|" + payload;
+                        if (intervalMs > 0) Thread.sleep(intervalMs);
+                    }
+                }
+                long alloc1 = allocatedBytes();
+                rec.allocBytes = (alloc0 < 0 || alloc1 < 0 || readerAlloc < 0) ? -1 : alloc1 - alloc0 + readerAlloc;
+                return rec;
+            }
+        }
+    }
 
-                    out.writeUTF(wireMsg);
-                    out.flush();
+    /**
+     * runWindowed - envío en pipeline: mantiene hasta 'window' mensajes en vuelo.
+     * Este hilo envía; un hilo lector recibe los ACK, recupera el timestamp de envío
+     * por seq y registra RTT/jitter en el orden de llegada.
+     * Con --rate los envíos siguen un calendario absoluto (start + k * periodo): si el
+     * emisor se atrasa, el RTT corregido se mide desde la hora programada, no desde
+     * el envío real, para no ocultar las esperas (coordinated omission).
+     * Retorna los bytes asignados por el hilo lector (-1 si no se pueden medir).
+     */
+    private static long runWindowed(Socket socket, Wire wire, Recorder rec) throws IOException, InterruptedException {
+        AtomicLongArray sendTimes = new AtomicLongArray(iterations + 1); // seq -> clientSendNs
+        AtomicLongArray intendedTimes = rate > 0 ? new AtomicLongArray(iterations + 1) : null; // seq -> envío programado
+        int inFlight = window > 0 ? window : iterations; // Lazo abierto sin --window: sin límite
+        long periodNs = rate > 0 ? (long) (1_000_000_000.0 / rate) : 0;
+        Semaphore slots = new Semaphore(inFlight);
+        AtomicReference<IOException> readerError = new AtomicReference<>();
+        long[] readerAlloc = {-1};
 
-                    String ack = in.readUTF();
+        Thread reader = newThread(() -> {
+            long alloc0 = allocatedBytes();
+            try {
+                for (int k = 0; k < iterations; k++) {
+                    AckFields af = wire.readAck();
                     long clientRecvNs = System.nanoTime();
-                    long rttNs = clientRecvNs - clientSendNs;
+                    if (af.seq < 1 || af.seq > iterations) throw new IOException("ACK con seq desconocido: " + af.seq);
+                    int k2 = (int) af.seq;
+                    rec.record(af, wire.payloadBytes(), wire.wireBytes(k2), wire.codecNs(k2), sendTimes.get(k2), clientRecvNs,
+                            intendedTimes != null ? intendedTimes.get(k2) : -1);
+                    slots.release();
+                }
+                long alloc1 = allocatedBytes();
+                if (alloc0 >= 0 && alloc1 >= 0) readerAlloc[0] = alloc1 - alloc0; // Visible tras join()
+            } catch (IOException e) {
+                readerError.set(e);
+                slots.release(inFlight); // Desbloquear al emisor
+            }
+        }, "ack-reader");
+
+        try {
+            long startNs = System.nanoTime();
+            for (long seq = 1; seq <= iterations && readerError.get() == null; seq++) {
+                if (intendedTimes != null) {
+                    long intendedNs = startNs + (seq - 1) * periodNs; // Hora programada del envío
+                    intendedTimes.set((int) seq, intendedNs);
+                    for (long now = System.nanoTime(); now < intendedNs; now = System.nanoTime()) {
+                        LockSupport.parkNanos(intendedNs - now);
+                    }
+                }
+                slots.acquire(); // Esperar espacio en la ventana
+                if (readerError.get() != null) break;
+                wire.prepare();
+                long clientSendNs = System.nanoTime();
+                sendTimes.set((int) seq, clientSendNs); // Antes de enviar: el ACK puede llegar enseguida
+                wire.send(seq, clientSendNs);
+                if (intervalMs > 0 && rate <= 0) Thread.sleep(intervalMs);
+            }
+            reader.join();
+        } catch (IOException | InterruptedException e) {
+            socket.close(); // Desbloquea al lector
+            reader.join();
+            throw e;
+        }
+        if (readerError.get() != null) throw readerError.get();
+        return readerAlloc[0];
+    }
 
-                    AckFields af = parseAck(ack);
-                    int bytes = payload.getBytes(StandardCharsets.UTF_8).length;
+    /**
+     * runAllocFree - stop-and-wait sin asignaciones por mensaje (--alloc-free). Los
+     * timestamps y campos del ACK van a arreglos long[] preasignados; las filas CSV y
+     * las estadísticas se generan al terminar la fase medida.
+     */
+    private static Recorder runAllocFree(int connId, PrintWriter csv) throws IOException, InterruptedException {
+        try (SocketChannel ch = SocketChannel.open()) {
+            Socket socket = ch.socket();
+            socket.connect(new InetSocketAddress(host, port), 5000);
+            configureSocket(socket);
+            if (connections == 1) printSocketInfo(socket);
 
-                    double rttMs = rttNs / 1_000_000.0;
-                    double serverProcMs = (af.serverSendNs - af.serverRecvNs) / 1_000_000.0;
-                    double throughputBps = (bytes * 8.0) / (rttNs / 1_000_000_000.0);
+            // Streams sin buffer solo para el HELLO: readUTF no lee más allá de la respuesta
+            boolean binary = "bin".equals(framing)
+                    && negotiate(new DataOutputStream(socket.getOutputStream()), new DataInputStream(socket.getInputStream()))
+                            .contains("framing=bin");
+            DirectWire wire = new DirectWire(ch, binary);
 
-                    Double jitterMs = null;
-                    if (prevRttNs > 0) jitterMs = Math.abs(rttNs - prevRttNs) / 1_000_000.0;
-                    prevRttNs = rttNs;
+            Recorder rec = new Recorder(csv, connections > 1 ? connId : -1);
+            for (int w = 0; w < warmup; w++) {
+                long clientSendNs = System.nanoTime();
+                wire.send(-1, clientSendNs);
+                wire.readAck();
+                rec.clock.sample(clientSendNs, wire.ackRecvNs, wire.ackSendNs, System.nanoTime());
+                if (intervalMs > 0) Thread.sleep(intervalMs);
+            }
+
+            // Fase de medición: solo escrituras en arreglos primitivos
+            long[] sendNs = new long[iterations], recvNs = new long[iterations];
+            long[] ackSeq = new long[iterations], ackRecvNs = new long[iterations], ackSendNs = new long[iterations];
+            boolean[] ackBusy = new boolean[iterations];
+            long alloc0 = allocatedBytes();
+            for (int k = 0; k < iterations; k++) {
+                long clientSendNs = System.nanoTime();
+                wire.send(k + 1, clientSendNs);
+                wire.readAck();
+                recvNs[k] = System.nanoTime();
+                sendNs[k] = clientSendNs;
+                ackSeq[k] = wire.ackSeq;
+                ackRecvNs[k] = wire.ackRecvNs;
+                ackSendNs[k] = wire.ackSendNs;
+                ackBusy[k] = wire.ackBusy;
+                if (intervalMs > 0) Thread.sleep(intervalMs);
+            }
+            long alloc1 = allocatedBytes();
+            wire.fin();
 
-                    // Guardar métricas en CSV
-                    csv.printf(Locale.US, "%d,%d,%d,%d,%.6f,%d,%d,%.6f,%.2f,%s%n",
-                            af.seq, bytes, clientSendNs, clientRecvNs, rttMs, af.serverRecvNs, af.serverSendNs, serverProcMs, throughputBps,
-                            (jitterMs == null ? "" : String.format(Locale.US, "%.6f", jitterMs)));
+            for (int k = 0; k < iterations; k++) {
+                rec.record(new AckFields(ackSeq[k], ackRecvNs[k], ackSendNs[k], ackBusy[k]), wire.payloadLen, wire.payloadLen, -1,
+                        sendNs[k], recvNs[k], -1);
+            }
+            rec.allocBytes = (alloc0 < 0 || alloc1 < 0) ? -1 : alloc1 - alloc0;
+            return rec;
+        }
+    }
 
-                    rttStats.add(rttMs);
-                    thrStats.add(throughputBps);
+    /**
+     * allocatedBytes - bytes asignados hasta ahora por el hilo actual, o -1 si la JVM
+     * no lo mide (por ejemplo en hilos virtuales).
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) threads;
+        if (!mx.isThreadAllocatedMemorySupported() || !mx.isThreadAllocatedMemoryEnabled()) return -1;
+        return mx.getCurrentThreadAllocatedBytes();
+    }
 
-                    if (intervalMs > 0) Thread.sleep(intervalMs);
+    /**
+     * newThread - crea e inicia un hilo auxiliar del mismo tipo que los de las conexiones
+     * (virtual con --threads virtual, de plataforma en otro caso).
+     */
+    private static Thread newThread(Runnable task, String name) {
+        return "virtual".equals(threadMode) ? Thread.ofVirtual().name(name).start(task) : Thread.ofPlatform().name(name).start(task);
+    }
+
+    /**
+     * Wire - envío de mensajes y lectura de ACKs con el framing negociado
+     * (writeUTF de texto o BinaryFrame con payload reutilizable, opcionalmente comprimido).
+     */
+    private static class Wire {
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final boolean binary;
+        private final boolean deflate; // Payload comprimido con PayloadCodec (codec=deflate)
+        private final BinaryFrame sendFrame, recvFrame; // Separados: el lector puede ser otro hilo
+        private final ByteBuffer body;
+        private String payload = ""; // Payload de texto preparado para el siguiente envío
+        private final AtomicLongArray wireBySeq, codecBySeq; // seq -> bytes comprimidos / ns de compresión
+
+        Wire(DataOutputStream out, DataInputStream in, boolean binary, boolean deflate) {
+            this.out = out;
+            this.in = in;
+            this.binary = binary;
+            this.deflate = deflate;
+            this.sendFrame = binary ? new BinaryFrame(maxFrame) : null;
+            this.recvFrame = binary ? new BinaryFrame(maxFrame) : null;
+            this.body = binary ? binaryPayload(payloadSize) : null;
+            this.wireBySeq = deflate ? new AtomicLongArray(iterations + 1) : null;
+            this.codecBySeq = deflate ? new AtomicLongArray(iterations + 1) : null;
+        }
+
+        /**
+         * Prepara el payload del siguiente mensaje fuera del tiempo medido.
+         */
+        void prepare() {
+            if (!binary) payload = generatePayload(payloadSize);
+        }
+
+        /**
+         * Envía un MSG con el seq y timestamp dados (seq < 0 => calentamiento).
+         */
+        void send(long seq, long clientSendNs) throws IOException {
+            if (deflate) {
+                long codecStartNs = System.nanoTime();
+                ByteBuffer z = PayloadCodec.deflate(body);
+                long codecNs = System.nanoTime() - codecStartNs;
+                if (seq > 0) { // El lector (quizá otro hilo) los recupera por seq
+                    wireBySeq.set((int) seq, z.remaining());
+                    codecBySeq.set((int) seq, codecNs);
                 }
+                sendFrame.write(out, BinaryFrame.MSG, seq, clientSendNs, body.remaining(), z); // t2 = largo original
+            } else if (binary) {
+                sendFrame.write(out, BinaryFrame.MSG, seq, clientSendNs, 0, body);
+            } else {
+                String seqText = seq < 0 ? "WARMUP" : Long.toString(seq);
+                out.writeUTF("MSG|" + seqText + "|" + clientSendNs + "|" + payload.length() + "|" + payload);
+            }
+            out.flush();
+        }
 
-                // Resumen de estadísticas
-                System.out.println("\n=== RESUMEN ===");
-                System.out.println("RTT (ms): " + rttStats);
-                System.out.println("Throughput (bps): " + thrStats);
-                System.out.println("CSV guardado en: " + csvPath);
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
+        /**
+         * Lee el siguiente ACK.
+         */
+        AckFields readAck() throws IOException {
+            if (binary) {
+                if (!recvFrame.read(in)) throw new EOFException("Conexión cerrada esperando ACK");
+                return new AckFields(recvFrame.seq, recvFrame.t1, recvFrame.t2, recvFrame.type == BinaryFrame.BUSY);
             }
-        } catch (IOException e) {
+            return parseAck(in.readUTF());
+        }
+
+        /**
+         * Bytes de payload de cada mensaje.
+         */
+        int payloadBytes() {
+            return binary ? body.remaining() : Math.max(0, payloadSize); // Payload ASCII: 1 byte por carácter
+        }
+
+        /**
+         * Bytes enviados en la red para el mensaje seq (comprimidos si aplica).
+         */
+        long wireBytes(long seq) {
+            return deflate ? wireBySeq.get((int) seq) : payloadBytes();
+        }
+
+        /**
+         * Tiempo de compresión del mensaje seq en ns, o -1 sin compresión.
+         */
+        long codecNs(long seq) {
+            return deflate ? codecBySeq.get((int) seq) : -1;
+        }
+    }
+
+    /**
+     * DirectWire - mensajes y ACKs sobre buffers directos reutilizados (--alloc-free).
+     * El payload se escribe una sola vez al final del buffer de envío; en writeUTF el
+     * prefijo "MSG|seq|ns|len|" y el largo se escriben hacia atrás justo antes del payload,
+     * en framing binario solo se reescriben seq y timestamp de la cabecera fija.
+     * Usa lecturas del canal, así que --timeout no aplica a este camino.
+     */
+    private static class DirectWire {
+        private static final byte[] WARMUP = "WARMUP".getBytes(StandardCharsets.US_ASCII);
+        private static final int UTF_PREFIX_MAX = 2 + 4 + 20 + 1 + 20 + 1 + 11 + 1; // largo + "MSG|seq|ns|len|"
+
+        private final SocketChannel ch;
+        private final boolean binary;
+        private final ByteBuffer send; // Mensaje completo; el payload no se vuelve a tocar
+        private final ByteBuffer recv = ByteBuffer.allocateDirect(256); // ACK actual
+        private final int payloadStart;
+        final int payloadLen;
+        long ackSeq, ackRecvNs, ackSendNs; // Campos del último ACK leído
+        boolean ackBusy; // El último ACK fue un BUSY (mensaje rechazado)
+        private int fieldEnd; // Posición del '|' (o fin) tras el último campo parseado
+
+        DirectWire(SocketChannel ch, boolean binary) throws IOException {
+            this.ch = ch;
+            this.binary = binary;
+            this.payloadLen = Math.max(0, payloadSize);
+            if (binary) {
+                if (payloadLen > maxFrame) throw new IOException("Payload mayor que --max-frame: " + payloadLen);
+                payloadStart = BinaryFrame.HEADER;
+                send = ByteBuffer.allocateDirect(BinaryFrame.HEADER + payloadLen);
+                send.put(0, BinaryFrame.MSG).putLong(17, 0).putInt(25, payloadLen);
+            } else {
+                if (UTF_PREFIX_MAX - 2 + payloadLen > 65535) throw new IOException("Payload demasiado grande para writeUTF; usar --framing bin");
+                payloadStart = UTF_PREFIX_MAX;
+                send = ByteBuffer.allocateDirect(UTF_PREFIX_MAX + payloadLen);
+            }
+            send.put(payloadStart, payloadContent(payloadLen, !binary)); // ASCII en writeUTF: 1 byte por carácter
+        }
+
+        /**
+         * Envía un MSG con el seq y timestamp dados (seq < 0 => calentamiento).
+         */
+        void send(long seq, long clientSendNs) throws IOException {
+            int start;
+            if (binary) {
+                send.putLong(1, seq).putLong(9, clientSendNs);
+                start = 0;
+            } else {
+                int p = payloadStart;
+                send.put(--p, (byte) '|');
+                p = putDigitsBackward(p, payloadLen);
+                send.put(--p, (byte) '|');
+                p = putDigitsBackward(p, clientSendNs);
+                send.put(--p, (byte) '|');
+                if (seq < 0) {
+                    for (int i = WARMUP.length - 1; i >= 0; i--) send.put(--p, WARMUP[i]);
+                } else {
+                    p = putDigitsBackward(p, seq);
+                }
+                send.put(--p, (byte) '|').put(--p, (byte) 'G').put(--p, (byte) 'S').put(--p, (byte) 'M');
+                p -= 2;
+                send.putShort(p, (short) (send.capacity() - p - 2)); // Largo como en writeUTF
+                start = p;
+            }
+            send.limit(send.capacity()).position(start);
+            while (send.hasRemaining()) ch.write(send);
+        }
+
+        /**
+         * Lee el siguiente ACK (o BUSY) y deja sus campos en ackSeq/ackRecvNs/ackSendNs/ackBusy.
+         */
+        void readAck() throws IOException {
+            if (binary) {
+                readFully(BinaryFrame.HEADER);
+                byte type = recv.get(0);
+                if ((type != BinaryFrame.ACK && type != BinaryFrame.BUSY) || recv.getInt(25) != 0) throw new IOException("ACK binario inválido");
+                ackBusy = type == BinaryFrame.BUSY;
+                ackSeq = recv.getLong(1);
+                ackRecvNs = recv.getLong(9);
+                ackSendNs = recv.getLong(17);
+                return;
+            }
+            readFully(2);
+            int len = recv.getShort(0) & 0xFFFF;
+            if (len > recv.capacity()) throw new IOException("ACK demasiado largo: " + len);
+            readFully(len);
+            int p;
+            if (len >= 4 && recv.get(0) == 'A' && recv.get(1) == 'C' && recv.get(2) == 'K' && recv.get(3) == '|') {
+                ackBusy = false;
+                p = 4;
+            } else if (len >= 4 && recv.get(0) == 'B' && recv.get(1) == 'U' && recv.get(2) == 'S' && recv.get(3) == 'Y') {
+                if (len == 4) throw new ServerBusyException(); // Conexión rechazada
+                if (recv.get(4) != '|') throw new IOException("ACK inválido");
+                ackBusy = true;
+                p = 5;
+            } else {
+                throw new IOException("ACK inválido");
+            }
+            ackSeq = parseField(p, len);
+            p = fieldEnd + 1;
+            ackRecvNs = parseField(p, len);
+            p = fieldEnd + 1;
+            ackSendNs = parseField(p, len);
+        }
+
+        /**
+         * Cierra la conexión de forma ordenada (fuera de la fase medida).
+         */
+        void fin() throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(BinaryFrame.HEADER);
+            if (binary) {
+                b.put(BinaryFrame.FIN).putLong(0).putLong(0).putLong(0).putInt(0);
+            } else {
+                b.putShort((short) 3).put("FIN".getBytes(StandardCharsets.US_ASCII));
+            }
+            b.flip();
+            while (b.hasRemaining()) ch.write(b);
+        }
+
+        private void readFully(int n) throws IOException {
+            recv.clear().limit(n);
+            while (recv.hasRemaining()) {
+                if (ch.read(recv) < 0) throw new EOFException("Conexión cerrada esperando ACK");
+            }
+        }
+
+        /**
+         * Parsea un entero decimal con signo desde recv[p] hasta el siguiente '|' o el fin.
+         */
+        private long parseField(int p, int end) throws IOException {
+            boolean neg = p < end && recv.get(p) == '-';
+            if (neg) p++;
+            long v = 0;
+            int digits = 0;
+            for (; p < end && recv.get(p) != '|'; p++, digits++) {
+                int d = recv.get(p) - '0';
+                if (d < 0 || d > 9) throw new IOException("ACK con campo no numérico");
+                v = v * 10 + d;
+            }
+            if (digits == 0) throw new IOException("ACK incompleto");
+            fieldEnd = p;
+            return neg ? -v : v;
+        }
+
+        /**
+         * Escribe v en decimal terminando en la posición end (exclusiva); retorna el inicio.
+         */
+        private int putDigitsBackward(int end, long v) {
+            boolean neg = v < 0;
+            long x = neg ? -v : v;
+            int p = end;
+            do {
+                send.put(--p, (byte) ('0' + x % 10));
+                x /= 10;
+            } while (x != 0);
+            if (neg) send.put(--p, (byte) '-');
+            return p;
+        }
+    }
+
+    /**
+     * Recorder - calcula RTT, throughput y jitter de cada ACK, escribe la fila CSV
+     * y acumula estadísticas. Lo usa un solo hilo a la vez.
+     */
+    private static class Recorder {
+        private final PrintWriter csv; // Compartido entre conexiones: printf es atómico por fila
+        private final int connId; // -1 => sin columna conn_id
+        private final boolean openLoop = rate > 0; // Con --rate: columna corrected_rtt_ms e histograma corregido
+        private long prevRttNs = -1;
+        long bytes = 0; // Bytes de payload confirmados
+        long allocBytes = -1; // Bytes asignados por los hilos de la conexión al medir (-1 = no medible)
+        long wireBytes = 0; // Bytes de payload enviados en la red (comprimidos si aplica)
+        final LatencyHistogram codecHist = new LatencyHistogram(histDigits); // Tiempo de compresión por mensaje
+        final LatencyHistogram busyHist = new LatencyHistogram(histDigits); // Tiempo de respuesta de los BUSY (mensajes rechazados)
+        final LatencyHistogram rttHist = new LatencyHistogram(histDigits);
+        final StatCollector thrStats = new StatCollector();
+        final LatencyHistogram correctedHist = new LatencyHistogram(histDigits); // RTT desde el envío programado (lazo abierto)
+        final ClockSync clock = new ClockSync(); // Reloj del servidor visto desde esta conexión
+        final StatCollector uplink = new StatCollector(); // Retardo estimado cliente -> servidor (ms)
+        final StatCollector residence = new StatCollector(); // Tiempo en el servidor entre recepción y ACK (ms)
+        final StatCollector downlink = new StatCollector(); // Retardo estimado servidor -> cliente (ms)
+
+        Recorder(PrintWriter csv, int connId) { this.csv = csv; this.connId = connId; }
+
+        /**
+         * bytes es el payload original y wireBytes lo enviado en la red; codecNs es el tiempo
+         * de compresión (-1 sin compresión). intendedNs es la hora programada del envío en
+         * lazo abierto (se ignora en lazo cerrado). Un BUSY se escribe con status=busy y solo
+         * cuenta en busyHist.
+         */
+        void record(AckFields af, int bytes, long wireBytes, long codecNs, long clientSendNs, long clientRecvNs, long intendedNs) {
+            long rttNs = clientRecvNs - clientSendNs;
+
+            double rttMs = rttNs / 1_000_000.0;
+            double serverProcMs = (af.serverSendNs - af.serverRecvNs) / 1_000_000.0;
+            double throughputBps = af.busy ? 0 : (bytes * 8.0) / (rttNs / 1_000_000_000.0); // Un BUSY no entrega payload
+
+            Double jitterMs = null;
+            if (!af.busy) { // El jitter sigue solo a los mensajes atendidos
+                if (prevRttNs > 0) jitterMs = Math.abs(rttNs - prevRttNs) / 1_000_000.0;
+                prevRttNs = rttNs;
+            }
+
+            double correctedMs = openLoop ? (clientRecvNs - intendedNs) / 1_000_000.0 : -1;
+
+            // Desglose del RTT con el reloj del servidor llevado al del cliente (subida + residencia + bajada = RTT)
+            clock.sample(clientSendNs, af.serverRecvNs, af.serverSendNs, clientRecvNs);
+            long offsetNs = clock.offsetAt(clientSendNs + rttNs / 2);
+            double uplinkMs = (af.serverRecvNs - offsetNs - clientSendNs) / 1_000_000.0;
+            double downlinkMs = (clientRecvNs - (af.serverSendNs - offsetNs)) / 1_000_000.0;
+
+            // Guardar métricas en CSV
+            csv.printf(Locale.US, "%d,%d,%d,%d,%.6f,%d,%d,%.6f,%.2f,%s%s%s,%.6f,%.6f,%.6f%s%n",
+                    af.seq, bytes, clientSendNs, clientRecvNs, rttMs, af.serverRecvNs, af.serverSendNs, serverProcMs, throughputBps,
+                    (jitterMs == null ? "" : String.format(Locale.US, "%.6f", jitterMs)),
+                    (openLoop ? String.format(Locale.US, ",%.6f", correctedMs) : ""),
+                    (compress ? "," + wireBytes + "," + (codecNs >= 0 ? String.format(Locale.US, "%.3f", codecNs / 1000.0) : "") : ""),
+                    offsetNs / 1_000_000.0, uplinkMs, downlinkMs,
+                    (connId < 0 ? "" : "," + connId) + (af.busy ? ",busy" : ",ok"));
+            uplink.add(uplinkMs);
+            residence.add(serverProcMs);
+            downlink.add(downlinkMs);
+            if (af.busy) {
+                busyHist.record(rttNs);
+                return;
+            }
+            if (openLoop) correctedHist.record(clientRecvNs - intendedNs);
+            if (codecNs >= 0) codecHist.record(codecNs);
+
+            this.bytes += bytes;
+            this.wireBytes += wireBytes;
+            rttHist.record(rttNs);
+            thrStats.add(throughputBps);
+        }
+    }
+
+    /**
+     * ClockSync - estima el reloj del servidor (System.nanoTime de otra JVM) desde el
+     * cliente con los cuatro timestamps de cada intercambio, como NTP: t1 envío y t4
+     * recepción en el cliente, t2 recepción y t3 envío en el servidor.
+     * De cada bloque de BLOCK muestras se conserva la de menor retardo de red (la menos
+     * afectada por colas; su offset tiene error <= retardo/2). Si ese mínimo supera
+     * MAX_DELAY_RATIO veces el menor retardo de la conexión, todo el bloque estuvo en cola
+     * y se descarta. Sobre los mínimos aceptados una recta de mínimos cuadrados da offset
+     * y deriva. No asigna memoria por muestra.
+     */
+    private static class ClockSync {
+        private static final int BLOCK = 8; // Muestras por filtro de retardo mínimo (como el registro de NTP)
+        private static final long MIN_SPAN_NS = 1_000_000_000L; // Tramo mínimo para estimar la deriva
+        private static final int MAX_DELAY_RATIO = 2; // Bloques con retardo mínimo mayor quedan fuera del ajuste
+
+        private long blockDelay = Long.MAX_VALUE, blockOffset, blockMid; // Mejor muestra del bloque en curso
+        private int inBlock;
+        private long minDelay = Long.MAX_VALUE, minOffset; // Mejor muestra de toda la conexión
+        private long samples;
+        // Regresión offset(t) sobre los mínimos de cada bloque, relativa al primero (precisión en double)
+        private long x0, y0;
+        private int points;
+        private double sx, sy, sxx, sxy, syy;
+        private long lastX;
+
+        /**
+         * Agrega un intercambio. Se descarta si los timestamps son incoherentes (retardo negativo).
+         */
+        void sample(long t1, long t2, long t3, long t4) {
+            long delay = (t4 - t1) - (t3 - t2); // RTT sin el tiempo en el servidor
+            if (delay < 0) return;
+            long offset = ((t2 - t1) + (t3 - t4)) / 2; // Reloj del servidor - reloj del cliente
+            long mid = t1 + (t4 - t1) / 2;
+            samples++;
+            if (delay < minDelay) {
+                minDelay = delay;
+                minOffset = offset;
+            }
+            if (delay < blockDelay) {
+                blockDelay = delay;
+                blockOffset = offset;
+                blockMid = mid;
+            }
+            if (++inBlock == BLOCK) {
+                if (blockDelay <= MAX_DELAY_RATIO * minDelay) addPoint(blockMid, blockOffset);
+                inBlock = 0;
+                blockDelay = Long.MAX_VALUE;
+            }
+        }
+
+        private void addPoint(long x, long y) {
+            if (points == 0) { x0 = x; y0 = y; }
+            double dx = x - x0, dy = y - y0;
+            points++;
+            sx += dx;
+            sy += dy;
+            sxx += dx * dx;
+            sxy += dx * dy;
+            syy += dy * dy;
+            lastX = x;
+        }
+
+        /**
+         * true cuando hay mínimos suficientes y separados en el tiempo para una deriva confiable.
+         */
+        boolean hasDrift() { return points >= 4 && lastX - x0 >= MIN_SPAN_NS; }
+
+        /**
+         * Deriva del reloj del servidor respecto al del cliente (partes por millón).
+         */
+        double driftPpm() { return hasDrift() ? slope() * 1e6 : 0; }
+
+        /**
+         * Error estándar de la deriva (ppm) según la dispersión de los mínimos alrededor de la recta.
+         */
+        double driftErrorPpm() {
+            if (!hasDrift()) return 0;
+            double cxx = sxx - sx * sx / points;
+            double residual = Math.max(0, (syy - sy * sy / points) - slope() * (sxy - sx * sy / points));
+            return Math.sqrt(residual / (points - 2) / cxx) * 1e6;
+        }
+
+        private double slope() { return (sxy - sx * sy / points) / (sxx - sx * sx / points); }
+
+        /**
+         * Offset estimado (ns) del reloj del servidor en el instante t del cliente. Sin
+         * deriva confiable se usa la muestra de menor retardo vista hasta ahora.
+         */
+        long offsetAt(long t) {
+            if (!hasDrift()) return minOffset;
+            double b = slope();
+            double a = (sy - b * sx) / points;
+            return y0 + Math.round(a + b * (t - x0));
+        }
+
+        long minDelay() { return minDelay; }
+
+        long samples() { return samples; }
+    }
+
+    // =============== BULK MODE ===============
+    /**
+     * runBulk - transfiere el archivo completo -n veces por una sola conexión y mide
+     * MB/s sostenidos, CPU y GC de cada transferencia. Con --copy both alterna la copia
+     * zero-copy y la copia clásica para compararlas en las mismas condiciones.
+     */
+    private static void runBulk() {
+        File file = new File(bulkPath);
+        if (!file.isFile()) {
+            System.err.println("Error cliente: no existe el archivo " + bulkPath);
+            return;
+        }
+        if (!copyMode.equals("zerocopy") && !copyMode.equals("stream") && !copyMode.equals("both")) {
+            System.err.println("Error cliente: --copy debe ser zerocopy, stream o both");
+            return;
+        }
+        long size = file.length();
+        String[] methods = "both".equals(copyMode) ? new String[] {"zerocopy", "stream"} : new String[] {copyMode};
+        int reps = Math.max(1, iterations);
+        System.out.println("Prueba de sockets TCP (cliente) - MODO BULK");
+        System.out.printf("Destino %s:%d, archivo=%s (%d bytes), repeticiones=%d, copia=%s, csv=%s%n",
+                host, port, bulkPath, size, reps, copyMode, csvPath);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        StatCollector[] mbps = new StatCollector[methods.length];
+        StatCollector[] cpuPerGb = new StatCollector[methods.length]; // CPU del proceso cliente por GB
+        long[] gcCount = new long[methods.length], gcMs = new long[methods.length];
+        for (int m = 0; m < methods.length; m++) {
+            mbps[m] = new StatCollector();
+            cpuPerGb[m] = new StatCollector();
+        }
+
+        try (SocketChannel ch = SocketChannel.open(); // Canal bloqueante: transferTo escribe directo en el socket
+             PrintWriter csv = new PrintWriter(new BufferedWriter(new FileWriter(csvPath)))) {
+            Socket socket = ch.socket();
+            socket.connect(new InetSocketAddress(host, port), 5000);
+            configureSocket(socket);
+            printSocketInfo(socket);
+            OutputStream raw = socket.getOutputStream();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(raw));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            csv.println("rep,copy,bytes,elapsed_ms,mb_per_s,client_cpu_ms,client_thread_cpu_ms,server_cpu_ms,server_recv_ms,gc_count,gc_ms,server_gc_count,server_gc_ms");
+            for (int rep = 1; rep <= reps; rep++) {
+                for (int m = 0; m < methods.length; m++) {
+                    boolean zeroCopy = methods[m].equals("zerocopy");
+                    long[] gc0 = gcTotals();
+                    long proc0 = os.getProcessCpuTime(), thread0 = threads.getCurrentThreadCpuTime();
+
+                    out.writeUTF("BULK|" + size + "|" + methods[m]);
+                    out.flush();
+                    String ready = in.readUTF();
+                    if (!"READY".equals(ready)) throw new IOException("El servidor no soporta modo bulk: " + ready);
+                    long startNs = System.nanoTime();
+                    if (zeroCopy) {
+                        sendZeroCopy(file, size, ch);
+                    } else {
+                        sendStream(file, raw);
+                    }
+                    String done = in.readUTF(); // Llega cuando el servidor escribió el último byte
+                    long endNs = System.nanoTime();
+
+                    long procCpuNs = os.getProcessCpuTime() - proc0;
+                    long threadCpuNs = threads.getCurrentThreadCpuTime() - thread0;
+                    long[] gc1 = gcTotals();
+                    String[] parts = done.split("\\|");
+                    if (!done.startsWith("DONE|") || parts.length < 7) throw new IOException("Respuesta BULK inválida: " + done);
+                    long serverBytes = Long.parseLong(parts[1]);
+                    if (serverBytes != size) throw new IOException("El servidor recibió " + serverBytes + " de " + size + " bytes");
+                    double serverRecvMs = (Long.parseLong(parts[3]) - Long.parseLong(parts[2])) / 1_000_000.0;
+                    long serverCpuNs = Long.parseLong(parts[4]); // -1 si el servidor no puede medirla
+
+                    double elapsedMs = (endNs - startNs) / 1_000_000.0;
+                    double rateMBps = size / 1e6 / (elapsedMs / 1000.0);
+                    mbps[m].add(rateMBps);
+                    if (size > 0) cpuPerGb[m].add(procCpuNs / 1e6 / (size / 1e9));
+                    gcCount[m] += gc1[0] - gc0[0];
+                    gcMs[m] += gc1[1] - gc0[1];
+
+                    csv.printf(Locale.US, "%d,%s,%d,%.3f,%.2f,%.3f,%.3f,%.3f,%.3f,%d,%d,%s,%s%n",
+                            rep, methods[m], size, elapsedMs, rateMBps, procCpuNs / 1e6, threadCpuNs / 1e6,
+                            serverCpuNs < 0 ? -1.0 : serverCpuNs / 1e6, serverRecvMs,
+                            gc1[0] - gc0[0], gc1[1] - gc0[1], parts[5], parts[6]);
+                    System.out.printf(Locale.US,
+                            "[BULK %s #%d] %.1f MB/s en %.3f s, CPU cliente=%.1f ms (hilo %.1f ms), CPU servidor=%s, GC cliente=%d (%d ms)%n",
+                            methods[m], rep, rateMBps, elapsedMs / 1000.0, procCpuNs / 1e6, threadCpuNs / 1e6,
+                            serverCpuNs < 0 ? "n/d" : String.format(Locale.US, "%.1f ms", serverCpuNs / 1e6),
+                            gc1[0] - gc0[0], gc1[1] - gc0[1]);
+                }
+            }
+            out.writeUTF("FIN");
+            out.flush();
+
+            System.out.println("\n=== RESUMEN ===");
+            for (int m = 0; m < methods.length; m++) {
+                System.out.println(methods[m] + " MB/s: " + mbps[m]);
+                System.out.println(methods[m] + " CPU cliente (ms/GB): " + cpuPerGb[m]);
+                System.out.println(methods[m] + " GC cliente: colecciones=" + gcCount[m] + ", tiempo=" + gcMs[m] + " ms");
+            }
+            System.out.println("CSV guardado en: " + csvPath);
+        } catch (IOException | NumberFormatException e) {
             System.err.println("Error cliente: " + e.getMessage());
         }
         System.out.println("Cliente finalizado.");
     }
 
+    /**
+     * sendZeroCopy - envía el archivo con FileChannel.transferTo: el kernel copia del
+     * page cache al socket (sendfile) sin pasar por arreglos de Java.
+     */
+    private static void sendZeroCopy(File file, long size, SocketChannel ch) throws IOException {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long pos = 0;
+            while (pos < size) pos += fc.transferTo(pos, size - pos, ch);
+        }
+    }
+
+    /**
+     * sendStream - copia clásica: FileInputStream -> byte[] -> OutputStream del socket.
+     */
+    private static void sendStream(File file, OutputStream out) throws IOException {
+        try (InputStream fis = new FileInputStream(file)) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = fis.read(buf)) > 0) out.write(buf, 0, n);
+            out.flush();
+        }
+    }
+
+    /**
+     * gcTotals - colecciones y tiempo de GC acumulados del proceso: {cantidad, ms}.
+     */
+    private static long[] gcTotals() {
+        long count = 0, ms = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            ms += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] {count, ms};
+    }
+
+    /**
+     * negotiate - pide al servidor framing binario (y codec=deflate con --compress).
+     * Retorna la respuesta con lo aceptado, o "" si el servidor no entiende HELLO;
+     * en ese caso se sigue con writeUTF.
+     */
+    private static String negotiate(DataOutputStream out, DataInputStream in) throws IOException {
+        out.writeUTF("HELLO|framing=bin" + (compress ? "|codec=deflate" : ""));
+        out.flush();
+        String reply = in.readUTF();
+        if ("BUSY".equals(reply)) throw new ServerBusyException();
+        if (!reply.startsWith("HELLO|")) reply = "";
+        boolean bin = reply.contains("framing=bin");
+        boolean deflate = reply.contains("codec=deflate");
+        if (connections == 1 || !bin || deflate != compress) {
+            System.out.println("[PROTO] framing=" + (bin ? "bin" : "utf (el servidor no soporta framing binario)")
+                    + (!compress ? "" : deflate ? ", codec=deflate nivel " + PayloadCodec.level()
+                                                : ", sin compresión (el servidor no soporta codec=deflate)"));
+        }
+        return reply;
+    }
+
+    /**
+     * binaryPayload - payload (--payload) construido una sola vez para el framing binario.
+     */
+    private static ByteBuffer binaryPayload(int bytes) {
+        return ByteBuffer.wrap(payloadContent(bytes, false));
+    }
+
+    // Vocabulario del generador de texto (las primeras palabras salen más seguido)
+    private static final String[] TEXT_WORDS = {
+        "de", "la", "que", "el", "en", "y", "a", "los", "se", "del", "las", "un", "por", "con", "no",
+        "una", "su", "para", "es", "al", "mensaje", "servidor", "cliente", "socket", "conexion",
+        "latencia", "paquete", "red", "tiempo", "datos", "puerto", "respuesta", "protocolo", "hilo",
+        "bloque", "archivo", "nodo", "sistema", "distribuido", "prueba", "2025", "6001", "127.0.0.1"
+    };
+
+    /**
+     * payloadContent - contenido del payload según --payload: 'x' repetida (compresión
+     * máxima), random (incompresible) o text (palabras con frecuencias sesgadas, como un
+     * texto real). Con ascii, random usa solo caracteres imprimibles (framing writeUTF).
+     */
+    private static byte[] payloadContent(int bytes, boolean ascii) {
+        byte[] b = new byte[Math.max(0, bytes)];
+        Random rnd = ThreadLocalRandom.current();
+        switch (payloadKind) {
+            case "random":
+                if (ascii) {
+                    for (int i = 0; i < b.length; i++) b[i] = (byte) (' ' + rnd.nextInt(95));
+                } else {
+                    rnd.nextBytes(b);
+                }
+                break;
+            case "text":
+                for (int i = 0; i < b.length; ) {
+                    // El mínimo de dos sorteos favorece las palabras frecuentes
+                    String w = TEXT_WORDS[Math.min(rnd.nextInt(TEXT_WORDS.length), rnd.nextInt(TEXT_WORDS.length))];
+                    for (int j = 0; j < w.length() && i < b.length; j++) b[i++] = (byte) w.charAt(j);
+                    if (i < b.length) b[i++] = ' ';
+                }
+                break;
+            default:
+                Arrays.fill(b, (byte) 'x');
+                break;
+        }
+        return b;
+    }
+
     /**
      * pad - completa el texto hasta el tamaño deseado con 'x'.
      */
@@ -382,9 +1320,10 @@ public class sockettcpcli {
     }
 
     /**
-     * generatePayload - genera un payload de bytes 'x' de tamaño especificado.
+     * generatePayload - genera un payload del tamaño especificado ('x' o según --payload).
      */
     private static String generatePayload(int bytes) {
+        if (!"x".equals(payloadKind)) return new String(payloadContent(bytes, true), StandardCharsets.US_ASCII);
         char[] fill = new char[Math.max(0, bytes)];
         Arrays.fill(fill, 'x');
         return new String(fill);
@@ -395,7 +1334,9 @@ public class sockettcpcli {
      * Formato: "ACK|seq|serverRecvNs|serverSendNs"
      */
     private static AckFields parseAck(String ack) throws IOException {
-        if (ack == null || !ack.startsWith("ACK|")) {
+        if ("BUSY".equals(ack)) throw new ServerBusyException(); // Conexión rechazada por el servidor
+        boolean busy = ack != null && ack.startsWith("BUSY|"); // Mensaje rechazado: mismos campos que el ACK
+        if (ack == null || !(busy || ack.startsWith("ACK|"))) {
             throw new IOException("ACK inválido: " + ack);
         }
         String[] parts = ack.split("\\|");
@@ -403,7 +1344,7 @@ public class sockettcpcli {
         long seq = Long.parseLong(parts[1]);
         long serverRecvNs = Long.parseLong(parts[2]);
         long serverSendNs = Long.parseLong(parts[3]);
-        return new AckFields(seq, serverRecvNs, serverSendNs);
+        return new AckFields(seq, serverRecvNs, serverSendNs, busy);
     }
 
     /**
@@ -413,7 +1354,16 @@ public class sockettcpcli {
         final long seq;
         final long serverRecvNs;
         final long serverSendNs;
-        AckFields(long s, long r, long t) { this.seq = s; this.serverRecvNs = r; this.serverSendNs = t; }
+        final boolean busy; // Respuesta BUSY: el servidor no procesó el mensaje
+        AckFields(long s, long r, long t, boolean b) { this.seq = s; this.serverRecvNs = r; this.serverSendNs = t; this.busy = b; }
+    }
+
+    /**
+     * La conexión fue rechazada por el control de admisión del servidor ("BUSY" y cierre).
+     */
+    private static class ServerBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+        ServerBusyException() { super("Conexión rechazada por el servidor (BUSY)"); }
     }
 
     /**
@@ -435,6 +1385,21 @@ public class sockettcpcli {
             if (x > max) max = x;
         }
 
+        /**
+         * Une otro colector (algoritmo paralelo de Chan) para el resumen global.
+         */
+        void merge(StatCollector o) {
+            if (o.n == 0) return;
+            if (n == 0) { n = o.n; mean = o.mean; m2 = o.m2; min = o.min; max = o.max; return; }
+            long total = n + o.n;
+            double delta = o.mean - mean;
+            mean += delta * o.n / total;
+            m2 += o.m2 + delta * delta * ((double) n * o.n / total);
+            n = total;
+            if (o.min < min) min = o.min;
+            if (o.max > max) max = o.max;
+        }
+
         double mean() { return mean; }
         double variance() { return n > 0 ? m2 / n : 0; }
         double stddev() { return Math.sqrt(variance()); }
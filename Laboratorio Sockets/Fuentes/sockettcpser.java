@@ -7,16 +7,101 @@
 ****************************************************************/
 import java.net.*;
 import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Set;
 import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import com.sun.net.httpserver.HttpServer;
 
 /**
  * sockettcpser - Concurrent TCP server with metrics and CSV logging.
  *
  * Usage:
  *   java sockettcpser -p 6001 -csv server_metrics.csv --nodelay --keepalive --backlog 100
+ *   java sockettcpser -p 6001 --mode nio --loops 4
+ *   java sockettcpser -p 6001 --mode pool --pool-size 200 --queue 1000 --report 5
+ *   java sockettcpser -p 6001 --csv-buffer 65536 --csv-batch 512 --csv-flush-ms 100
+ *   java sockettcpser -p 6001 --max-frame 67108864
+ *   java sockettcpser -p 6001 --stats-port 8081   (then: curl http://localhost:8081/metrics)
+ *   java sockettcpser -p 6001 --quiet             (no per-message logs; --log-rate N limits them)
+ *   java sockettcpser -p 6001 --bulk-dir recibidos (keep files received in bulk mode)
+ *   java sockettcpser -p 6001 --work cpu:20000 --workers 4 --work-queue 1024
+ *   java sockettcpser -p 6001 --max-conns 200 --max-inflight 64 --workers 4 --codel-target 5
+ *   java sockettcpser -p 6001 --idle-timeout 30000 --read-timeout 5000 --min-rate 1024 --write-timeout 10000
+ *
+ * Modes:
+ * - thread:  one platform thread per connection blocked on readUTF (default).
+ * - pool:    bounded ThreadPoolExecutor (--pool-size workers, --queue pending connections);
+ *            when the queue is full the connection is rejected and closed.
+ * - virtual: one virtual thread per connection (requires Java 21).
+ * - nio:    every connection is multiplexed over a Selector; a small set of event-loop
+ *           threads (--loops, default = number of CPUs) reads, processes and answers.
+ *
+ * Processing stage:
+ * - --work kind[:arg] runs a synthetic Workload for every MSG/USR message (cpu, checksum,
+ *   sleep, matrix; default none). Decompression (codec=deflate) is part of this stage.
+ * - With --workers 0 (default) the I/O thread processes the message itself. With
+ *   --workers N the I/O thread only reads and parses: the message goes through a bounded
+ *   queue (--work-queue) to N worker threads, and the worker hands the finished request
+ *   back to the connection: blocking modes queue it for a per-connection writer thread,
+ *   nio posts it to the event loop. Workers never write to sockets. A full queue blocks
+ *   the I/O thread, which pushes back on the clients through TCP; in the blocking modes a
+ *   connection also stops reading once it has 256 messages in the stage or waiting to be
+ *   written, so a client that does not read its ACKs cannot take the whole queue.
+ * - The server CSV adds queue_ms (wait in the queue) next to server_proc_ms, which is the
+ *   service time (decompression and workload, measured by the thread that runs them).
+ *
+ * Timeouts (all off by default; no SO_TIMEOUT and no timer per socket):
+ * - --idle-timeout ms: no bytes read or written on the connection for that long.
+ * - --read-timeout ms: a message whose first bytes arrived is still incomplete.
+ * - --min-rate bytes/s: while a message or bulk file is arriving, the client sends fewer
+ *   bytes per second than this over a --min-rate-window (5000 ms) window (slowloris).
+ * - --write-timeout ms: replies have been waiting to go out for that long without any
+ *   progress (a blocked write, or unsent bytes in the nio buffer). Reads do not reset it,
+ *   so a client that keeps sending but never drains its receive window is caught here.
+ * - Every connection has a Watchdog: the connection thread only updates volatile
+ *   timestamps and byte counts, and a single hashed TimingWheel thread (--wheel-tick ms
+ *   resolution, 100 by default) checks each connection when its nearest deadline comes
+ *   and closes it on expiry. Evictions are counted per reason (idle, read, slow, write).
+ *
+ * Admission control (all off by default):
+ * - --max-conns N: a connection above the limit is answered with "BUSY" and closed at
+ *   accept time (the same happens when the pool queue is full in pool mode).
+ * - --max-inflight N: MSG/USR messages being queued or processed in the whole server; a
+ *   message above the limit is answered at once with "BUSY|seq|serverRecvNs|serverSendNs"
+ *   (a BUSY frame in binary framing) instead of an ACK.
+ * - --codel-target ms (with --workers): CoDel on the worker queue. Once the wait in the
+ *   queue stays above the target for a whole --codel-interval (100 ms), workers answer
+ *   BUSY instead of processing, one message at a time at intervals of interval/sqrt(n)
+ *   while the delay stays high. Rejected messages are logged in the CSV as type BUSY.
  *
  * Protocol:
  * - Client messages (UTF):
@@ -26,6 +111,31 @@ import java.util.Locale;
  *
  * - Server response:
  *   "ACK|seq|serverRecvNs|serverSendNs"
+ *
+ * - Optional negotiation (first message): "HELLO|framing=bin" switches the connection
+ *   to the binary length-prefixed framing described in BinaryFrame (payloads up to
+ *   --max-frame bytes). Any other framing is answered with "HELLO|framing=utf".
+ *   "HELLO|framing=bin|codec=deflate" additionally enables compressed payloads
+ *   (PayloadCodec); the reply only echoes "codec=deflate" when it was accepted.
+ *
+ * - Bulk file transfer: "BULK|bytes|zerocopy" or "BULK|bytes|stream" is answered with
+ *   "READY"; the client then sends exactly 'bytes' raw bytes, which the server writes to a
+ *   file (FileChannel.transferFrom, or a classic byte[] stream copy), and confirms with
+ *   "DONE|bytes|recvStartNs|recvEndNs|serverCpuNs|gcCount|gcMs". Received files are
+ *   temporary unless --bulk-dir is given.
+ *
+ * Metrics:
+ * - Handlers enqueue CSV rows into an asynchronous MetricsSink (lock-free ring buffer);
+ *   a background thread writes them in batches. Rows dropped because the ring was full
+ *   are reported at shutdown.
+ * - --stats-port starts a small HTTP endpoint (/metrics, plain text) with live counters:
+ *   active connections, messages/s, bytes/s, processing-time histogram (global and per
+ *   connection) and the depth of the metrics write queue. Counters are LongAdders and
+ *   histograms are per connection, so handlers never contend to update them. Only the
+ *   first 100 connections get their own line (/metrics?conns=N changes the limit).
+ *
+ * Logging goes through AsyncLog (cached timestamps, background writer); per-message logs
+ * (USR text, malformed and RAW messages) are limited to --log-rate lines per second.
  */
 public class sockettcpser {
 
@@ -36,26 +146,203 @@ public class sockettcpser {
     private static boolean keepAlive = true; // Mantener conexión TCP viva
     private static int backlog = 100; // Número máximo de conexiones en espera
     private static int rcvBuf = 0, sndBuf = 0; // Tamaño de buffer de recepción/envío (0 = default)
+    private static String mode = "thread"; // Estrategia de manejo de conexiones: thread | pool | virtual | nio
+    private static int nioLoops = Runtime.getRuntime().availableProcessors(); // Hilos event-loop en modo nio
+    private static int poolSize = 200; // Hilos del pool acotado (modo pool)
+    private static int poolQueue = 1000; // Conexiones en espera del pool antes de rechazar (modo pool)
+    private static int maxFrame = 64 * 1024 * 1024; // Payload máximo en framing binario (bytes)
+    private static int reportSec = 0; // Intervalo de reporte de conexiones en segundos (0 = solo al terminar)
 
-    private static final Object CSV_LOCK = new Object(); // Lock para sincronizar escritura CSV
+    private static int csvBuffer = 65536; // Slots del ring de métricas
+    private static int csvBatch = 512; // Filas por flush del CSV
+    private static long csvFlushMs = 100; // Flush máximo cada N ms aunque el lote no esté lleno
+
+    private static MetricsSink metrics; // Escritor asíncrono del CSV
+
+    private static int statsPort = 0; // Puerto HTTP de métricas en vivo (0 = deshabilitado)
+    private static String bulkDir = null; // Carpeta para guardar archivos del modo bulk (null = temporales)
+
+    private static Workload workload = Workload.NONE; // Trabajo sintético por mensaje
+    private static int workers = 0; // Hilos de la etapa de procesamiento (0 = en el hilo de I/O)
+    private static int workQueue = 1024; // Capacidad de la cola hacia los workers
+    private static ProcessingStage stage; // null = procesamiento en línea
+
+    private static int maxConns = 0; // Conexiones simultáneas admitidas (0 = sin límite)
+    private static int maxInflight = 0; // Mensajes en cola o en proceso en todo el servidor (0 = sin límite)
+    private static long codelTargetMs = 0; // Espera objetivo en la cola de workers (0 = sin CoDel)
+    private static long codelIntervalMs = 100; // Ventana de CoDel
+    private static CoDel codel; // null = sin descarte por demora
+
+    private static long idleTimeoutMs = 0; // Sin tráfico en la conexión (0 = sin límite)
+    private static long readTimeoutMs = 0; // Mensaje empezado que no termina de llegar (0 = sin límite)
+    private static long minRate = 0; // Bytes/s mínimos mientras llega un mensaje o archivo (0 = sin límite)
+    private static long minRateWindowMs = 5000; // Ventana en que se mide --min-rate
+    private static long writeTimeoutMs = 0; // Respuestas sin poder salir (0 = sin límite)
+    private static long wheelTickMs = 100; // Resolución de la rueda de tiempos
+    private static TimingWheel wheel; // null = sin timeouts
+
+    // Contadores (comunes a todas las estrategias). LongAdder: sin contención entre hilos
+    private static final LongAdder accepted = new LongAdder(); // Conexiones aceptadas
+    private static final LongAdder active = new LongAdder(); // Conexiones siendo atendidas
+    private static final LongAdder rejected = new LongAdder(); // Conexiones rechazadas (pool lleno o --max-conns)
+    private static final LongAdder busyInflight = new LongAdder(); // Mensajes rechazados por --max-inflight
+    private static final LongAdder busyCodel = new LongAdder(); // Mensajes descartados por CoDel
+    private static final AtomicInteger admitted = new AtomicInteger(); // Conexiones admitidas aún abiertas
+    private static final AtomicInteger inFlight = new AtomicInteger(); // Mensajes admitidos sin respuesta (con --max-inflight)
+    private static final LongAdder evictedIdle = new LongAdder(); // Conexiones cerradas por --idle-timeout
+    private static final LongAdder evictedRead = new LongAdder(); // Conexiones cerradas por --read-timeout
+    private static final LongAdder evictedSlow = new LongAdder(); // Conexiones cerradas por --min-rate
+    private static final LongAdder evictedWrite = new LongAdder(); // Conexiones cerradas por --write-timeout
+    private static final LongAdder messagesTotal = new LongAdder(); // Mensajes MSG/USR procesados
+    private static final LongAdder bytesTotal = new LongAdder(); // Bytes de payload recibidos
+    private static final LongAdder bulkTransfers = new LongAdder(); // Archivos recibidos en modo bulk
 
     public static void main(String[] args) {
         // Parsear argumentos de línea de comando
         parseArgs(args);
-        try (ServerSocket server = new ServerSocket(port, backlog)) { // Crear servidor TCP
-            System.out.println(ts() + " Servidor escuchando en puerto " + port); // Log de inicio
-            // Bucle principal: aceptar clientes y manejar cada uno en un hilo nuevo
+        try {
+            openMetrics();
+        } catch (IOException e) {
+            AsyncLog.error("Error abriendo CSV: " + e.getMessage());
+            return;
+        }
+        startConnectionReport();
+        if (statsPort > 0) startStatsEndpoint();
+        if (workers > 0) stage = new ProcessingStage(workers, workQueue);
+        if (codelTargetMs > 0) {
+            if (stage != null) {
+                codel = new CoDel(codelTargetMs * 1_000_000L, codelIntervalMs * 1_000_000L);
+            } else {
+                AsyncLog.info("--codel-target requiere --workers (no hay cola que vigilar): CoDel deshabilitado");
+            }
+        }
+        if (idleTimeoutMs > 0 || readTimeoutMs > 0 || minRate > 0 || writeTimeoutMs > 0) {
+            wheel = new TimingWheel(wheelTickMs, 512, "timing-wheel");
+            AsyncLog.info("Timeouts: idle=" + idleTimeoutMs + " ms read=" + readTimeoutMs + " ms min-rate=" + minRate
+                    + " B/s (ventana " + minRateWindowMs + " ms) write=" + writeTimeoutMs + " ms, tick=" + wheelTickMs + " ms");
+        }
+        if (maxConns > 0 || maxInflight > 0 || codel != null) {
+            AsyncLog.info("Control de admisión: max-conns=" + maxConns + " max-inflight=" + maxInflight
+                    + (codel != null ? " codel=" + codelTargetMs + "/" + codelIntervalMs + " ms" : ""));
+        }
+        if (workload != Workload.NONE || stage != null) {
+            AsyncLog.info("Etapa de procesamiento: work=" + workload + " workers=" + workers
+                    + (stage != null ? " cola=" + workQueue : " (en el hilo de I/O)"));
+        }
+        if ("nio".equals(mode)) {
+            runNio(); // Modo no bloqueante con Selector
+            return;
+        }
+        ThreadPoolExecutor pool = "pool".equals(mode) ? newBoundedPool() : null;
+        // Canal en modo bloqueante: los sockets aceptados tienen getChannel() para el modo bulk (transferFrom)
+        try (ServerSocketChannel server = ServerSocketChannel.open()) { // Crear servidor TCP
+            server.bind(new InetSocketAddress(port), backlog);
+            AsyncLog.info("Servidor escuchando en puerto " + port + " (modo " + mode + ")"); // Log de inicio
+            // Bucle principal: aceptar clientes y despachar cada uno según la estrategia elegida
             while (true) {
-                Socket client = server.accept(); // Espera y acepta una conexión entrante
+                Socket client = server.accept().socket(); // Espera y acepta una conexión entrante
+                accepted.increment();
+                if (!admitConnection(client)) continue; // Sobre --max-conns: BUSY y cerrada
                 configureSocket(client); // Configura opciones TCP del cliente
-                System.out.println(ts() + " Conexión de " + client.getRemoteSocketAddress()); // Log cliente
-                new Thread(new ClientHandler(client)).start(); // Crear hilo para manejar cliente
+                AsyncLog.info("Conexión de " + client.getRemoteSocketAddress()); // Log cliente
+                dispatch(client, pool);
             }
         } catch (IOException e) {
-            System.err.println("Error servidor: " + e.getMessage()); // Manejo de errores
+            AsyncLog.error("Error servidor: " + e.getMessage()); // Manejo de errores
         }
     }
 
+    /**
+     * Entrega la conexión a la estrategia configurada sin tocar la lógica de ClientHandler.
+     */
+    private static void dispatch(Socket client, ThreadPoolExecutor pool) {
+        ClientHandler handler = new ClientHandler(client);
+        switch (mode) {
+            case "pool":
+                try {
+                    pool.execute(handler); // Cola acotada: si está llena se rechaza
+                } catch (RejectedExecutionException e) {
+                    rejected.increment();
+                    admitted.decrementAndGet();
+                    AsyncLog.info("Conexión rechazada (pool lleno): " + client.getRemoteSocketAddress());
+                    rejectBusy(client);
+                }
+                break;
+            case "virtual":
+                Thread.ofVirtual().name("conn-virtual-", accepted.sum()).start(handler); // Hilo virtual por conexión
+                break;
+            default:
+                new Thread(handler).start(); // Crear hilo de plataforma para manejar cliente
+                break;
+        }
+    }
+
+    /**
+     * Control de admisión de conexiones: cuenta la conexión como admitida o, sobre
+     * --max-conns, la rechaza con "BUSY" sin crear hilo ni registrarla.
+     */
+    private static boolean admitConnection(Socket s) {
+        if (admitted.incrementAndGet() <= maxConns || maxConns <= 0) return true;
+        admitted.decrementAndGet();
+        rejected.increment();
+        if (AsyncLog.allowMessage()) AsyncLog.message("Conexión rechazada (max-conns): " + s.getRemoteSocketAddress());
+        rejectBusy(s);
+        return false;
+    }
+
+    /**
+     * Rechazo rápido: "BUSY" (writeUTF, el cliente aún no negoció framing) y cierre.
+     */
+    private static void rejectBusy(Socket s) {
+        try (Socket c = s) {
+            DataOutputStream o = new DataOutputStream(c.getOutputStream());
+            o.writeUTF("BUSY");
+            o.flush();
+            c.shutdownOutput(); // FIN tras el BUSY para que el cliente lo lea antes del cierre
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Pool acotado: poolSize hilos fijos y una cola de poolQueue conexiones.
+     * AbortPolicy lanza RejectedExecutionException cuando la cola está llena.
+     */
+    private static ThreadPoolExecutor newBoundedPool() {
+        return new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(poolQueue), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Imprime los contadores de conexiones cada reportSec segundos (si se pidió)
+     * y siempre al terminar el proceso.
+     */
+    private static void startConnectionReport() {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> AsyncLog.info(connectionSummary())));
+        if (reportSec <= 0) return;
+        Thread reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(reportSec * 1000L);
+                    AsyncLog.info(connectionSummary());
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }, "connection-report");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Resumen de conexiones: aceptadas, activas y rechazadas.
+     */
+    private static String connectionSummary() {
+        return "[CONEXIONES] modo=" + mode + " aceptadas=" + accepted.sum()
+                + " activas=" + active.sum() + " rechazadas=" + rejected.sum()
+                + (maxInflight > 0 || codel != null ? " busy_inflight=" + busyInflight.sum() + " busy_codel=" + busyCodel.sum() : "")
+                + (wheel != null ? " expulsadas idle=" + evictedIdle.sum() + " read=" + evictedRead.sum() + " slow=" + evictedSlow.sum()
+                        + " write=" + evictedWrite.sum() : "");
+    }
+
     /**
      * Parsear argumentos de línea de comando y configurar variables.
      */
@@ -91,6 +378,84 @@ public class sockettcpser {
                 case "--sndbuf":
                     sndBuf = Integer.parseInt(argv[++i]); // Tamaño buffer de envío
                     break;
+                case "--mode":
+                    mode = argv[++i].toLowerCase(Locale.ROOT); // thread | pool | virtual | nio
+                    break;
+                case "--pool-size":
+                    poolSize = Math.max(1, Integer.parseInt(argv[++i])); // Hilos del pool (modo pool)
+                    break;
+                case "--queue":
+                    poolQueue = Math.max(1, Integer.parseInt(argv[++i])); // Cola del pool (modo pool)
+                    break;
+                case "--csv-buffer":
+                    csvBuffer = Integer.parseInt(argv[++i]); // Capacidad del ring de métricas
+                    break;
+                case "--csv-batch":
+                    csvBatch = Integer.parseInt(argv[++i]); // Filas por flush
+                    break;
+                case "--csv-flush-ms":
+                    csvFlushMs = Long.parseLong(argv[++i]); // Tiempo máximo entre flush
+                    break;
+                case "--max-frame":
+                    maxFrame = Integer.parseInt(argv[++i]); // Payload máximo del framing binario
+                    break;
+                case "--bulk-dir":
+                    bulkDir = argv[++i]; // Guardar los archivos recibidos en modo bulk
+                    break;
+                case "--work":
+                    workload = Workload.parse(argv[++i]); // cpu:N | checksum:N | sleep:N | matrix:N | none
+                    break;
+                case "--workers":
+                    workers = Math.max(0, Integer.parseInt(argv[++i])); // Hilos de procesamiento (0 = en línea)
+                    break;
+                case "--work-queue":
+                    workQueue = Math.max(1, Integer.parseInt(argv[++i])); // Cola acotada hacia los workers
+                    break;
+                case "--max-conns":
+                    maxConns = Integer.parseInt(argv[++i]); // Conexiones simultáneas (0 = sin límite)
+                    break;
+                case "--max-inflight":
+                    maxInflight = Integer.parseInt(argv[++i]); // Mensajes en proceso (0 = sin límite)
+                    break;
+                case "--codel-target":
+                    codelTargetMs = Long.parseLong(argv[++i]); // Espera objetivo en la cola de workers
+                    break;
+                case "--codel-interval":
+                    codelIntervalMs = Math.max(1, Long.parseLong(argv[++i])); // Ventana de CoDel
+                    break;
+                case "--idle-timeout":
+                    idleTimeoutMs = Long.parseLong(argv[++i]); // Expulsar conexiones sin tráfico
+                    break;
+                case "--read-timeout":
+                    readTimeoutMs = Long.parseLong(argv[++i]); // Expulsar mensajes que no terminan de llegar
+                    break;
+                case "--min-rate":
+                    minRate = Long.parseLong(argv[++i]); // Bytes/s mínimos de un cliente que está enviando
+                    break;
+                case "--min-rate-window":
+                    minRateWindowMs = Math.max(1, Long.parseLong(argv[++i])); // Ventana de --min-rate
+                    break;
+                case "--write-timeout":
+                    writeTimeoutMs = Long.parseLong(argv[++i]); // Expulsar clientes que no leen sus respuestas
+                    break;
+                case "--wheel-tick":
+                    wheelTickMs = Math.max(1, Long.parseLong(argv[++i])); // Resolución de los timeouts
+                    break;
+                case "--stats-port":
+                    statsPort = Integer.parseInt(argv[++i]); // Endpoint HTTP de métricas en vivo
+                    break;
+                case "--log-rate":
+                    AsyncLog.setMessageRate(Integer.parseInt(argv[++i])); // Logs por mensaje por segundo (0 = apagados)
+                    break;
+                case "--quiet":
+                    AsyncLog.setMessageRate(0); // Sin logs por mensaje (benchmark)
+                    break;
+                case "--report":
+                    reportSec = Integer.parseInt(argv[++i]); // Reporte periódico de conexiones
+                    break;
+                case "--loops":
+                    nioLoops = Math.max(1, Integer.parseInt(argv[++i])); // Número de event loops (modo nio)
+                    break;
                 default:
                     // Ignorar argumentos desconocidos
                     break;
@@ -108,27 +473,900 @@ public class sockettcpser {
         if (sndBuf > 0) s.setSendBufferSize(sndBuf); // Configura buffer de envío
     }
 
+    // ================== PROCESAMIENTO ==================
     /**
-     * Retorna timestamp para logging.
+     * Interpreta un mensaje del protocolo (MSG/USR/otros). MSG/USR pasan a la etapa de
+     * procesamiento, que responde por medio de responder; retorna el ACK a enviar de
+     * inmediato (mensajes RAW) o null. Lo comparten el modo thread y el modo nio,
+     * de forma que ambos generan exactamente el mismo ACK y las mismas filas CSV.
      */
-    private static String ts() {
-        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date()); // Formato yyyy-MM-dd HH:mm:ss.SSS
+    private static String handleMessage(String msg, ConnectionStats conn, Responder responder) throws IOException {
+        long recvNs = System.nanoTime(); // Timestamp de recepción
+        String remote = conn.remote;
+        String type = msg.length() >= 3 ? msg.substring(0, 3) : ""; // Tipo MSG/USR
+        if (type.equals("MSG") || type.equals("USR")) {
+            Request r = parseText(msg, type, recvNs, conn, responder);
+            if (r != null) {
+                submit(r);
+                return null;
+            }
+            if (AsyncLog.allowMessage()) AsyncLog.message("Mensaje malformado de " + remote + ": " + msg);
+            return null;
+        }
+        // Echo simple para compatibilidad con otros mensajes
+        if (AsyncLog.allowMessage()) AsyncLog.message("[RAW] " + msg);
+        long sendNs = System.nanoTime();
+        return "ACK|0|" + recvNs + "|" + sendNs;
+    }
+
+    /**
+     * Separa un mensaje "MSG|seq|clientSendNs|payloadLen|payload" (o USR) en un Request.
+     * Retorna null si le faltan campos. No tiene efectos laterales (lo mide Benchmarks/).
+     */
+    private static Request parseText(String msg, String type, long recvNs, ConnectionStats conn, Responder responder) {
+        String[] parts = msg.split("\\|", 5); // Separar mensaje en campos
+        if (parts.length < 5) return null;
+        // parts: [0]=MSG/USR, [1]=seq, [2]=clientSendNs, [3]=payloadLen, [4]=payload
+        Request r = new Request(conn, responder, false);
+        r.type = type;
+        r.seq = safeParseLong(parts[1], -1L); // Secuencia
+        r.clientSendNs = safeParseLong(parts[2], -1L); // Timestamp del cliente
+        r.payloadLen = safeParseInt(parts[3], -1); // Largo payload
+        r.recvNs = recvNs;
+        byte[] payload = parts[4].getBytes(StandardCharsets.UTF_8); // Mensaje real
+        r.bytes = payload.length; // Tamaño real del payload
+        r.payload = ByteBuffer.wrap(payload);
+        return r;
+    }
+
+    /**
+     * Pasa un frame binario ya leído a la etapa de procesamiento. El payload solo se
+     * conserva si alguien lo lee (descompresión, workload o texto USR), y se copia cuando
+     * lo procesará un worker, porque el frame se reutiliza para el siguiente mensaje.
+     */
+    private static void handleBinary(BinaryFrame f, long recvNs, ConnectionStats conn, boolean deflate,
+                                     Responder responder) throws IOException {
+        boolean msg = f.type == BinaryFrame.MSG || f.type == BinaryFrame.USR;
+        Request r = new Request(conn, responder, true);
+        r.type = BinaryFrame.typeName(f.type);
+        r.seq = msg ? f.seq : 0;
+        r.clientSendNs = f.t1;
+        r.recvNs = recvNs;
+        r.payloadLen = f.length;
+        r.bytes = f.length;
+        if (deflate && msg) { // Se descomprime en la etapa de procesamiento
+            if (f.t2 < 0 || f.t2 > maxFrame) throw new IOException("Largo descomprimido inválido: " + f.t2);
+            r.rawLen = (int) f.t2;
+        }
+        if (needsBody(f.type, deflate)) {
+            ByteBuffer p = f.payload();
+            r.payload = stage == null ? p : ByteBuffer.allocate(p.remaining()).put(p.duplicate()).flip();
+        }
+        submit(r);
+    }
+
+    /**
+     * true si el procesamiento de un frame de este tipo lee su payload.
+     */
+    private static boolean needsBody(byte type, boolean deflate) {
+        return deflate || type == BinaryFrame.USR || workload.needsPayload();
+    }
+
+    /**
+     * Admite el mensaje (--max-inflight) y lo procesa en línea o lo encola hacia los
+     * workers según --workers. Sobre el límite responde BUSY sin procesarlo.
+     */
+    private static void submit(Request r) throws IOException {
+        if (maxInflight > 0 && inFlight.incrementAndGet() > maxInflight) {
+            inFlight.decrementAndGet();
+            busyInflight.increment();
+            reject(r, 0);
+            return;
+        }
+        if (stage == null) {
+            try {
+                process(r);
+            } finally {
+                release();
+            }
+        } else {
+            stage.submit(r);
+        }
+    }
+
+    /**
+     * Libera el cupo de --max-inflight de un mensaje ya respondido.
+     */
+    private static void release() {
+        if (maxInflight > 0) inFlight.decrementAndGet();
+    }
+
+    /**
+     * Responde BUSY a un mensaje sin procesarlo y lo registra en el CSV (tipo BUSY).
+     */
+    private static void reject(Request r, long queueNs) throws IOException {
+        long nowNs = System.nanoTime();
+        r.busy = true;
+        writeServerCsv(r.seq, "BUSY", r.conn.remote, r.clientSendNs, r.recvNs, nowNs, nowNs, queueNs, r.payloadLen, r.bytes);
+        r.responder.ack(r);
+    }
+
+    /**
+     * Etapa de procesamiento de un mensaje: descompresión, workload, métricas y ACK.
+     * Se ejecuta en el hilo de I/O (en línea) o en un worker de ProcessingStage.
+     */
+    private static void process(Request r) throws IOException {
+        long beforeProcNs = System.nanoTime(); // Antes procesamiento
+        long queueNs = r.enqueueNs > 0 ? beforeProcNs - r.enqueueNs : 0; // Espera en la cola de la etapa
+        ByteBuffer body = r.payload;
+        long payloadLen = r.payloadLen;
+        if (r.rawLen >= 0) { // Descomprimir es parte del procesamiento del mensaje
+            body = PayloadCodec.inflate(body, r.rawLen);
+            payloadLen = body.remaining();
+        }
+        Workload.consume(workload.run(body)); // Simulación de procesamiento (--work)
+        long afterProcNs = System.nanoTime(); // Después procesamiento
+        r.conn.record(r.bytes, afterProcNs - beforeProcNs);
+        // payload_len = largo original, payload_bytes = bytes recibidos (comprimidos si aplica)
+        writeServerCsv(r.seq, r.type, r.conn.remote, r.clientSendNs, r.recvNs, beforeProcNs, afterProcNs,
+                queueNs, payloadLen, r.bytes);
+        if ("USR".equals(r.type) && body != null && AsyncLog.allowMessage()) {
+            AsyncLog.message("[" + r.conn.remote + "] " + "Mensaje #" + r.seq + ": "
+                    + new String(body.array(), body.arrayOffset() + body.position(), body.remaining(), StandardCharsets.UTF_8));
+        }
+        r.responder.ack(r); // ACK al cliente
+    }
+
+    /**
+     * Mensaje MSG/USR leído por el hilo de I/O y pendiente de procesar.
+     */
+    private static class Request {
+        final ConnectionStats conn;
+        final Responder responder; // Conexión que envía el ACK
+        final boolean binary; // ACK como frame binario o como writeUTF
+        String type;
+        long seq;
+        long clientSendNs;
+        long recvNs;
+        long payloadLen; // Largo declarado por el cliente
+        int bytes; // Bytes recibidos del payload
+        int rawLen = -1; // Largo descomprimido (>= 0 solo con codec=deflate)
+        ByteBuffer payload; // null si nadie lo lee
+        long enqueueNs; // Momento en que entró a la cola (0 = procesado en línea)
+        boolean busy; // Rechazado: se responde BUSY en lugar de ACK
+        IOException error; // Falla del worker; la conexión se cierra en lugar de responder
+
+        Request(ConnectionStats conn, Responder responder, boolean binary) {
+            this.conn = conn;
+            this.responder = responder;
+            this.binary = binary;
+        }
+    }
+
+    /**
+     * Destino del ACK de un Request ya procesado. Puede llamarse desde un worker, que
+     * solo lo entrega: la escritura en el socket la hace un hilo de la conexión.
+     */
+    private interface Responder {
+        void ack(Request r) throws IOException;
+
+        /**
+         * El hilo de I/O va a encolar r hacia los workers. Puede bloquear para limitar
+         * cuántos mensajes tiene la conexión en la etapa.
+         */
+        default void enterStage(Request r) throws IOException { }
+    }
+
+    /**
+     * Pool de workers alimentado por una cola acotada. Cuando la cola está llena,
+     * submit bloquea al hilo de I/O (contrapresión hacia el cliente vía TCP).
+     */
+    private static class ProcessingStage {
+        private final ArrayBlockingQueue<Request> queue;
+
+        ProcessingStage(int workers, int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            for (int i = 0; i < workers; i++) {
+                Thread t = new Thread(this::workLoop, "worker-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+
+        void submit(Request r) throws IOException {
+            r.responder.enterStage(r);
+            r.enqueueNs = System.nanoTime();
+            try {
+                queue.put(r);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrumpido esperando la cola de procesamiento");
+            }
+        }
+
+        int depth() { return queue.size(); }
+
+        private void workLoop() {
+            while (true) {
+                Request r;
+                try {
+                    r = queue.take();
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                try {
+                    long nowNs = System.nanoTime();
+                    if (codel != null && codel.shouldDrop(nowNs - r.enqueueNs, nowNs, queue.isEmpty())) {
+                        busyCodel.increment();
+                        reject(r, nowNs - r.enqueueNs);
+                    } else {
+                        process(r);
+                    }
+                } catch (IOException e) {
+                    r.error = e; // Se informa a la conexión, que se cierra
+                    try {
+                        r.responder.ack(r);
+                    } catch (IOException ignored) { }
+                } finally {
+                    release();
+                }
+            }
+        }
+    }
+
+    /**
+     * CoDel (Nichols y Jacobson, RFC 8289) sobre la cola de workers: vigila la espera de
+     * cada mensaje al salir de la cola. Si se mantiene sobre target durante todo un
+     * interval, entra en modo descarte y rechaza un mensaje cada interval/sqrt(n) hasta
+     * que la espera vuelve a bajar del objetivo. Lo comparten todos los workers.
+     */
+    private static class CoDel {
+        private final long targetNs, intervalNs;
+        private long firstAboveNs; // Cuándo la espera lleva un interval sobre el objetivo (0 = bajo el objetivo)
+        private long dropNextNs; // Próximo descarte en modo descarte
+        private int count, lastCount; // Descartes del episodio actual y del anterior
+        private volatile boolean dropping;
+
+        CoDel(long targetNs, long intervalNs) {
+            this.targetNs = targetNs;
+            this.intervalNs = intervalNs;
+        }
+
+        /**
+         * true si el mensaje que esperó sojournNs debe rechazarse.
+         */
+        synchronized boolean shouldDrop(long sojournNs, long nowNs, boolean queueEmpty) {
+            boolean okToDrop = false;
+            if (sojournNs < targetNs || queueEmpty) {
+                firstAboveNs = 0; // Sin cola persistente
+            } else if (firstAboveNs == 0) {
+                firstAboveNs = nowNs + intervalNs;
+            } else {
+                okToDrop = nowNs >= firstAboveNs;
+            }
+            if (dropping) {
+                if (!okToDrop) {
+                    dropping = false;
+                    return false;
+                }
+                if (nowNs < dropNextNs) return false;
+                count++;
+                dropNextNs = controlLaw(dropNextNs);
+                return true;
+            }
+            if (!okToDrop) return false;
+            dropping = true;
+            // Si el episodio anterior fue reciente, retomar su ritmo de descarte
+            int delta = count - lastCount;
+            count = (delta > 1 && nowNs - dropNextNs < 16 * intervalNs) ? delta : 1;
+            lastCount = count;
+            dropNextNs = controlLaw(nowNs);
+            return true;
+        }
+
+        private long controlLaw(long t) {
+            return t + (long) (intervalNs / Math.sqrt(count));
+        }
+
+        boolean dropping() { return dropping; }
+    }
+
+    /**
+     * Opciones negociadas por conexión con el mensaje HELLO.
+     */
+    private static class SessionOptions {
+        boolean binary; // Framing binario (BinaryFrame) en lugar de writeUTF
+        boolean deflate; // Payloads comprimidos con PayloadCodec (solo con framing binario)
+
+        /**
+         * Interpreta "HELLO|clave=valor|..." y acepta solo lo que el servidor soporta.
+         */
+        static SessionOptions negotiate(String hello) {
+            SessionOptions o = new SessionOptions();
+            for (String kv : hello.split("\\|")) {
+                if (kv.equals("framing=bin")) o.binary = true;
+                if (kv.equals("codec=deflate")) o.deflate = true;
+            }
+            o.deflate &= o.binary; // Los bytes comprimidos no caben en writeUTF
+            return o;
+        }
+
+        /**
+         * Respuesta con lo efectivamente aceptado.
+         */
+        String reply() {
+            return "HELLO|framing=" + (binary ? "bin" : "utf") + (deflate ? "|codec=deflate" : "");
+        }
+    }
+
+    /**
+     * Encola una fila de métricas para el CSV del servidor. No bloquea: si el ring
+     * está lleno la fila se descarta y se contabiliza.
+     */
+    private static void writeServerCsv(long seq, String type, String remote, long clientSendNs, long serverRecvNs,
+                                       long beforeProcNs, long afterProcNs, long queueNs, long payloadLen, long bytes) {
+        long slot = metrics.claim();
+        if (slot < 0) return; // Ring lleno: fila descartada
+        metrics.ref(slot, 0, type);
+        metrics.ref(slot, 1, remote);
+        metrics.val(slot, 0, seq);
+        metrics.val(slot, 1, clientSendNs);
+        metrics.val(slot, 2, serverRecvNs);
+        metrics.val(slot, 3, bytes); // Tamaño real del payload
+        metrics.val(slot, 4, afterProcNs - beforeProcNs); // Tiempo de procesamiento
+        metrics.val(slot, 5, payloadLen);
+        metrics.val(slot, 6, System.nanoTime()); // server_log_ns: momento en que el handler registra la fila
+        metrics.val(slot, 7, queueNs); // Espera en la cola de la etapa de procesamiento
+        metrics.publish(slot);
+    }
+
+    /**
+     * Da formato a una fila: esquema original del CSV del servidor más queue_ms.
+     */
+    private static void formatServerRow(StringBuilder row, Object[] refs, int r, long[] vals, int v) {
+        row.append(refs[r]).append(',').append(vals[v]).append(',').append(refs[r + 1]).append(',')
+           .append(vals[v + 1]).append(',').append(vals[v + 2]).append(',').append(vals[v + 3]).append(',');
+        MetricsSink.appendNsAsMs(row, vals[v + 4]);
+        row.append(',').append(vals[v + 5]).append(',').append(vals[v + 6]).append(',');
+        MetricsSink.appendNsAsMs(row, vals[v + 7]);
+        row.append('\n');
+    }
+
+    /**
+     * Abre el CSV en modo append (con cabecera si está vacío) y arranca el escritor asíncrono.
+     * Al terminar el proceso se drenan las filas pendientes y se reportan las descartadas.
+     */
+    private static void openMetrics() throws IOException {
+        writeServerCsvHeaderIfNeeded();
+        Writer w = new BufferedWriter(new FileWriter(csvPath, true), 1 << 16);
+        metrics = new MetricsSink(w, csvBuffer, 2, 8, csvBatch, csvFlushMs, sockettcpser::formatServerRow);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                metrics.close();
+            } catch (IOException e) {
+                AsyncLog.error("Error cerrando CSV: " + e.getMessage());
+            }
+            AsyncLog.info("[CSV] filas escritas=" + metrics.written() + " descartadas=" + metrics.dropped());
+        }));
+    }
+
+    /**
+     * Escribe la cabecera del CSV si no existe o está vacía.
+     */
+    private static void writeServerCsvHeaderIfNeeded() {
+        File f = new File(csvPath);
+        if (f.exists() && f.length() > 0) return; // Ya existe y tiene datos
+        try (PrintWriter csv = new PrintWriter(new BufferedWriter(new FileWriter(csvPath, true)))) {
+            csv.println("type,seq,remote,client_send_ns,server_recv_ns,payload_bytes,server_proc_ms,payload_len,server_log_ns,queue_ms");
+        } catch (IOException e) {
+            AsyncLog.error("Error escribiendo cabecera CSV: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parseo seguro de long desde String, retorna valor por defecto si falla.
+     */
+    private static long safeParseLong(String s, long def) {
+        try { return Long.parseLong(s); } catch (Exception e) { return def; }
+    }
+
+    /**
+     * Parseo seguro de int desde String, retorna valor por defecto si falla.
+     */
+    private static int safeParseInt(String s, int def) {
+        try { return Integer.parseInt(s); } catch (Exception e) { return def; }
+    }
+
+    // ================== MODO BULK ==================
+    /**
+     * Recepción de un archivo completo anunciado con "BULK|bytes|zerocopy|stream".
+     * zerocopy escribe con FileChannel.transferFrom (el JDK mueve los datos sin pasar por
+     * arreglos del heap); stream es la copia clásica InputStream -> byte[] -> archivo.
+     * Mide el tiempo de recepción, la CPU del hilo que recibe y los GC del proceso.
+     */
+    private static class BulkTransfer implements Closeable {
+        private static final int CHUNK = 64 * 1024; // Bloque de la copia clásica
+        private static final AtomicLong ids = new AtomicLong(); // Numeración de transferencias
+
+        final long id;
+        final long size;
+        final boolean zeroCopy;
+        private final FileChannel file;
+        private final long startNs = System.nanoTime(); // Desde que se acepta el BULK (antes de READY)
+        private final long[] gc0 = gcTotals(); // GC del proceso al empezar
+        private long endNs;
+        private long received;
+        private long cpuNs; // CPU del hilo receptor (-1 si la JVM no la mide, p. ej. hilos virtuales)
+        Watchdog watch; // Progreso para los timeouts (transferFrom no pasa por el stream medido)
+        private ByteBuffer chunk; // Copia clásica en modo nio
+        private ByteBuffer probe; // Detección de fin de stream con transferFrom en modo nio
+
+        private BulkTransfer(long size, boolean zeroCopy) throws IOException {
+            this.id = ids.incrementAndGet();
+            this.size = size;
+            this.zeroCopy = zeroCopy;
+            if (bulkDir != null) {
+                Path path = Paths.get(bulkDir, "bulk-" + port + "-" + id + ".bin");
+                this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            } else {
+                Path path = Files.createTempFile("bulk-", ".bin");
+                this.file = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+        }
+
+        /**
+         * Interpreta "BULK|bytes|zerocopy|stream" y abre el archivo destino.
+         */
+        static BulkTransfer open(String msg) throws IOException {
+            String[] parts = msg.split("\\|");
+            long size = parts.length >= 3 ? safeParseLong(parts[1], -1L) : -1L;
+            if (size < 0 || !(parts[2].equals("zerocopy") || parts[2].equals("stream"))) {
+                throw new IOException("BULK malformado: " + msg);
+            }
+            return new BulkTransfer(size, parts[2].equals("zerocopy"));
+        }
+
+        /**
+         * Recepción bloqueante (modos thread/pool/virtual). 'in' solo se usa en la copia clásica.
+         */
+        void receive(SocketChannel ch, InputStream in) throws IOException {
+            long cpu0 = threadCpuNs();
+            if (zeroCopy) {
+                while (received < size) {
+                    long n = file.transferFrom(ch, received, size - received);
+                    if (n <= 0) throw truncated();
+                    received += n;
+                    if (watch != null) watch.onRead(n);
+                }
+            } else {
+                byte[] buf = new byte[CHUNK];
+                while (received < size) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, size - received));
+                    if (n < 0) throw truncated();
+                    ByteBuffer b = ByteBuffer.wrap(buf, 0, n);
+                    while (b.hasRemaining()) received += file.write(b, received);
+                }
+            }
+            endNs = System.nanoTime();
+            addCpu(cpu0);
+        }
+
+        /**
+         * Recepción no bloqueante (modo nio): consume lo disponible y retorna true al completar.
+         */
+        boolean step(SocketChannel ch) throws IOException {
+            long cpu0 = threadCpuNs();
+            long before = received;
+            if (zeroCopy) {
+                long n = file.transferFrom(ch, received, size - received);
+                if (n == 0) { // transferFrom no distingue "sin datos" de fin de stream
+                    if (probe == null) probe = ByteBuffer.allocate(1);
+                    probe.clear();
+                    if (ch.read(probe) < 0) throw truncated();
+                    probe.flip();
+                    while (probe.hasRemaining()) n += file.write(probe, received);
+                }
+                received += n;
+            } else {
+                if (chunk == null) chunk = ByteBuffer.allocate(CHUNK);
+                chunk.clear().limit((int) Math.min(CHUNK, size - received));
+                if (ch.read(chunk) < 0) throw truncated();
+                chunk.flip();
+                while (chunk.hasRemaining()) received += file.write(chunk, received);
+            }
+            addCpu(cpu0);
+            if (watch != null) watch.onRead(received - before);
+            if (received < size) return false;
+            endNs = System.nanoTime();
+            return true;
+        }
+
+        /**
+         * Registra la transferencia (contadores, CSV y log) y construye la respuesta DONE.
+         */
+        String finish(ConnectionStats conn) {
+            long[] gc = gcTotals();
+            bulkTransfers.increment();
+            bytesTotal.add(received);
+            writeServerCsv(id, "BLK", conn.remote, -1, startNs, startNs, endNs, 0, size, received);
+            double sec = (endNs - startNs) / 1e9;
+            AsyncLog.info(String.format(Locale.US, "[BULK] %s %d bytes (%s) en %.3f s, %.1f MB/s",
+                    conn.remote, received, zeroCopy ? "zerocopy" : "stream", sec, received / 1e6 / sec));
+            return "DONE|" + received + "|" + startNs + "|" + endNs + "|" + cpuNs
+                    + "|" + (gc[0] - gc0[0]) + "|" + (gc[1] - gc0[1]);
+        }
+
+        private void addCpu(long cpu0) {
+            long cpu1 = threadCpuNs();
+            cpuNs = (cpu0 < 0 || cpu1 < 0 || cpuNs < 0) ? -1 : cpuNs + (cpu1 - cpu0);
+        }
+
+        private EOFException truncated() {
+            return new EOFException("Conexión cerrada durante BULK (" + received + "/" + size + " bytes)");
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * CPU del hilo actual en ns, o -1 si la JVM no la soporta para este hilo.
+     */
+    private static long threadCpuNs() {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        return mx.isCurrentThreadCpuTimeSupported() ? mx.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * Colecciones y tiempo de GC acumulados del proceso: {cantidad, ms}.
+     */
+    private static long[] gcTotals() {
+        long count = 0, ms = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            ms += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] {count, ms};
+    }
+
+    // ================== MÉTRICAS EN VIVO ==================
+    /**
+     * Métricas de una conexión. La actualiza el hilo que atiende la conexión o, con
+     * --workers, los workers que procesan sus mensajes (record es synchronized, sin
+     * contención en el caso normal); el endpoint la lee con el mismo lock para no ver
+     * el histograma a medio actualizar. El histograma propio solo existe con --stats-port:
+     * sin endpoint quedan los contadores globales.
+     */
+    private static class ConnectionStats {
+        private static final long PROC_MAX_NS = 10_000_000_000L; // Techo del histograma de procesamiento (10 s)
+        private static final Set<ConnectionStats> OPEN = ConcurrentHashMap.newKeySet(); // Conexiones vivas
+        private static final LatencyHistogram CLOSED = newProcHist(); // Procesamiento de conexiones cerradas
+
+        final String remote;
+        final LatencyHistogram procHist = statsPort > 0 ? newProcHist() : null; // Tiempo de procesamiento (ns)
+        volatile long messages; // Se escribe solo dentro de record
+
+        private ConnectionStats(String remote) { this.remote = remote; }
+
+        static LatencyHistogram newProcHist() { return new LatencyHistogram(2, PROC_MAX_NS); }
+
+        static ConnectionStats open(String remote) {
+            ConnectionStats c = new ConnectionStats(remote);
+            OPEN.add(c);
+            return c;
+        }
+
+        /**
+         * Registra un mensaje procesado: contadores globales striped + histograma propio.
+         */
+        synchronized void record(int bytes, long procNs) {
+            messagesTotal.increment();
+            bytesTotal.add(bytes);
+            if (procHist != null) procHist.record(procNs);
+            messages++;
+        }
+
+        /**
+         * Saca la conexión del registro y conserva su histograma en el acumulado.
+         */
+        void close() {
+            if (!OPEN.remove(this) || procHist == null) return;
+            synchronized (CLOSED) { CLOSED.merge(procHist); }
+        }
+    }
+
+    private static volatile double msgRate, byteRate; // Calculadas por el muestreador cada segundo
+
+    /**
+     * Arranca el endpoint HTTP (/metrics en texto plano) y el hilo que calcula las tasas.
+     */
+    private static void startStatsEndpoint() {
+        Thread sampler = new Thread(() -> {
+            long lastMsgs = messagesTotal.sum(), lastBytes = bytesTotal.sum(), lastNs = System.nanoTime();
+            try {
+                while (true) {
+                    Thread.sleep(1000);
+                    long msgs = messagesTotal.sum(), bytes = bytesTotal.sum(), now = System.nanoTime();
+                    double sec = (now - lastNs) / 1e9;
+                    msgRate = (msgs - lastMsgs) / sec;
+                    byteRate = (bytes - lastBytes) / sec;
+                    lastMsgs = msgs;
+                    lastBytes = bytes;
+                    lastNs = now;
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }, "stats-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(statsPort), 0);
+            http.createContext("/", exchange -> {
+                int conns = STATS_CONNECTIONS; // ?conns=N: conexiones con línea propia
+                String query = exchange.getRequestURI().getQuery();
+                if (query != null && query.startsWith("conns=")) {
+                    try {
+                        conns = Math.max(0, Integer.parseInt(query.substring(6)));
+                    } catch (NumberFormatException ignored) {
+                        // Se deja el límite por defecto
+                    }
+                }
+                byte[] body = renderStats(conns).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) { os.write(body); }
+            });
+            http.start();
+            AsyncLog.info("Métricas en vivo: http://localhost:" + statsPort + "/metrics");
+        } catch (IOException e) {
+            AsyncLog.error("Error iniciando endpoint de métricas: " + e.getMessage());
+        }
+    }
+
+    private static final int STATS_CONNECTIONS = 100; // Conexiones con línea propia en /metrics por defecto
+
+    /**
+     * Texto con las métricas actuales (una por línea, formato "nombre valor"). El
+     * histograma global suma todas las conexiones; solo maxConns tienen línea propia.
+     */
+    private static String renderStats(int maxConns) {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("mode ").append(mode).append('\n');
+        sb.append("connections_active ").append(active.sum()).append('\n');
+        sb.append("connections_accepted ").append(accepted.sum()).append('\n');
+        sb.append("connections_rejected ").append(rejected.sum()).append('\n');
+        sb.append("connections_evicted_idle ").append(evictedIdle.sum()).append('\n');
+        sb.append("connections_evicted_read ").append(evictedRead.sum()).append('\n');
+        sb.append("connections_evicted_slow ").append(evictedSlow.sum()).append('\n');
+        sb.append("connections_evicted_write ").append(evictedWrite.sum()).append('\n');
+        sb.append("messages_inflight ").append(inFlight.get()).append('\n');
+        sb.append("messages_busy_inflight ").append(busyInflight.sum()).append('\n');
+        sb.append("messages_busy_codel ").append(busyCodel.sum()).append('\n');
+        sb.append("codel_dropping ").append(codel != null && codel.dropping() ? 1 : 0).append('\n');
+        sb.append("messages_total ").append(messagesTotal.sum()).append('\n');
+        sb.append("bytes_total ").append(bytesTotal.sum()).append('\n');
+        sb.append("bulk_transfers ").append(bulkTransfers.sum()).append('\n');
+        sb.append(String.format(Locale.US, "messages_per_sec %.1f%n", msgRate));
+        sb.append(String.format(Locale.US, "bytes_per_sec %.1f%n", byteRate));
+        sb.append("work ").append(workload).append(" workers=").append(workers).append('\n');
+        sb.append("work_queue_depth ").append(stage != null ? stage.depth() : 0).append('\n');
+        sb.append("metrics_queue_depth ").append(metrics.depth()).append('\n');
+        sb.append("metrics_dropped ").append(metrics.dropped()).append('\n');
+        sb.append("log_suppressed ").append(AsyncLog.suppressed()).append('\n');
+        sb.append("log_dropped ").append(AsyncLog.dropped()).append('\n');
+        LatencyHistogram all = ConnectionStats.newProcHist();
+        synchronized (ConnectionStats.CLOSED) { all.merge(ConnectionStats.CLOSED); }
+        StringBuilder perConn = new StringBuilder();
+        int listed = 0, omitted = 0;
+        for (ConnectionStats c : ConnectionStats.OPEN) {
+            if (c.procHist == null) continue;
+            synchronized (c) { // Mismo lock que record: histograma consistente
+                all.merge(c.procHist);
+                if (listed < maxConns) {
+                    perConn.append("connection ").append(c.remote).append(" messages=").append(c.messages)
+                           .append(" proc_us ").append(c.procHist.summaryUs()).append('\n');
+                    listed++;
+                } else {
+                    omitted++;
+                }
+            }
+        }
+        sb.append("proc_us ").append(all.summaryUs()).append('\n');
+        sb.append(perConn);
+        if (omitted > 0) sb.append("connections_omitted ").append(omitted).append('\n');
+        return sb.toString();
+    }
+
+    // ================== TIMEOUTS ==================
+    /**
+     * Vigila una conexión con la rueda de tiempos compartida. El hilo de la conexión solo
+     * actualiza campos volatile (último tráfico, inicio del mensaje en curso, bytes); la
+     * revisión corre en el hilo de la rueda cuando vence el plazo más cercano posible, y
+     * se vuelve a programar si la conexión sigue sana.
+     */
+    private static class Watchdog implements Runnable {
+        private final Consumer<String> evict; // Cierra la conexión (recibe el motivo)
+        private volatile long lastActivityNs = System.nanoTime(); // Último byte leído o escrito
+        private volatile long writeStallNs; // Desde cuándo hay respuestas sin poder salir (0 = nada pendiente)
+        private volatile long msgStartNs; // Primer byte del mensaje en curso (0 = entre mensajes)
+        private volatile long bytesIn; // Un solo escritor: el hilo lector de la conexión
+        volatile boolean bulk; // Recibiendo un archivo: no aplica --read-timeout
+        volatile String reason; // Motivo de la expulsión (null = conexión viva)
+        private long windowStartNs, windowBytes; // Ventana de --min-rate (solo el hilo de la rueda)
+        private TimingWheel.Timeout timeout;
+        private boolean stopped;
+
+        private Watchdog(Consumer<String> evict) { this.evict = evict; }
+
+        /**
+         * Crea y programa el vigilante de una conexión, o retorna null sin timeouts.
+         */
+        static Watchdog start(Consumer<String> evict) {
+            if (wheel == null) return null;
+            Watchdog w = new Watchdog(evict);
+            w.arm(Math.min(Math.min(positive(idleTimeoutMs), positive(readTimeoutMs)),
+                    Math.min(positive(writeTimeoutMs), minRate > 0 ? minRateWindowMs : Long.MAX_VALUE)));
+            return w;
+        }
+
+        private static long positive(long ms) { return ms > 0 ? ms : Long.MAX_VALUE; }
+
+        void onRead(long n) {
+            if (n <= 0) return;
+            long now = System.nanoTime();
+            bytesIn += n;
+            lastActivityNs = now;
+            if (msgStartNs == 0) msgStartNs = now;
+        }
+
+        /**
+         * Salieron bytes hacia el cliente: cuenta como actividad y reinicia --write-timeout.
+         */
+        void onWrite() {
+            lastActivityNs = System.nanoTime();
+            writeStallNs = 0;
+        }
+
+        /**
+         * Hay respuestas esperando salir (write en curso o bytes sin enviar); el plazo
+         * corre desde el primer aviso sin progreso.
+         */
+        void writePending() {
+            if (writeStallNs == 0) writeStallNs = System.nanoTime();
+        }
+
+        /**
+         * El mensaje en curso terminó de llegar (lo que sigue es tiempo del servidor).
+         */
+        void messageDone() { msgStartNs = 0; }
+
+        /**
+         * Envuelve el stream del socket para contar los bytes leídos.
+         */
+        InputStream meter(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) onRead(1);
+                    return b;
+                }
+
+                @Override public int read(byte[] buf, int off, int len) throws IOException {
+                    int n = super.read(buf, off, len);
+                    onRead(n);
+                    return n;
+                }
+            };
+        }
+
+        /**
+         * Revisión en el hilo de la rueda: expulsa o se reprograma para el próximo plazo.
+         */
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            long start = msgStartNs;
+            long nextMs = Long.MAX_VALUE;
+            String why = null;
+            if (idleTimeoutMs > 0) {
+                long left = idleTimeoutMs - (now - lastActivityNs) / 1_000_000L;
+                if (left <= 0) why = "idle"; else nextMs = left;
+            }
+            if (why == null && readTimeoutMs > 0) {
+                long left = (start != 0 && !bulk) ? readTimeoutMs - (now - start) / 1_000_000L : readTimeoutMs;
+                if (left <= 0) why = "read"; else nextMs = Math.min(nextMs, left);
+            }
+            if (why == null && minRate > 0) {
+                if (start == 0) {
+                    windowStartNs = 0; // Nada llegando: no hay tasa que medir
+                } else if (windowStartNs == 0 || windowStartNs < start) {
+                    windowStartNs = now; // Mensaje nuevo: la ventana empieza ahora
+                    windowBytes = bytesIn;
+                } else if (now - windowStartNs >= minRateWindowMs * 1_000_000L) {
+                    double rate = (bytesIn - windowBytes) * 1e9 / (now - windowStartNs);
+                    if (rate < minRate) {
+                        why = "slow";
+                    } else {
+                        windowStartNs = now;
+                        windowBytes = bytesIn;
+                    }
+                }
+                nextMs = Math.min(nextMs, minRateWindowMs);
+            }
+            if (why == null && writeTimeoutMs > 0) {
+                long stall = writeStallNs;
+                long left = stall != 0 ? writeTimeoutMs - (now - stall) / 1_000_000L : writeTimeoutMs;
+                if (left <= 0) why = "write"; else nextMs = Math.min(nextMs, left);
+            }
+            if (why != null) {
+                reason = why;
+                switch (why) {
+                    case "idle": evictedIdle.increment(); break;
+                    case "read": evictedRead.increment(); break;
+                    case "write": evictedWrite.increment(); break;
+                    default: evictedSlow.increment(); break;
+                }
+                evict.accept(why);
+                return;
+            }
+            arm(nextMs);
+        }
+
+        private synchronized void arm(long delayMs) {
+            if (!stopped) timeout = wheel.schedule(this, delayMs);
+        }
+
+        /**
+         * La conexión se cerró: no volver a revisarla.
+         */
+        synchronized void stop() {
+            stopped = true;
+            wheel.cancel(timeout);
+        }
     }
 
     // ================== HANDLER ==================
     /**
      * Clase interna que maneja una conexión de cliente en un hilo separado.
+     * Con --workers, los workers devuelven los mensajes procesados a una cola de la
+     * conexión y un hilo escritor propio envía los ACK, así un cliente que no lee solo
+     * bloquea a sus propios hilos. Las escrituras al stream de salida se hacen bajo outLock
+     * (un ReentrantLock: un hilo virtual que espera el lock no fija su carrier).
      */
-    private static class ClientHandler implements Runnable {
+    private static class ClientHandler implements Runnable, Responder {
+        private static final int REPLY_WINDOW = 256; // Mensajes de la conexión en la etapa o por escribir
         private final Socket socket; // Socket del cliente
+        private DataOutputStream out; // Stream de salida (hilo lector y escritor)
+        private final ReentrantLock outLock = new ReentrantLock();
+        private final BinaryFrame ackFrame = new BinaryFrame(0); // Solo escribe ACKs (el de lectura es del hilo lector)
+        private final BlockingQueue<Request> replies = new LinkedBlockingQueue<>(); // Procesados por los workers
+        private final Semaphore window = new Semaphore(REPLY_WINDOW); // Cupos de la conexión en la etapa
+        private Thread reader; // Hilo de la conexión (lee y responde lo que procesa en línea)
+        private Watchdog watch; // null = sin timeouts
         ClientHandler(Socket s) { this.socket = s; } // Constructor asigna socket
         @Override
         public void run() {
+            active.increment();
+            ConnectionStats conn = ConnectionStats.open(String.valueOf(socket.getRemoteSocketAddress()));
+            watch = Watchdog.start(reason -> {
+                try { socket.close(); } catch (IOException ignored) { } // Desbloquea la lectura del handler
+            });
+            Thread writer = null; // Con --workers: hilo escritor de la conexión
             try (Socket s = socket;
-                 DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream())); // Stream de entrada
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(
+                         watch != null ? watch.meter(s.getInputStream()) : s.getInputStream())); // Stream de entrada
                  DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) { // Stream de salida
 
-                writeServerCsvHeaderIfNeeded(); // Escribe cabecera CSV si no existe
+                this.out = out;
+                reader = Thread.currentThread();
+                // Escritor de plataforma: DataOutputStream escribe bajo synchronized y un hilo
+                // virtual bloqueado ahí fijaría su carrier
+                if (stage != null) writer = Thread.ofPlatform().daemon().name("conn-writer-" + conn.remote).start(this::writeLoop);
+                String remote = conn.remote;
 
                 // Bucle principal: leer mensaje, procesar, enviar ACK
                 while (true) {
@@ -136,99 +1374,541 @@ public class sockettcpser {
                     try {
                         msg = in.readUTF(); // Leer mensaje UTF desde cliente
                     } catch (EOFException eof) {
-                        System.out.println(ts() + " Cliente " + s.getRemoteSocketAddress() + " cerró conexión.");
+                        AsyncLog.info("Cliente " + remote + " cerró conexión.");
                         break;
                     }
                     if (msg == null) break; // Fin de stream
+                    if (watch != null) watch.messageDone();
                     if ("FIN".equals(msg)) { // Cliente envía FIN
-                        System.out.println(ts() + " FIN recibido de " + s.getRemoteSocketAddress());
+                        AsyncLog.info("FIN recibido de " + remote);
                         break;
                     }
-                    long recvNs = System.nanoTime(); // Timestamp de recepción
-                    String type = msg.length() >= 3 ? msg.substring(0, 3) : ""; // Tipo MSG/USR
-                    long seq = -1;
-                    if (type.equals("MSG") || type.equals("USR")) {
-                        String[] parts = msg.split("\\|", 5); // Separar mensaje en campos
-                        if (parts.length >= 5) {
-                            // parts: [0]=MSG/USR, [1]=seq, [2]=clientSendNs, [3]=payloadLen, [4]=payload
-                            seq = safeParseLong(parts[1], -1L); // Secuencia
-                            long clientSendNs = safeParseLong(parts[2], -1L); // Timestamp del cliente
-                            int payloadLen = safeParseInt(parts[3], -1); // Largo payload
-                            String payload = parts[4]; // Mensaje real
-                            // Simulación de procesamiento (puede incluir validación, checksum)
-                            long beforeProcNs = System.nanoTime(); // Antes procesamiento
-                            // ...processing...
-                            long afterProcNs = System.nanoTime(); // Después procesamiento
-                            // Registrar métricas en CSV
-                            writeServerCsv(seq, type, s.getRemoteSocketAddress().toString(), clientSendNs, recvNs, beforeProcNs, afterProcNs, payloadLen, payload);
-                            // Enviar ACK al cliente
-                            long sendNs = System.nanoTime();
-                            String ack = "ACK|" + seq + "|" + recvNs + "|" + sendNs;
-                            out.writeUTF(ack);
-                            out.flush();
-                            if (type.equals("USR")) {
-                                System.out.println(ts() + " [" + s.getRemoteSocketAddress() + "] " + "Mensaje #" + seq + ": " + payload);
+                    if (msg.startsWith("HELLO|")) { // Negociación de opciones de la conexión
+                        SessionOptions opts = SessionOptions.negotiate(msg);
+                        send(opts.reply());
+                        if (opts.binary) {
+                            runBinary(in, conn, opts.deflate); // El resto de la conexión usa frames binarios
+                            break;
+                        }
+                        continue;
+                    }
+                    if (msg.startsWith("BULK|")) { // Transferencia de archivo: sigue en bytes crudos tras READY
+                        if (in.available() > 0) throw new IOException("Datos recibidos antes de READY en BULK");
+                        try (BulkTransfer bulk = BulkTransfer.open(msg)) {
+                            send("READY");
+                            if (watch != null) watch.bulk = true;
+                            bulk.watch = watch;
+                            bulk.receive(s.getChannel(), in);
+                            if (watch != null) {
+                                watch.bulk = false;
+                                watch.messageDone();
                             }
-                        } else {
-                            System.out.println(ts() + " Mensaje malformado de " + s.getRemoteSocketAddress() + ": " + msg);
+                            send(bulk.finish(conn));
                         }
-                    } else {
-                        // Echo simple para compatibilidad con otros mensajes
-                        long sendNs = System.nanoTime();
-                        String ack = "ACK|0|" + recvNs + "|" + sendNs;
-                        out.writeUTF(ack);
-                        out.flush();
-                        System.out.println(ts() + " [RAW] " + msg);
+                        continue;
                     }
+                    String ack = handleMessage(msg, conn, this); // MSG/USR responden desde la etapa de procesamiento
+                    if (ack != null) send(ack);
                 }
+                if (writer != null) window.acquireUninterruptibly(REPLY_WINDOW); // Esperar los ACK que faltan antes de cerrar
             } catch (IOException e) {
-                System.err.println("Error con cliente " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+                if (watch != null && watch.reason != null) {
+                    AsyncLog.info("Conexión " + conn.remote + " expulsada por timeout (" + watch.reason + ")");
+                } else {
+                    AsyncLog.error("Error con cliente " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+                }
+            } finally {
+                if (writer != null) writer.interrupt();
+                if (watch != null) watch.stop();
+                conn.close();
+                active.decrement();
+                admitted.decrementAndGet();
             }
         }
+
         /**
-         * Escribe una fila de métricas en el CSV del servidor.
+         * Hilo escritor (con --workers): envía los ACK que devuelven los workers, con un
+         * flush por lote. Si el socket falla cierra la conexión y sigue liberando cupos
+         * para que el hilo lector no quede esperando.
          */
-        private void writeServerCsv(long seq, String type, String remote, long clientSendNs, long serverRecvNs,
-                                    long beforeProcNs, long afterProcNs, int payloadLen, String payload) {
-            long procNs = afterProcNs - beforeProcNs; // Tiempo de procesamiento
-            int bytes = payload.getBytes(StandardCharsets.UTF_8).length; // Tamaño real del payload
-            synchronized (CSV_LOCK) { // Lock para evitar concurrencia
-                try (PrintWriter csv = new PrintWriter(new BufferedWriter(new FileWriter(csvPath, true)))) {
-                    csv.printf(Locale.US,
-                            "%s,%d,%s,%d,%d,%d,%.6f,%d,%d%n",
-                            type, seq, remote, clientSendNs, serverRecvNs, bytes,
-                            procNs / 1_000_000.0, payloadLen, System.nanoTime());
-                } catch (IOException e) {
-                    System.err.println("Error escribiendo CSV: " + e.getMessage());
+        private void writeLoop() {
+            boolean failed = false;
+            try {
+                while (true) {
+                    Request r = replies.take();
+                    try {
+                        if (!failed) failed = !writeReply(r);
+                    } catch (IOException e) {
+                        failed = true;
+                        try { socket.close(); } catch (IOException ignored) { } // Termina también al hilo lector
+                    } finally {
+                        window.release();
+                    }
+                }
+            } catch (InterruptedException ie) {
+                // La conexión terminó
+            }
+        }
+
+        /**
+         * Escribe el ACK de r (flush solo si no hay más en cola). Retorna false si el
+         * worker falló, en cuyo caso cierra la conexión (el hilo lector termina con la
+         * excepción del socket).
+         */
+        private boolean writeReply(Request r) throws IOException {
+            if (r.error != null) {
+                AsyncLog.error("Error procesando mensaje de " + r.conn.remote + ": " + r.error.getMessage());
+                socket.close();
+                return false;
+            }
+            outLock.lock();
+            try {
+                if (watch != null) watch.writePending(); // El write puede bloquear si el cliente no lee
+                if (r.binary) {
+                    ackFrame.write(out, r.busy ? BinaryFrame.BUSY : BinaryFrame.ACK, r.seq, r.recvNs, System.nanoTime(), null);
+                } else {
+                    out.writeUTF((r.busy ? "BUSY|" : "ACK|") + r.seq + "|" + r.recvNs + "|" + System.nanoTime());
                 }
+                if (replies.isEmpty()) out.flush();
+                if (watch != null) watch.onWrite(); // Bajo el lock: no borra la espera de otro write
+            } finally {
+                outLock.unlock();
+            }
+            return true;
+        }
+
+        /**
+         * Bucle de la conexión en framing binario: un BinaryFrame reutilizado para leer
+         * cada mensaje (los ACK usan ackFrame). Con deflate los payloads llegan comprimidos.
+         */
+        private void runBinary(DataInputStream in, ConnectionStats conn, boolean deflate) throws IOException {
+            String remote = conn.remote;
+            BinaryFrame frame = new BinaryFrame(maxFrame);
+            while (frame.read(in)) {
+                long recvNs = System.nanoTime(); // Timestamp de recepción
+                if (watch != null) watch.messageDone();
+                if (frame.type == BinaryFrame.FIN) { // Cliente envía FIN
+                    AsyncLog.info("FIN recibido de " + remote);
+                    return;
+                }
+                handleBinary(frame, recvNs, conn, deflate, this);
+            }
+            AsyncLog.info("Cliente " + remote + " cerró conexión.");
+        }
+
+        /**
+         * Envía un mensaje de control (HELLO, READY, DONE, ACK de RAW).
+         */
+        private void send(String msg) throws IOException {
+            outLock.lock();
+            try {
+                if (watch != null) watch.writePending();
+                out.writeUTF(msg);
+                out.flush();
+                if (watch != null) watch.onWrite();
+            } finally {
+                outLock.unlock();
+            }
+        }
+
+        /**
+         * En el hilo lector (procesamiento en línea o BUSY por --max-inflight) el ACK se
+         * escribe de inmediato; desde un worker se entrega al hilo escritor.
+         */
+        @Override
+        public void ack(Request r) throws IOException {
+            if (Thread.currentThread() == reader) {
+                writeReply(r);
+            } else {
+                replies.add(r);
             }
         }
+
         /**
-         * Escribe la cabecera del CSV si no existe o está vacía.
+         * Toma un cupo de la conexión antes de encolar: si el cliente no lee sus ACK, el
+         * hilo lector se detiene aquí en lugar de llenar la cola compartida.
          */
-        private void writeServerCsvHeaderIfNeeded() {
-            File f = new File(csvPath);
-            if (f.exists() && f.length() > 0) return; // Ya existe y tiene datos
-            synchronized (CSV_LOCK) {
-                try (PrintWriter csv = new PrintWriter(new BufferedWriter(new FileWriter(csvPath, true)))) {
-                    csv.println("type,seq,remote,client_send_ns,server_recv_ns,payload_bytes,server_proc_ms,payload_len,server_log_ns");
+        @Override
+        public void enterStage(Request r) throws IOException {
+            try {
+                window.acquire();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrumpido esperando cupo de la conexión");
+            }
+        }
+    }
+
+    // ================== MODO NIO ==================
+    /**
+     * Servidor no bloqueante: el hilo principal acepta conexiones y las reparte
+     * (round-robin) entre nioLoops event loops, cada uno con su propio Selector.
+     * Se mantiene el mismo framing de writeUTF/readUTF (2 bytes de largo + UTF-8 modificado).
+     */
+    private static void runNio() {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), backlog);
+            EventLoop[] loops = new EventLoop[nioLoops];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i);
+                Thread t = new Thread(loops[i], "nio-loop-" + i);
+                t.start();
+            }
+            AsyncLog.info("Servidor NIO escuchando en puerto " + port + " (" + nioLoops + " event loops)");
+            int next = 0;
+            // Bucle de aceptación: el accept bloqueante no compite con los selectores
+            while (true) {
+                SocketChannel ch = server.accept();
+                accepted.increment();
+                if (!admitConnection(ch.socket())) continue; // Sobre --max-conns: BUSY y cerrada
+                configureSocket(ch.socket()); // Mismas opciones TCP que el modo thread
+                ch.configureBlocking(false);
+                AsyncLog.info("Conexión de " + ch.getRemoteAddress());
+                loops[next].register(ch);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            AsyncLog.error("Error servidor: " + e.getMessage()); // Manejo de errores
+        }
+    }
+
+    /**
+     * Event loop con Selector propio. Las conexiones nuevas llegan por una cola
+     * concurrente y se registran dentro del hilo del loop (evita bloquear en register).
+     * Los mensajes procesados por workers vuelven por otra cola y el loop escribe su ACK.
+     */
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>(); // Conexiones por registrar
+        private final Queue<Request> completed = new ConcurrentLinkedQueue<>(); // ACKs listos desde los workers
+        private final Queue<NioConnection> evicted = new ConcurrentLinkedQueue<>(); // Expulsadas por la rueda de tiempos
+        private final int id;
+        private volatile Thread thread; // Hilo del loop
+
+        EventLoop(int id) throws IOException {
+            this.id = id;
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Encola un canal aceptado y despierta al selector para que lo registre.
+         */
+        void register(SocketChannel ch) {
+            pending.add(ch);
+            selector.wakeup();
+        }
+
+        /**
+         * Entrega un mensaje procesado por un worker para que el loop envíe su ACK.
+         */
+        void complete(Request r) {
+            completed.add(r);
+            selector.wakeup();
+        }
+
+        /**
+         * La rueda de tiempos pide cerrar una conexión; el cierre ocurre en el hilo del loop.
+         */
+        void evict(NioConnection c) {
+            evicted.add(c);
+            selector.wakeup();
+        }
+
+        boolean inLoop() { return Thread.currentThread() == thread; }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    selector.select();
+                    SocketChannel ch;
+                    while ((ch = pending.poll()) != null) {
+                        NioConnection c = new NioConnection(ch, this);
+                        c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                        active.increment();
+                    }
+                    NioConnection gone;
+                    while ((gone = evicted.poll()) != null) {
+                        if (!gone.channel.isOpen()) continue;
+                        AsyncLog.info("Conexión " + gone.remote + " expulsada por timeout (" + gone.watch.reason + ")");
+                        gone.close(gone.key);
+                    }
+                    Request r;
+                    while ((r = completed.poll()) != null) {
+                        NioConnection c = (NioConnection) r.responder;
+                        if (!c.channel.isOpen()) continue; // Se cerró mientras el mensaje estaba en la cola
+                        try {
+                            c.writeAck(r);
+                            c.flush(c.key);
+                        } catch (IOException e) {
+                            AsyncLog.error("Error con cliente " + c.remote + ": " + e.getMessage());
+                            c.close(c.key);
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) conn.onWritable(key);
+                            if (key.isValid() && key.isReadable()) conn.onReadable(key);
+                        } catch (IOException e) {
+                            AsyncLog.error("Error con cliente " + conn.remote + ": " + e.getMessage());
+                            conn.close(key);
+                        }
+                    }
                 } catch (IOException e) {
-                    System.err.println("Error escribiendo cabecera CSV: " + e.getMessage());
+                    AsyncLog.error("Error en event loop " + id + ": " + e.getMessage());
                 }
             }
         }
+    }
+
+    /**
+     * Estado de una conexión en modo nio: buffer de entrada con frames parciales
+     * y buffer de salida con ACKs pendientes cuando el socket no acepta más datos.
+     * Todo se modifica en el hilo del loop; los workers solo devuelven Requests.
+     * Si el cliente no lee sus ACKs y out pasa OUT_HIGH_WATER, se deja de leer hasta
+     * que baje de OUT_LOW_WATER (la contrapresión que en los modos bloqueantes da write).
+     */
+    private static class NioConnection implements Responder {
+        private static final int OUT_HIGH_WATER = 256 * 1024; // Bytes pendientes que suspenden la lectura
+        private static final int OUT_LOW_WATER = 64 * 1024; // Bytes pendientes que la reanudan
+        private static final int IN_SIZE = 4096; // Buffer de entrada fuera de frames grandes
+        private final SocketChannel channel;
+        private final String remote;
+        private final ConnectionStats stats;
+        private final EventLoop loop;
+        private SelectionKey key;
+        private BinaryFrame frame; // No nulo cuando se negoció framing binario
+        private boolean deflate; // Payloads comprimidos (codec=deflate)
+        private BulkTransfer bulk; // No nulo mientras se recibe un archivo (modo bulk)
+        private final Watchdog watch; // null = sin timeouts
+        private ByteBuffer in = ByteBuffer.allocate(IN_SIZE);
+        private ByteBuffer out = ByteBuffer.allocate(4096);
+        private boolean closing; // FIN recibido: no se lee más y se cierra cuando out quede vacío
+        private boolean throttled; // out sobre OUT_HIGH_WATER: lectura suspendida
+
+        NioConnection(SocketChannel ch, EventLoop loop) throws IOException {
+            this.channel = ch;
+            this.loop = loop;
+            this.remote = ch.getRemoteAddress().toString();
+            this.stats = ConnectionStats.open(remote);
+            this.watch = Watchdog.start(reason -> loop.evict(this));
+        }
+
         /**
-         * Parseo seguro de long desde String, retorna valor por defecto si falla.
+         * Lee lo disponible, procesa todos los frames completos y deja el resto en el buffer.
          */
-        private long safeParseLong(String s, long def) {
-            try { return Long.parseLong(s); } catch (Exception e) { return def; }
+        void onReadable(SelectionKey key) throws IOException {
+            if (closing || throttled) return; // Solo falta vaciar out (FIN o contrapresión)
+            if (bulk != null) { // Bytes crudos del archivo: no pasan por el buffer de frames
+                if (!bulk.step(channel)) return;
+                enqueue(bulk.finish(stats));
+                bulk.close();
+                bulk = null;
+                if (watch != null) {
+                    watch.bulk = false;
+                    watch.messageDone();
+                }
+                flush(key);
+                return;
+            }
+            int n = channel.read(in);
+            if (n < 0) {
+                AsyncLog.info("Cliente " + remote + " cerró conexión.");
+                close(key);
+                return;
+            }
+            if (watch != null) watch.onRead(n);
+            in.flip();
+            int need;
+            while (in.remaining() >= (need = nextFrameSize())) {
+                if (frame != null) {
+                    long recvNs = System.nanoTime(); // Timestamp de recepción
+                    // Solo USR necesita el texto, salvo que haya que descomprimir o el workload lo lea
+                    frame.decode(in, needsBody(in.get(in.position()), deflate));
+                    if (frame.type == BinaryFrame.FIN) { // Cliente envía FIN
+                        AsyncLog.info("FIN recibido de " + remote);
+                        closing = true;
+                        flush(key); // Cierra cuando se hayan enviado los ACK pendientes
+                        return;
+                    }
+                    handleBinary(frame, recvNs, stats, deflate, this);
+                    continue;
+                }
+                String msg = decodeUtf(in, need - 2);
+                if ("FIN".equals(msg)) { // Cliente envía FIN
+                    AsyncLog.info("FIN recibido de " + remote);
+                    closing = true;
+                    flush(key); // Cierra cuando se hayan enviado los ACK pendientes
+                    return;
+                }
+                if (msg.startsWith("HELLO|")) { // Negociación de opciones de la conexión
+                    SessionOptions opts = SessionOptions.negotiate(msg);
+                    enqueue(opts.reply());
+                    if (opts.binary) frame = new BinaryFrame(maxFrame);
+                    deflate = opts.deflate;
+                    continue;
+                }
+                if (msg.startsWith("BULK|")) { // Transferencia de archivo: sigue en bytes crudos tras READY
+                    if (in.hasRemaining()) throw new IOException("Datos recibidos antes de READY en BULK");
+                    bulk = BulkTransfer.open(msg);
+                    bulk.watch = watch;
+                    if (watch != null) {
+                        watch.bulk = true;
+                        watch.messageDone(); // El archivo empieza a contar cuando llegue su primer byte
+                    }
+                    enqueue("READY");
+                    break;
+                }
+                String ack = handleMessage(msg, stats, this);
+                if (ack != null) enqueue(ack);
+            }
+            in.compact();
+            if (watch != null && in.position() == 0) watch.messageDone(); // Sin frame parcial pendiente
+            // Un frame grande agranda el buffer al ritmo en que llegan sus bytes (duplicando
+            // hasta su tamaño), y al consumirlo se vuelve al buffer normal
+            if (need > in.capacity() && !in.hasRemaining()) {
+                resizeIn(Math.min(in.capacity() * 2, need));
+            } else if (in.capacity() > IN_SIZE && in.position() <= IN_SIZE) {
+                resizeIn(IN_SIZE);
+            }
+            flush(key);
+        }
+
+        /**
+         * Reemplaza el buffer de entrada (en modo escritura) por uno de otra capacidad.
+         */
+        private void resizeIn(int capacity) {
+            ByteBuffer resized = ByteBuffer.allocate(capacity);
+            in.flip();
+            resized.put(in);
+            in = resized;
+        }
+
+        /**
+         * Tamaño del siguiente frame según el framing actual (o de su cabecera si aún no llega).
+         */
+        private int nextFrameSize() throws IOException {
+            if (frame != null) return frame.peekFrameSize(in);
+            if (in.remaining() < 2) return 2;
+            return 2 + (in.getShort(in.position()) & 0xFFFF); // Largo del frame UTF
+        }
+
+        /**
+         * En línea el ACK queda en el buffer de salida (onReadable hace flush al final);
+         * desde un worker se entrega al loop.
+         */
+        @Override
+        public void ack(Request r) throws IOException {
+            if (loop.inLoop()) {
+                writeAck(r);
+            } else {
+                loop.complete(r);
+            }
+        }
+
+        /**
+         * Agrega el ACK de un Request al buffer de salida (solo en el hilo del loop).
+         */
+        void writeAck(Request r) throws IOException {
+            if (r.error != null) throw r.error;
+            if (r.binary) {
+                reserve(BinaryFrame.HEADER);
+                BinaryFrame.putReply(out, r.busy ? BinaryFrame.BUSY : BinaryFrame.ACK, r.seq, r.recvNs, System.nanoTime());
+            } else {
+                enqueue((r.busy ? "BUSY|" : "ACK|") + r.seq + "|" + r.recvNs + "|" + System.nanoTime());
+            }
         }
+
+        /**
+         * El socket vuelve a aceptar datos: enviar lo pendiente.
+         */
+        void onWritable(SelectionKey key) throws IOException {
+            flush(key);
+        }
+
         /**
-         * Parseo seguro de int desde String, retorna valor por defecto si falla.
+         * Copia un ACK codificado como writeUTF al buffer de salida.
          */
-        private int safeParseInt(String s, int def) {
-            try { return Integer.parseInt(s); } catch (Exception e) { return def; }
+        private void enqueue(String ack) throws IOException {
+            byte[] utf = encodeUtf(ack);
+            reserve(utf.length);
+            out.put(utf);
+        }
+
+        /**
+         * Garantiza espacio en el buffer de salida para n bytes más.
+         */
+        private void reserve(int n) {
+            if (out.remaining() < n) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + n));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+        }
+
+        /**
+         * Escribe lo que se pueda sin bloquear; si queda algo, espera OP_WRITE. Suspende
+         * la lectura mientras out esté sobre la marca alta y, tras un FIN, cierra la
+         * conexión en cuanto out queda vacío.
+         */
+        private void flush(SelectionKey key) throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                if (channel.write(out) == 0) break; // Buffer del socket lleno
+            }
+            boolean pendingData = out.hasRemaining();
+            if (watch != null) {
+                if (out.position() > 0) watch.onWrite();
+                if (pendingData) watch.writePending(); // Sin progreso desde aquí: corre --write-timeout
+            }
+            out.compact();
+            if (closing && !pendingData) {
+                close(key);
+                return;
+            }
+            if (out.position() > OUT_HIGH_WATER) throttled = true;
+            else if (out.position() < OUT_LOW_WATER) throttled = false;
+            if (key.isValid()) {
+                int read = closing || throttled ? 0 : SelectionKey.OP_READ;
+                key.interestOps(pendingData ? read | SelectionKey.OP_WRITE : read);
+            }
+        }
+
+        void close(SelectionKey key) {
+            if (!channel.isOpen()) return; // Ya cerrada
+            key.cancel();
+            stats.close();
+            if (watch != null) watch.stop();
+            if (bulk != null) {
+                try { bulk.close(); } catch (IOException ignored) { }
+            }
+            active.decrement();
+            admitted.decrementAndGet();
+            try { channel.close(); } catch (IOException ignored) { }
         }
     }
-}
 
+    /**
+     * Decodifica un frame writeUTF (largo ya verificado) avanzando la posición del buffer.
+     */
+    private static String decodeUtf(ByteBuffer buf, int len) throws IOException {
+        byte[] frame = new byte[2 + len];
+        buf.get(frame);
+        return DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(frame)));
+    }
+
+    /**
+     * Codifica un String con el mismo formato que DataOutputStream.writeUTF.
+     */
+    private static byte[] encodeUtf(String s) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(2 + s.length());
+        new DataOutputStream(bos).writeUTF(s);
+        return bos.toByteArray();
+    }
+}
@@ -6,10 +6,17 @@
      Tema: Laboratorio de Sockets
 ****************************************************************/
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 
 /**
@@ -19,6 +26,28 @@ import java.util.*;
  *
  * Usage:
  *   java socketudpcli_enhanced -h 127.0.0.1 -p 6002 -n 100 -size 1024 -interval 5 -csv udp_client_metrics.csv --timeout 2000
+ *
+ * Each message carries payloadSize real bytes: "MSG|seq|sendNs|payloadSize|<payload>". A
+ * message that does not fit in one datagram of --mtu bytes (1500 by default, minus the
+ * 28 bytes of IPv4 and UDP headers) is sent as FRG fragments that the server reassembles
+ * before answering (see DatagramFragments); --mtu 0 sends every message in one datagram.
+ * RTT, jitter and throughput are computed in nanoseconds and written with microsecond
+ * precision or better, like tcp_client_metrics.csv.
+ *
+ * At the end of the run the RTT percentiles (p50/p90/p99/p99.9/max) are printed from a
+ * LatencyHistogram; --hist file saves it so it can be merged with other runs.
+ *
+ * Windowed mode (--window N): one thread sends and another receives, with up to N
+ * messages without ACK. ACKs are matched by seq; a message is lost when --timeout
+ * expires, and an ACK that arrives later is counted as late, not as lost:
+ *   java socketudpcli -h 127.0.0.1 -p 6002 -n 100000 -size 512 -interval 0 --window 64 -csv udp_client_window.csv
+ *
+ * Bulk mode (--bulk file): sends the whole file -n times (default 1) with ReliableUdp,
+ * which adds sequence numbers, selective ACKs, retransmission with an RTO derived from
+ * the RTT variance and an AIMD congestion window. The CSV has one row per transfer
+ * (goodput, retransmission rate, timeouts, window); --series file samples the window,
+ * RTT and goodput every --series-ms ms:
+ *   java socketudpcli -h 127.0.0.1 -p 6002 --bulk bloque.bin -n 5 -csv udp_bulk.csv --series udp_bulk_series.csv
  */
 public class socketudpcli {
 
@@ -31,6 +60,17 @@ public class socketudpcli {
         int interval = 100; // Intervalo entre mensajes (ms)
         int timeout = 2000; // Timeout de recepción (ms)
         String csvFile = "udp_client_metrics.csv"; // Archivo CSV para métricas
+        int histDigits = 2; // Dígitos significativos del histograma de RTT
+        String histPath = null; // Archivo .hist opcional
+        int window = 0; // Datagramas sin ACK en modo ventana (0 = stop-and-wait clásico)
+        int linger = -1; // Espera final por ACK tardíos en modo ventana (ms, -1 = --timeout)
+        int mtu = 1500; // MTU para fragmentar mensajes grandes (0 = un datagrama por mensaje)
+        String bulkPath = null; // Archivo a transferir con ReliableUdp (null => mensajes)
+        int segment = 0; // Bytes de archivo por DAT (0 = lo que quepa en la MTU)
+        int cwndInit = 10; // Ventana de congestión inicial (segmentos)
+        long rtoMinMs = 200; // RTO mínimo (ms)
+        String seriesPath = null; // Serie temporal de la ventana (modo bulk)
+        long seriesMs = 100; // Intervalo de la serie (ms)
 
         // Parsear argumentos de línea de comando para sobrescribir valores por defecto
         for (int i = 0; i < args.length; i++) {
@@ -42,64 +82,110 @@ public class socketudpcli {
                 case "-interval": interval = Integer.parseInt(args[++i]); break; // Intervalo entre mensajes
                 case "--timeout": timeout = Integer.parseInt(args[++i]); break; // Timeout recepción
                 case "-csv": csvFile = args[++i]; break; // Archivo CSV
+                case "--hist-digits": histDigits = Integer.parseInt(args[++i]); break; // Precisión del histograma
+                case "--hist": histPath = args[++i]; break; // Guardar histograma de RTT
+                case "--window": window = Integer.parseInt(args[++i]); break; // Envío y recepción en hilos separados
+                case "--linger": linger = Integer.parseInt(args[++i]); break; // Espera por ACK tardíos al final
+                case "--mtu": mtu = Integer.parseInt(args[++i]); break; // Fragmentar sobre esta MTU
+                case "--bulk": bulkPath = args[++i]; break; // Transferencia confiable de un archivo
+                case "--segment": segment = Integer.parseInt(args[++i]); break; // Tamaño de segmento (modo bulk)
+                case "--cwnd-init": cwndInit = Integer.parseInt(args[++i]); break; // Ventana inicial (modo bulk)
+                case "--rto-min": rtoMinMs = Long.parseLong(args[++i]); break; // RTO mínimo (modo bulk)
+                case "--series": seriesPath = args[++i]; break; // Serie temporal (modo bulk)
+                case "--series-ms": seriesMs = Long.parseLong(args[++i]); break; // Intervalo de la serie
+            }
+        }
+
+        if (bulkPath != null) {
+            int seg = segment > 0 ? segment : DatagramFragments.maxDatagram(mtu) - ReliableUdp.MAX_HEADER;
+            runBulk(host, port, bulkPath, Math.max(1, iterations), seg, cwndInit, rtoMinMs, csvFile, seriesPath, seriesMs);
+            return;
+        }
+
+        byte[] payload = new byte[payloadSize]; // Array de bytes para payload
+        Arrays.fill(payload, (byte) 'A'); // Llenar payload con el carácter 'A'
+        int maxDatagram = DatagramFragments.maxDatagram(mtu); // Bytes de aplicación por datagrama
+        if (mtu <= 0 && payloadSize + 64 > maxDatagram) {
+            throw new IllegalArgumentException("-size no cabe en un datagrama; use --mtu para fragmentar");
+        }
+        int perMessage = DatagramFragments.encode(iterations, System.nanoTime(), payload, maxDatagram).size();
+
+        if (window > 0) {
+            WindowedRun run = new WindowedRun(InetAddress.getByName(host), port, iterations, payload, maxDatagram, interval,
+                    timeout, window, linger < 0 ? timeout : linger, new LatencyHistogram(histDigits));
+            run.execute(csvFile);
+            System.out.println("Métricas guardadas en " + csvFile);
+            run.printSummary();
+            if (perMessage > 1) System.out.println("Fragmentos por mensaje: " + perMessage + " (MTU " + mtu + ")");
+            if (histPath != null) {
+                run.rttHist.save(histPath);
+                System.out.println("Histograma guardado en: " + histPath);
             }
+            return;
         }
 
         DatagramSocket socket = new DatagramSocket(); // Crear socket UDP
-        socket.setSoTimeout(timeout); // Establecer timeout para recepción
+        InetAddress address = InetAddress.getByName(host); // Dirección del servidor
 
         PrintWriter csv = new PrintWriter(new FileWriter(csvFile)); // Crear archivo CSV
         csv.println("seq,payload_bytes,client_send_ns,client_recv_ns,rtt_ms,throughput_bps,lost,jitter_ms"); // Cabecera CSV
 
-        byte[] payload = new byte[payloadSize]; // Array de bytes para payload
-        Arrays.fill(payload, (byte) 'A'); // Llenar payload con el carácter 'A'
-
-        long prevRTT = -1; // Variable para calcular jitter (RTT anterior)
+        long prevRttNs = -1; // Variable para calcular jitter (RTT anterior, ns)
+        LatencyHistogram rttHist = new LatencyHistogram(histDigits); // RTT en ns para percentiles
+        int lostCount = 0; // Mensajes perdidos (timeout)
+        int staleAcks = 0; // ACK de mensajes anteriores que llegaron después de su timeout
+        byte[] recvBuf = new byte[1024]; // Buffer para recibir respuesta
 
         // Bucle principal de prueba: enviar, recibir, medir
         for (int seq = 1; seq <= iterations; seq++) {
             long sendTime = System.nanoTime(); // Timestamp de envío en nanosegundos
-            String msg = "MSG|" + seq + "|" + sendTime + "|" + payloadSize; // Formato de mensaje
-            byte[] buf = msg.getBytes(StandardCharsets.UTF_8); // Convertir mensaje a bytes UTF-8
-            DatagramPacket packet = new DatagramPacket(buf, buf.length, InetAddress.getByName(host), port); // Crear paquete UDP
-
-            socket.send(packet); // Enviar paquete al servidor
+            for (byte[] buf : DatagramFragments.encode(seq, sendTime, payload, maxDatagram)) { // MSG o sus fragmentos
+                socket.send(new DatagramPacket(buf, buf.length, address, port)); // Enviar paquete al servidor
+            }
 
             boolean lost = false; // Indicador de pérdida
             long recvTime = -1; // Timestamp de recepción
-            long rtt = -1; // Round Trip Time
+            long rttNs = -1; // Round Trip Time (ns)
             double throughput = 0; // Throughput en bits/s
-            double jitter = 0; // Jitter en ms
+            String jitter = ""; // Jitter en ms (vacío en el primero y en los perdidos)
 
             try {
-                byte[] recvBuf = new byte[1024]; // Buffer para recibir respuesta
-                DatagramPacket resp = new DatagramPacket(recvBuf, recvBuf.length); // Paquete de respuesta
-                socket.receive(resp); // Esperar respuesta del servidor
-                recvTime = System.nanoTime(); // Timestamp de recepción
-
-                String ack = new String(resp.getData(), 0, resp.getLength(), StandardCharsets.UTF_8); // Convertir bytes recibidos a String
-                long endTime = System.nanoTime(); // Timestamp final para RTT
-                rtt = (endTime - sendTime) / 1_000_000; // Calcular RTT en milisegundos
-
-                if (rtt > 0) {
-                    throughput = (payloadSize * 8.0) / (rtt / 1000.0); // Calcular throughput en bits/s
+                String ack;
+                long deadline = sendTime + timeout * 1_000_000L;
+                while (true) { // Descartar ACK atrasados de mensajes anteriores
+                    long left = (deadline - System.nanoTime()) / 1_000_000;
+                    if (left <= 0) throw new SocketTimeoutException();
+                    socket.setSoTimeout((int) left); // Timeout de recepción restante
+                    DatagramPacket resp = new DatagramPacket(recvBuf, recvBuf.length); // Paquete de respuesta
+                    socket.receive(resp); // Esperar respuesta del servidor
+                    recvTime = System.nanoTime(); // Timestamp de recepción
+                    ack = new String(resp.getData(), 0, resp.getLength(), StandardCharsets.UTF_8); // Convertir bytes recibidos a String
+                    if (ack.startsWith("ACK|" + seq + "|")) break;
+                    staleAcks++;
                 }
-                if (prevRTT != -1) {
-                    jitter = Math.abs(rtt - prevRTT); // Calcular jitter
+
+                rttNs = recvTime - sendTime; // RTT con resolución de ns
+                rttHist.record(rttNs);
+                throughput = (payloadSize * 8.0) / (rttNs / 1_000_000_000.0); // Calcular throughput en bits/s
+                if (prevRttNs != -1) {
+                    jitter = String.format(Locale.US, "%.6f", Math.abs(rttNs - prevRttNs) / 1_000_000.0); // Calcular jitter
                 }
-                prevRTT = rtt; // Guardar RTT actual para la siguiente iteración
+                prevRttNs = rttNs; // Guardar RTT actual para la siguiente iteración
 
                 // Imprimir métricas en consola para cada mensaje
-                System.out.println("ACK recibido: " + ack + " | RTT=" + rtt + " ms | Thr=" + throughput + " bps | Jitter=" + jitter + " ms");
+                System.out.printf(Locale.US, "ACK recibido: %s | RTT=%.3f ms | Thr=%.0f bps | Jitter=%s ms%n",
+                        ack, rttNs / 1_000_000.0, throughput, jitter.isEmpty() ? "-" : jitter);
 
             } catch (SocketTimeoutException e) {
                 lost = true; // Si se produce timeout, el paquete se considera perdido
+                lostCount++;
                 System.out.println("Mensaje " + seq + " PERDIDO (timeout)");
             }
 
             // Escribir métricas en CSV
-            csv.printf(Locale.US, "%d,%d,%d,%d,%d,%.2f,%b,%.2f%n",
-                       seq, payloadSize, sendTime, recvTime, rtt, throughput, lost, (prevRTT == -1 ? 0.0 : (double) Math.abs(rtt - prevRTT)));
+            csv.printf(Locale.US, "%d,%d,%d,%d,%s,%.2f,%b,%s%n",
+                       seq, payloadSize, sendTime, recvTime, lost ? "-1" : String.format(Locale.US, "%.6f", rttNs / 1_000_000.0),
+                       throughput, lost, jitter);
 
             Thread.sleep(interval); // Esperar intervalo antes de enviar siguiente mensaje
         }
@@ -107,5 +193,255 @@ public class socketudpcli {
         csv.close(); // Cerrar archivo CSV
         socket.close(); // Cerrar socket UDP
         System.out.println("Métricas guardadas en " + csvFile); // Mensaje final indicando ubicación de métricas
+
+        // Resumen de percentiles de RTT
+        System.out.println("\n=== RESUMEN ===");
+        System.out.println("RTT (ms): " + rttHist.summaryMs());
+        System.out.println("Perdidos: " + lostCount + " de " + iterations);
+        if (staleAcks > 0) System.out.println("ACK tardíos descartados: " + staleAcks);
+        if (perMessage > 1) System.out.println("Fragmentos por mensaje: " + perMessage + " (MTU " + mtu + ")");
+        if (histPath != null) {
+            rttHist.save(histPath);
+            System.out.println("Histograma guardado en: " + histPath);
+        }
+    }
+
+    /**
+     * Modo bulk: transfiere el archivo reps veces con ReliableUdp y guarda una fila por
+     * transferencia (y la serie temporal si se pidió).
+     */
+    private static void runBulk(String host, int port, String path, int reps, int segSize, int cwndInit,
+                                long rtoMinMs, String csvFile, String seriesPath, long seriesMs) throws IOException {
+        if (segSize < ReliableUdp.MIN_SEGMENT || segSize + ReliableUdp.MAX_HEADER > DatagramFragments.MAX_DATAGRAM) {
+            throw new IllegalArgumentException("--segment debe estar entre " + ReliableUdp.MIN_SEGMENT + " y "
+                    + (DatagramFragments.MAX_DATAGRAM - ReliableUdp.MAX_HEADER) + " (o --mtu debe dejar lugar para él)");
+        }
+        MappedByteBuffer data;
+        try (FileChannel fc = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (fc.size() == 0 || fc.size() > Integer.MAX_VALUE) throw new IllegalArgumentException("--bulk: el archivo debe tener entre 1 byte y 2 GB");
+            if ((fc.size() + segSize - 1) / segSize > ReliableUdp.MAX_SEGMENTS) {
+                throw new IllegalArgumentException("--bulk: más de " + ReliableUdp.MAX_SEGMENTS + " segmentos; use un --segment mayor");
+            }
+            data = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()); // El mapeo sigue válido al cerrar el canal
+        }
+        InetSocketAddress server = new InetSocketAddress(host, port);
+        System.out.println("Prueba de sockets UDP (cliente) - MODO BULK");
+        System.out.printf(Locale.US, "Destino %s:%d, archivo=%s (%d bytes), repeticiones=%d, segmento=%d bytes, cwnd inicial=%d, RTO mínimo=%d ms, csv=%s%n",
+                host, port, path, data.capacity(), reps, segSize, cwndInit, rtoMinMs, csvFile);
+
+        double sumMBps = 0, minMBps = Double.MAX_VALUE, maxMBps = 0;
+        long transmissions = 0, retransmissions = 0, timeouts = 0;
+        try (DatagramSocket socket = new DatagramSocket();
+             PrintWriter csv = new PrintWriter(new FileWriter(csvFile));
+             PrintWriter series = seriesPath == null ? null : new PrintWriter(new FileWriter(seriesPath))) {
+            csv.println("rep,bytes,segment_bytes,elapsed_ms,mb_per_s,segments,sent,retransmitted,retrans_pct,timeouts,recoveries,max_cwnd,srtt_ms,rto_ms,server_recv_ms,server_duplicates");
+            if (series != null) series.println(ReliableUdp.Sender.seriesHeader());
+            for (int rep = 1; rep <= reps; rep++) {
+                ReliableUdp.Result r = new ReliableUdp.Sender(socket, server, data.duplicate(), segSize, cwndInit,
+                        rtoMinMs, series, seriesMs, String.valueOf(rep)).transfer();
+                double mbps = r.mbPerSec();
+                sumMBps += mbps;
+                minMBps = Math.min(minMBps, mbps);
+                maxMBps = Math.max(maxMBps, mbps);
+                transmissions += r.transmissions;
+                retransmissions += r.retransmissions;
+                timeouts += r.timeouts;
+                csv.printf(Locale.US, "%d,%d,%d,%.3f,%.2f,%d,%d,%d,%.3f,%d,%d,%.2f,%.3f,%.3f,%.3f,%d%n",
+                        rep, r.bytes, segSize, r.elapsedNs / 1e6, mbps, r.segments, r.transmissions, r.retransmissions,
+                        r.retransPct(), r.timeouts, r.recoveries, r.maxCwnd, r.srttNs / 1e6, r.rtoNs / 1e6,
+                        r.serverRecvNs < 0 ? -1.0 : r.serverRecvNs / 1e6, r.serverDuplicates);
+                System.out.printf(Locale.US,
+                        "[BULK UDP #%d] %.1f MB/s en %.3f s, retransmitidos=%d de %d (%.2f %%), timeouts=%d, recuperaciones=%d, cwnd máx=%.1f, SRTT=%.3f ms, duplicados servidor=%s%n",
+                        rep, mbps, r.elapsedNs / 1e9, r.retransmissions, r.transmissions, r.retransPct(), r.timeouts,
+                        r.recoveries, r.maxCwnd, r.srttNs / 1e6, r.serverDuplicates < 0 ? "n/d" : String.valueOf(r.serverDuplicates));
+            }
+        }
+
+        System.out.println("\n=== RESUMEN ===");
+        System.out.printf(Locale.US, "Goodput MB/s: promedio=%.1f min=%.1f max=%.1f%n", sumMBps / reps, minMBps, maxMBps);
+        System.out.printf(Locale.US, "Retransmitidos: %d de %d (%.2f %%), timeouts=%d%n", retransmissions, transmissions,
+                transmissions > 0 ? 100.0 * retransmissions / transmissions : 0.0, timeouts);
+        System.out.println("CSV guardado en: " + csvFile);
+        if (seriesPath != null) System.out.println("Serie guardada en: " + seriesPath);
+    }
+
+    /**
+     * Modo ventana: el hilo principal envía y el hilo "udp-receptor" recibe los ACK,
+     * los asocia por seq con su timestamp de envío y vence los datagramas sin respuesta.
+     * Cada seq termina en uno de tres estados: ok (ACK dentro de --timeout), late (ACK
+     * después de vencer, antes del final) o lost (sin ACK). Un datagrama vencido libera
+     * su lugar en la ventana, así que un ACK lento no detiene el envío.
+     */
+    private static class WindowedRun {
+        private static final byte PENDING = 0, OK = 1, EXPIRED = 2, LATE = 3; // Estado de cada seq
+
+        private final InetAddress address;
+        private final int port;
+        private final int iterations, payloadSize, maxDatagram, intervalMs, window;
+        private final byte[] payload;
+        private final long timeoutNs, lingerNs;
+        private final Semaphore slots; // Lugares libres en la ventana
+        private final AtomicLongArray sendTimes; // seq -> clientSendNs (0 = aún no enviado)
+        private final byte[] state; // seq -> estado; solo lo toca el receptor hasta el join
+        final LatencyHistogram rttHist; // RTT de los ACK a tiempo
+        final LatencyHistogram lateHist = new LatencyHistogram(2); // RTT de los ACK tardíos
+        private long ok, late, expired, duplicates, foreign; // Contadores del receptor
+        private long prevRttNs = -1; // Jitter entre ACK a tiempo, en orden de llegada
+        private long startNs, lastSendNs, endNs;
+        private volatile IOException receiverError;
+
+        WindowedRun(InetAddress address, int port, int iterations, byte[] payload, int maxDatagram, int intervalMs,
+                    int timeoutMs, int window, int lingerMs, LatencyHistogram rttHist) {
+            this.address = address;
+            this.port = port;
+            this.iterations = iterations;
+            this.payload = payload;
+            this.payloadSize = payload.length;
+            this.maxDatagram = maxDatagram;
+            this.intervalMs = intervalMs;
+            this.window = window;
+            this.timeoutNs = timeoutMs * 1_000_000L;
+            this.lingerNs = lingerMs * 1_000_000L;
+            this.slots = new Semaphore(window);
+            this.sendTimes = new AtomicLongArray(iterations + 1);
+            this.state = new byte[iterations + 1];
+            this.rttHist = rttHist;
+        }
+
+        /**
+         * Envía los n datagramas respetando la ventana y espera al receptor. Las filas
+         * ok/late se escriben al llegar el ACK; las lost, al final en orden de seq.
+         */
+        void execute(String csvFile) throws IOException, InterruptedException {
+            DatagramSocket socket = new DatagramSocket();
+            try (PrintWriter csv = new PrintWriter(new FileWriter(csvFile))) {
+                csv.println("seq,payload_bytes,client_send_ns,client_recv_ns,rtt_ms,throughput_bps,lost,jitter_ms,status");
+                // Despertar periódico para vencer datagramas aunque no lleguen ACK
+                socket.setSoTimeout((int) Math.max(1, Math.min(timeoutNs / 4_000_000, 50)));
+
+                Thread receiver = new Thread(() -> receive(socket, csv), "udp-receptor");
+                receiver.start();
+                startNs = System.nanoTime();
+                try {
+                    for (int seq = 1; seq <= iterations && receiverError == null; seq++) {
+                        slots.acquire(); // Esperar lugar en la ventana
+                        long sendNs = System.nanoTime();
+                        sendTimes.set(seq, sendNs); // Antes de enviar: el ACK puede llegar enseguida
+                        for (byte[] buf : DatagramFragments.encode(seq, sendNs, payload, maxDatagram)) {
+                            socket.send(new DatagramPacket(buf, buf.length, address, port));
+                        }
+                        if (intervalMs > 0) Thread.sleep(intervalMs);
+                    }
+                    lastSendNs = System.nanoTime();
+                } finally {
+                    if (receiverError != null || lastSendNs == 0) socket.close(); // Desbloquea al receptor
+                    receiver.join();
+                }
+                if (receiverError != null) throw receiverError;
+
+                for (int seq = 1; seq <= iterations; seq++) {
+                    if (state[seq] != EXPIRED) continue;
+                    csv.printf(Locale.US, "%d,%d,%d,-1,-1,0.00,true,,lost%n", seq, payloadSize, sendTimes.get(seq));
+                }
+            } finally {
+                socket.close();
+            }
+        }
+
+        /**
+         * Hilo receptor: ACK por seq y vencimiento en orden de envío. Termina cuando todos
+         * los seq tienen respuesta, o --linger después de vencer el último.
+         */
+        private void receive(DatagramSocket socket, PrintWriter csv) {
+            byte[] buf = new byte[1024];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            int nextExpire = 1; // Primer seq que puede vencer: los envíos (y sus plazos) van en orden
+            long unanswered = 0; // Vencidos que aún esperan un ACK tardío
+            long doneNs = 0; // Momento en que vence o responde el último seq
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    while (nextExpire <= iterations) {
+                        long sendNs = sendTimes.get(nextExpire);
+                        if (sendNs == 0) break; // Aún no enviado
+                        if (state[nextExpire] == PENDING) {
+                            if (now - sendNs < timeoutNs) break;
+                            state[nextExpire] = EXPIRED;
+                            expired++;
+                            unanswered++;
+                            slots.release(); // El lugar vuelve a la ventana aunque el ACK llegue después
+                        }
+                        nextExpire++;
+                    }
+                    if (nextExpire > iterations) {
+                        if (doneNs == 0) doneNs = now;
+                        if (unanswered == 0 || now - doneNs >= lingerNs) break;
+                    }
+
+                    try {
+                        socket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    long recvNs = System.nanoTime();
+                    int seq = parseAckSeq(buf, packet.getLength());
+                    if (seq < 1 || seq > iterations || sendTimes.get(seq) == 0) { foreign++; continue; }
+                    byte st = state[seq];
+                    if (st == OK || st == LATE) { duplicates++; continue; }
+                    long rttNs = recvNs - sendTimes.get(seq);
+                    double rttMs = rttNs / 1_000_000.0;
+                    double throughput = (payloadSize * 8.0) / (rttNs / 1_000_000_000.0);
+                    if (st == PENDING) {
+                        state[seq] = OK;
+                        ok++;
+                        rttHist.record(rttNs);
+                        String jitter = prevRttNs < 0 ? "" : String.format(Locale.US, "%.6f", Math.abs(rttNs - prevRttNs) / 1_000_000.0);
+                        prevRttNs = rttNs;
+                        csv.printf(Locale.US, "%d,%d,%d,%d,%.6f,%.2f,false,%s,ok%n",
+                                seq, payloadSize, sendTimes.get(seq), recvNs, rttMs, throughput, jitter);
+                        slots.release();
+                    } else { // EXPIRED: ya se liberó su lugar
+                        state[seq] = LATE;
+                        late++;
+                        unanswered--;
+                        lateHist.record(rttNs);
+                        csv.printf(Locale.US, "%d,%d,%d,%d,%.6f,%.2f,false,,late%n",
+                                seq, payloadSize, sendTimes.get(seq), recvNs, rttMs, throughput);
+                    }
+                    endNs = recvNs;
+                }
+            } catch (IOException e) {
+                receiverError = e;
+                slots.release(window); // Desbloquear al emisor
+            }
+        }
+
+        /**
+         * Extrae seq de "ACK|seq|serverRecvNs|serverSendNs" sin crear Strings (-1 si no es un ACK).
+         */
+        private static int parseAckSeq(byte[] b, int len) {
+            if (len < 5 || b[0] != 'A' || b[1] != 'C' || b[2] != 'K' || b[3] != '|') return -1;
+            long seq = 0;
+            int i = 4;
+            for (; i < len && b[i] != '|'; i++) {
+                if (b[i] < '0' || b[i] > '9' || seq > Integer.MAX_VALUE) return -1;
+                seq = seq * 10 + (b[i] - '0');
+            }
+            return i == 4 || seq > Integer.MAX_VALUE ? -1 : (int) seq;
+        }
+
+        void printSummary() {
+            double sendSec = (lastSendNs - startNs) / 1e9;
+            double ackSec = (endNs - startNs) / 1e9; // Hasta el último ACK (0 si no llegó ninguno)
+            long lost = expired - late;
+            System.out.println("\n=== RESUMEN ===");
+            System.out.println("RTT (ms): " + rttHist.summaryMs());
+            System.out.printf(Locale.US, "Ventana: %d datagramas, enviados %d en %.3f s (%.0f msg/s), ACK a tiempo %.0f msg/s%n",
+                    window, iterations, sendSec, iterations / sendSec, ackSec > 0 ? ok / ackSec : 0);
+            System.out.printf(Locale.US, "A tiempo: %d, tardíos: %d, perdidos: %d de %d (%.2f %%), duplicados: %d, ajenos: %d%n",
+                    ok, late, lost, iterations, 100.0 * lost / iterations, duplicates, foreign);
+            if (late > 0) System.out.println("RTT tardíos (ms): " + lateHist.summaryMs());
+            System.out.println("Perdidos: " + lost + " de " + iterations);
+        }
     }
 }
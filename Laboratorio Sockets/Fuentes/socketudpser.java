@@ -8,8 +8,17 @@
 import java.io.*;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * socketudpser - Enhanced UDP server
@@ -17,41 +26,170 @@ import java.util.*;
  *
  * Usage:
  *   java socketudpser_enhanced -p 6002 -csv udp_server_metrics.csv
+ *   java socketudpser -p 6002 --quiet          (no per-datagram logs; --log-rate N limits them)
+ *   java socketudpser -p 6002 --mode channel --workers 4 --rcvbuf 8388608 --report 1
+ *   java socketudpser -p 6002 --quiet --bulk-max 1073741824   (transfers from socketudpcli --bulk)
+ *
+ * Console output goes through AsyncLog: the per-datagram line is rate limited
+ * (--log-rate, default 1000 lines/s) and written by a background thread.
+ *
+ * Modes:
+ * - loop (default): one thread; each datagram gets a new DatagramPacket and String,
+ *   split("\\|", 4), an ACK built by concatenation and a flushed CSV row.
+ * - channel: --workers threads (default = number of CPUs) blocked in receive() on a
+ *   DatagramChannel. Each worker owns direct buffers for the datagram and the ACK, parses
+ *   the header from the bytes and writes the ACK digits in place, so nothing is allocated
+ *   per datagram. CSV rows go through a MetricsSink (--csv-buffer, --csv-batch,
+ *   --csv-flush-ms). Workers share one channel; with --reuseport each worker binds its own
+ *   socket with SO_REUSEPORT and the kernel spreads the senders (by address and port)
+ *   across them.
+ *
+ * Messages larger than the client's MTU arrive as FRG fragments (see DatagramFragments).
+ * Both modes feed them to a shared Reassembler and ACK the whole message once its last
+ * fragment arrives; the CSV row then has the full payload_bytes and the number of
+ * fragments. Incomplete messages are dropped after --reasm-timeout ms, and at most
+ * --reasm-max messages (of up to --max-message bytes) are reassembled at a time.
+ * Each CSV row also carries the client's send timestamp (client_send_ns), so
+ * socketanalyzer can compute RFC 3550 jitter from the server side.
+ *
+ * socketudpcli --bulk sends a file with ReliableUdp (RUDP/DAT/RFIN). Both modes answer
+ * every DAT with a SACK and keep one bitmap per transfer (sessions shared by all workers,
+ * up to --bulk-max bytes each, dropped after 30 s without traffic); the bytes are not stored
+ * and do not go to the CSV.
+ *
+ * Both modes count datagrams per second (--report N prints them every N seconds, and a
+ * summary with the average and peak is printed at shutdown) and the datagrams the kernel
+ * dropped because the socket receive buffer (--rcvbuf) was full, read from the "drops"
+ * column of /proc/net/udp for this port (Linux; n/a elsewhere).
  */
 public class socketudpser {
 
+    // Configuración por defecto del servidor
+    private static int port = 6002; // Puerto UDP
+    private static String csvFile = "udp_server_metrics.csv"; // Archivo CSV para métricas
+    private static String mode = "loop"; // loop | channel
+    private static int workers = Runtime.getRuntime().availableProcessors(); // Hilos receptores en modo channel
+    private static boolean reusePort = false; // Un socket por worker con SO_REUSEPORT (modo channel)
+    private static int rcvBuf = 0, sndBuf = 0; // Buffers del socket (0 = default del sistema)
+    private static int reportSec = 0; // Intervalo de reporte en segundos (0 = solo al terminar)
+
+    private static int csvBuffer = 65536; // Slots del ring de métricas (modo channel)
+    private static int csvBatch = 512; // Filas por flush del CSV
+    private static long csvFlushMs = 100; // Flush máximo cada N ms aunque el lote no esté lleno
+    private static MetricsSink metrics; // Escritor asíncrono del CSV (modo channel)
+
+    private static long maxMessage = 16L * 1024 * 1024; // Largo máximo de un mensaje fragmentado (bytes)
+    private static int reasmMax = 4096; // Mensajes fragmentados en reensamblado a la vez
+    private static long reasmTimeoutMs = 5000; // Descartar un mensaje incompleto tras N ms
+    private static DatagramFragments.Reassembler reassembler;
+    private static long bulkMax = 4L << 30; // Tamaño máximo de una transferencia con --bulk (bytes)
+    private static ReliableUdp.Receiver reliable;
+
+    // Contadores comunes a los dos modos
+    private static final LongAdder packets = new LongAdder(); // Datagramas recibidos
+    private static final LongAdder bytesIn = new LongAdder(); // Bytes recibidos (encabezado incluido)
+    private static final LongAdder malformed = new LongAdder(); // Datagramas que no son tipo|seq|clientSend|payloadLen[|...]
+
     public static void main(String[] args) throws Exception {
-        int port = 6002; // Puerto UDP por defecto
-        String csvFile = "udp_server_metrics.csv"; // Archivo CSV por defecto
+        parseArgs(args);
+        reassembler = new DatagramFragments.Reassembler(maxMessage, reasmMax, reasmTimeoutMs);
+        reliable = new ReliableUdp.Receiver(bulkMax);
+        startReport();
+        if ("channel".equals(mode)) {
+            runChannel();
+        } else {
+            runLoop();
+        }
+    }
 
-        // Parsear argumentos de línea de comando
+    /**
+     * Parsear argumentos de línea de comando y configurar variables.
+     */
+    private static void parseArgs(String[] args) {
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
                 case "-p": port = Integer.parseInt(args[++i]); break; // Cambiar puerto si se pasa -p
                 case "-csv": csvFile = args[++i]; break; // Cambiar archivo CSV si se pasa -csv
+                case "--log-rate": AsyncLog.setMessageRate(Integer.parseInt(args[++i])); break; // Logs por datagrama por segundo
+                case "--quiet": AsyncLog.setMessageRate(0); break; // Sin logs por datagrama
+                case "--mode": mode = args[++i].toLowerCase(Locale.ROOT); break; // loop | channel
+                case "--workers": workers = Math.max(1, Integer.parseInt(args[++i])); break; // Hilos receptores (modo channel)
+                case "--reuseport": reusePort = true; break; // Un socket por worker
+                case "--rcvbuf": rcvBuf = Integer.parseInt(args[++i]); break; // SO_RCVBUF
+                case "--sndbuf": sndBuf = Integer.parseInt(args[++i]); break; // SO_SNDBUF
+                case "--report": reportSec = Integer.parseInt(args[++i]); break; // Reporte periódico
+                case "--csv-buffer": csvBuffer = Integer.parseInt(args[++i]); break; // Capacidad del ring de métricas
+                case "--csv-batch": csvBatch = Integer.parseInt(args[++i]); break; // Filas por flush
+                case "--csv-flush-ms": csvFlushMs = Long.parseLong(args[++i]); break; // Tiempo máximo entre flush
+                case "--max-message": maxMessage = Long.parseLong(args[++i]); break; // Mensaje fragmentado más grande
+                case "--reasm-max": reasmMax = Integer.parseInt(args[++i]); break; // Mensajes en reensamblado
+                case "--reasm-timeout": reasmTimeoutMs = Long.parseLong(args[++i]); break; // Vida de un mensaje incompleto
+                case "--bulk-max": bulkMax = Long.parseLong(args[++i]); break; // Transferencia más grande
             }
         }
+        if (!"loop".equals(mode) && !"channel".equals(mode)) throw new IllegalArgumentException("Modo desconocido: " + mode);
+    }
 
+    /**
+     * Modo loop: el servidor original, un datagrama a la vez en un solo hilo.
+     */
+    private static void runLoop() throws IOException {
         DatagramSocket socket = new DatagramSocket(port); // Crear socket UDP en el puerto indicado
+        if (rcvBuf > 0) socket.setReceiveBufferSize(rcvBuf);
+        if (sndBuf > 0) socket.setSendBufferSize(sndBuf);
         PrintWriter csv = new PrintWriter(new FileWriter(csvFile)); // Crear archivo CSV para métricas
-        csv.println("seq,payload_bytes,server_recv_ns,server_proc_ms"); // Cabecera del CSV
-        System.out.println("Servidor UDP escuchando en puerto " + port); // Mensaje inicial
+        csv.println("seq,payload_bytes,server_recv_ns,server_proc_ms,fragments,client_send_ns"); // Cabecera del CSV
+        AsyncLog.info("Servidor UDP escuchando en puerto " + port + " (modo loop)"); // Mensaje inicial
 
-        byte[] buf = new byte[8192]; // Buffer para recibir paquetes UDP
+        byte[] buf = new byte[DatagramFragments.MAX_DATAGRAM]; // Buffer para recibir paquetes UDP
+        ByteBuffer view = ByteBuffer.wrap(buf); // Para copiar fragmentos al reensamblado
 
         // Bucle principal del servidor: recibir, procesar y responder
         while (true) {
             DatagramPacket packet = new DatagramPacket(buf, buf.length); // Crear paquete vacío para recibir
             socket.receive(packet); // Esperar a recibir un paquete UDP
             long recvTime = System.nanoTime(); // Timestamp de recepción en nanosegundos
+            packets.increment();
+            bytesIn.add(packet.getLength());
+
+            view.clear().limit(packet.getLength());
+            if (ReliableUdp.Receiver.matches(view)) { // Segmento o control de una transferencia --bulk
+                byte[] reply;
+                try {
+                    reply = reliable.handle(view, recvTime);
+                } catch (RuntimeException e) { // Un datagrama armado a mano no debe detener el servidor
+                    malformed.increment();
+                    continue;
+                }
+                if (reply != null) socket.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+                continue;
+            }
 
-            String data = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8); // Convertir bytes a String
-            String[] parts = data.split("\\|", 4); // Separar mensaje en partes: tipo|seq|clientSend|payloadLen
-            if (parts.length < 4) continue; // Ignorar mensajes malformados
+            String data = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.ISO_8859_1); // Un char por byte
+            boolean frag = data.startsWith("FRG|");
+            String[] parts = data.split("\\|", frag ? 7 : 5); // tipo|seq|clientSend|payloadLen[|index|count]|payload
+            if (parts.length < (frag ? 7 : 4)) { malformed.increment(); continue; } // Ignorar mensajes malformados
 
-            int seq = Integer.parseInt(parts[1]); // Número de secuencia del mensaje
-            long clientSend = Long.parseLong(parts[2]); // Timestamp de envío del cliente
-            int payloadLen = Integer.parseInt(parts[3]); // Longitud del payload
+            int seq, payloadLen, fragments = 1;
+            long clientSend;
+            try {
+                seq = Integer.parseInt(parts[1]); // Número de secuencia del mensaje
+                clientSend = Long.parseLong(parts[2]); // Timestamp de envío del cliente
+                payloadLen = Integer.parseInt(parts[3]); // Longitud del payload
+                if (frag) { // Fragmento: se responde cuando llega el último
+                    int chunk = parts[6].length();
+                    fragments = reassembler.offer(packet.getSocketAddress(), seq, payloadLen, Long.parseLong(parts[4]),
+                            Long.parseLong(parts[5]), view, packet.getLength() - chunk, chunk, recvTime);
+                    if (fragments < 0) { malformed.increment(); continue; }
+                    if (fragments == 0) continue; // Faltan fragmentos
+                } else if (parts.length == 5 && parts[4].length() != payloadLen) {
+                    malformed.increment(); // Payload incompleto o de otro largo
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                malformed.increment();
+                continue;
+            }
 
             long procStart = System.nanoTime(); // Inicio de procesamiento
             // Simular procesamiento si se desea (ej. Thread.sleep(1))
@@ -66,12 +204,296 @@ public class socketudpser {
             socket.send(ackPkt); // Enviar ACK al cliente
 
             // Registrar métricas en CSV
-            csv.printf(Locale.US, "%d,%d,%d,%d%n", seq, payloadLen, recvTime, procMs);
+            csv.printf(Locale.US, "%d,%d,%d,%d,%d,%d%n", seq, payloadLen, recvTime, procMs, fragments, clientSend);
             csv.flush(); // Asegurarse de que se escriba inmediatamente
 
-            // Imprimir información en consola
-            System.out.println("Recibido seq=" + seq + " (" + payloadLen + " bytes), ACK enviado");
+            // Imprimir información en consola (asíncrono y con límite por segundo)
+            if (AsyncLog.allowMessage()) AsyncLog.message("Recibido seq=" + seq + " (" + payloadLen + " bytes), ACK enviado");
         }
     }
-}
 
+    /**
+     * Modo channel: abre el/los DatagramChannel, arranca el escritor del CSV y
+     * los workers, y espera a que terminen (solo si el canal se cierra).
+     */
+    private static void runChannel() throws IOException, InterruptedException {
+        try (PrintWriter header = new PrintWriter(new FileWriter(csvFile))) {
+            header.println("seq,payload_bytes,server_recv_ns,server_proc_ms,fragments,client_send_ns");
+        }
+        Writer w = new BufferedWriter(new FileWriter(csvFile, true), 1 << 16);
+        metrics = new MetricsSink(w, csvBuffer, 0, 6, csvBatch, csvFlushMs, socketudpser::formatRow);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                metrics.close();
+            } catch (IOException e) {
+                AsyncLog.error("Error cerrando CSV: " + e.getMessage());
+            }
+        }));
+
+        List<Thread> threads = new ArrayList<>();
+        DatagramChannel shared = reusePort ? null : openChannel();
+        for (int i = 0; i < workers; i++) {
+            DatagramChannel ch = reusePort ? openChannel() : shared;
+            Thread t = new Thread(new Worker(ch), "udp-worker-" + i);
+            t.start();
+            threads.add(t);
+        }
+        AsyncLog.info("Servidor UDP escuchando en puerto " + port + " (modo channel, workers=" + workers
+                + (reusePort ? ", SO_REUSEPORT" : "") + ")");
+        for (Thread t : threads) t.join();
+    }
+
+    /**
+     * Crea un canal bloqueante ligado al puerto con los buffers y SO_REUSEPORT pedidos.
+     */
+    private static DatagramChannel openChannel() throws IOException {
+        DatagramChannel ch = DatagramChannel.open();
+        if (reusePort) {
+            if (!ch.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                ch.close();
+                throw new IllegalStateException("SO_REUSEPORT no está disponible en este sistema");
+            }
+            ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        if (rcvBuf > 0) ch.setOption(StandardSocketOptions.SO_RCVBUF, rcvBuf);
+        if (sndBuf > 0) ch.setOption(StandardSocketOptions.SO_SNDBUF, sndBuf);
+        ch.bind(new InetSocketAddress(port));
+        return ch;
+    }
+
+    /**
+     * Worker del modo channel: recibe, parsea y responde con sus propios buffers directos.
+     * receive() devuelve la misma dirección de origen mientras el emisor no cambie, así que
+     * con un cliente estable el camino de un MSG no crea objetos (los FRG sí: clave y
+     * buffer del reensamblado).
+     */
+    private static final class Worker implements Runnable {
+        private final DatagramChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocateDirect(65536); // Datagrama recibido
+        private final ByteBuffer ack = ByteBuffer.allocateDirect(64); // "ACK|seq|recvNs|sendNs"
+        private long seq, clientSendNs, payloadLen; // Campos del último encabezado parseado
+        private long index, count; // Solo FRG: fragmento index de count
+        private boolean frag; // El último datagrama es un FRG
+        private int payloadStart; // Primer byte del payload (o del fragmento)
+
+        Worker(DatagramChannel channel) { this.channel = channel; }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    in.clear();
+                    SocketAddress from = channel.receive(in);
+                    long recvNs = System.nanoTime();
+                    in.flip();
+                    packets.increment();
+                    bytesIn.add(in.remaining());
+                    if (ReliableUdp.Receiver.matches(in)) { // Transferencia --bulk: responde SACK/RUDP-OK/RDONE
+                        byte[] reply;
+                        try {
+                            reply = reliable.handle(in, recvNs);
+                        } catch (RuntimeException e) { // Un datagrama armado a mano no debe detener el worker
+                            malformed.increment();
+                            continue;
+                        }
+                        if (reply != null) channel.send(ByteBuffer.wrap(reply), from);
+                        continue;
+                    }
+                    if (!parseHeader()) { malformed.increment(); continue; }
+                    int fragments = 1;
+                    if (frag) { // Se responde cuando llega el último fragmento
+                        fragments = reassembler.offer(from, seq, payloadLen, index, count, in, payloadStart,
+                                in.limit() - payloadStart, recvNs);
+                        if (fragments < 0) { malformed.increment(); continue; }
+                        if (fragments == 0) continue;
+                    }
+
+                    ack.clear();
+                    ack.put((byte) 'A').put((byte) 'C').put((byte) 'K').put((byte) '|');
+                    putLong(ack, seq);
+                    ack.put((byte) '|');
+                    putLong(ack, recvNs);
+                    ack.put((byte) '|');
+                    long sendNs = System.nanoTime();
+                    putLong(ack, sendNs);
+                    ack.flip();
+                    channel.send(ack, from);
+
+                    long slot = metrics.claim();
+                    if (slot >= 0) {
+                        metrics.val(slot, 0, seq);
+                        metrics.val(slot, 1, payloadLen);
+                        metrics.val(slot, 2, recvNs);
+                        metrics.val(slot, 3, sendNs - recvNs); // Del receive al envío del ACK
+                        metrics.val(slot, 4, fragments);
+                        metrics.val(slot, 5, clientSendNs);
+                        metrics.publish(slot);
+                    }
+                    if (AsyncLog.allowMessage()) AsyncLog.message("Recibido seq=" + seq + " (" + payloadLen + " bytes), ACK enviado");
+                }
+            } catch (IOException e) {
+                if (channel.isOpen()) AsyncLog.error("Error en " + Thread.currentThread().getName() + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Lee "MSG|seq|clientSendNs|payloadLen[|payload]" o
+         * "FRG|seq|clientSendNs|payloadLen|index|count|chunk" desde los bytes de 'in' sin
+         * crear Strings. Retorna false si falta un campo, no es numérico o el payload de un
+         * MSG no tiene payloadLen bytes.
+         */
+        private boolean parseHeader() {
+            int end = in.limit();
+            int i = 0;
+            while (i < end && in.get(i) != '|') i++; // Tipo
+            if (i == 0 || i >= end) return false;
+            frag = i == 3 && in.get(0) == 'F' && in.get(1) == 'R' && in.get(2) == 'G';
+            int fields = frag ? 5 : 3;
+            for (int k = 0; k < fields; k++) {
+                int start = ++i;
+                long v = 0;
+                for (; i < end && in.get(i) != '|'; i++) {
+                    byte d = in.get(i);
+                    if (d < '0' || d > '9' || v > Long.MAX_VALUE / 10) return false;
+                    v = v * 10 + (d - '0');
+                }
+                if (i == start) return false;
+                switch (k) {
+                    case 0: seq = v; break;
+                    case 1: clientSendNs = v; break;
+                    case 2: payloadLen = v; break;
+                    case 3: index = v; break;
+                    default: count = v; break;
+                }
+            }
+            payloadStart = Math.min(i + 1, end);
+            if (frag) return i < end; // Un FRG siempre trae su fragmento
+            return i >= end || end - payloadStart == payloadLen; // MSG solo con encabezado, o payload completo
+        }
+    }
+
+    /**
+     * Escribe los dígitos decimales de v (>= 0) en el buffer, sin crear Strings.
+     */
+    private static void putLong(ByteBuffer b, long v) {
+        int digits = 1;
+        for (long p = 10; p <= v && digits < 19; p *= 10) digits++;
+        int pos = b.position();
+        for (int k = digits - 1; k >= 0; k--) {
+            b.put(pos + k, (byte) ('0' + v % 10));
+            v /= 10;
+        }
+        b.position(pos + digits);
+    }
+
+    /**
+     * Fila del CSV en el esquema del modo loop; server_proc_ms con resolución de ns.
+     */
+    private static void formatRow(StringBuilder row, Object[] refs, int r, long[] vals, int v) {
+        row.append(vals[v]).append(',').append(vals[v + 1]).append(',').append(vals[v + 2]).append(',');
+        MetricsSink.appendNsAsMs(row, vals[v + 3]);
+        row.append(',').append(vals[v + 4]).append(',').append(vals[v + 5]).append('\n');
+    }
+
+    /**
+     * Muestrea los contadores cada segundo: imprime datagramas/s cada reportSec segundos
+     * (si se pidió) y, al terminar, el promedio sobre los segundos con tráfico y el pico.
+     */
+    private static void startReport() {
+        long[] state = new long[5]; // paquetes y bytes del muestreo anterior, segundos con tráfico, pico pps, descartes kernel al inicio
+        state[4] = Math.max(0, kernelDrops());
+        Thread sampler = new Thread(() -> {
+            long lastReportNs = System.nanoTime(), lastPackets = 0, lastBytes = 0;
+            try {
+                while (true) {
+                    Thread.sleep(1000);
+                    reassembler.expire(System.nanoTime());
+                    reliable.expire(System.nanoTime());
+                    long p = packets.sum();
+                    synchronized (state) {
+                        long delta = p - state[0];
+                        if (delta > 0) state[2]++;
+                        state[3] = Math.max(state[3], delta);
+                        state[0] = p;
+                    }
+                    long now = System.nanoTime();
+                    if (reportSec > 0 && now - lastReportNs >= reportSec * 1_000_000_000L - 50_000_000L) {
+                        double sec = (now - lastReportNs) / 1e9;
+                        long b = bytesIn.sum();
+                        AsyncLog.info(String.format(Locale.US, "[UDP] %.0f datagramas/s, %.2f Mb/s, total=%d%s",
+                                (p - lastPackets) / sec, (b - lastBytes) * 8 / sec / 1e6, p, bulkSummary() + dropsSummary(state[4])));
+                        lastReportNs = now;
+                        lastPackets = p;
+                        lastBytes = b;
+                    }
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }, "udp-report");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            long p = packets.sum();
+            long activeSec, peak;
+            synchronized (state) {
+                activeSec = state[2];
+                peak = Math.max(state[3], p - state[0]); // Incluye el último segundo incompleto
+            }
+            AsyncLog.info(String.format(Locale.US,
+                    "[UDP] modo=%s%s datagramas=%d bytes=%d promedio=%.0f datagramas/s (%d s con tráfico) pico=%d datagramas/s%s",
+                    mode, "channel".equals(mode) ? " workers=" + workers : "", p, bytesIn.sum(),
+                    activeSec > 0 ? (double) p / activeSec : 0.0, activeSec, peak, bulkSummary() + dropsSummary(state[4])));
+        }));
+    }
+
+    /**
+     * Transferencias --bulk atendidas (vacío si no hubo ninguna).
+     */
+    private static String bulkSummary() {
+        ReliableUdp.Receiver r = reliable;
+        return r.opened.sum() == 0 ? "" : " bulk_sesiones=" + r.opened.sum() + " bulk_completas=" + r.completed.sum()
+                + " bulk_en_curso=" + r.active() + " bulk_bytes=" + r.bytes.sum() + " bulk_duplicados=" + r.duplicates.sum();
+    }
+
+    /**
+     * Descartes: malformados, del kernel (buffer de recepción lleno) y filas del CSV;
+     * si hubo fragmentos, también el estado del reensamblado.
+     */
+    private static String dropsSummary(long kernelAtStart) {
+        long k = kernelDrops();
+        DatagramFragments.Reassembler r = reassembler;
+        return (r.fragments.sum() + r.rejected.sum() == 0 ? "" : " fragmentos=" + r.fragments.sum()
+                        + " reensamblados=" + r.completed.sum() + " incompletos=" + r.expired.sum()
+                        + " en_curso=" + r.pending() + " duplicados=" + r.duplicates.sum())
+                + " malformados=" + malformed.sum()
+                + " descartes_kernel=" + (k < 0 ? "n/d" : String.valueOf(k - kernelAtStart))
+                + (metrics != null ? " csv_descartadas=" + metrics.dropped() : "");
+    }
+
+    /**
+     * Suma la columna "drops" de /proc/net/udp y udp6 para los sockets en el puerto
+     * del servidor. Retorna -1 si no se puede leer (no es Linux).
+     */
+    private static long kernelDrops() {
+        String hexPort = String.format(":%04X", port);
+        long total = 0;
+        boolean found = false;
+        for (String f : new String[] {"/proc/net/udp", "/proc/net/udp6"}) {
+            Path path = Paths.get(f);
+            if (!Files.isReadable(path)) continue;
+            try {
+                for (String line : Files.readAllLines(path)) {
+                    String[] cols = line.trim().split("\\s+");
+                    if (cols.length < 13 || !cols[1].endsWith(hexPort)) continue;
+                    total += Long.parseLong(cols[cols.length - 1]);
+                    found = true;
+                }
+            } catch (IOException | NumberFormatException e) {
+                return -1;
+            }
+        }
+        return found ? total : -1;
+    }
+}